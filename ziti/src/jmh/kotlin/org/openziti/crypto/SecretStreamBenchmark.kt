@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.crypto
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.openziti.net.ZitiProtocol.CryptoMethod
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * End-to-end encryption throughput: libsodium secretstream vs. AES-256-GCM (JCE),
+ * `ByteArray` API (new arrays per chunk) vs. `ByteBuffer` API writing into a reused output buffer
+ * (heap frame slot or direct buffer).
+ *
+ * Each invocation encrypts one chunk and decrypts it again, so both stream states stay in step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class SecretStreamBenchmark {
+
+    @Param("libsodium", "aes256-gcm")
+    var method: String = ""
+
+    @Param("1024", "16384", "65536", "1048576")
+    var size: Int = 0
+
+    private lateinit var sender: Crypto.SecretStream
+    private lateinit var receiver: Crypto.SecretStream
+    private lateinit var plain: ByteArray
+    private lateinit var heapSlot: ByteBuffer
+    private lateinit var directSlot: ByteBuffer
+    private lateinit var decrypted: ByteBuffer
+
+    @Setup(Level.Iteration)
+    fun setup() {
+        val clientKeys = Crypto.newKeyPair()
+        val serverKeys = Crypto.newKeyPair()
+        val txMethod = if (method == "aes256-gcm") CryptoMethod.AES256_GCM else CryptoMethod.Libsodium
+        sender = Crypto.newStream(Crypto.kx(clientKeys, serverKeys.publicKey, false), txMethod)
+        receiver = Crypto.newStream(Crypto.kx(serverKeys, clientKeys.publicKey, true), txMethod)
+        receiver.init(sender.header())
+
+        plain = Random.nextBytes(size)
+        val cipherLen = sender.encryptedSize(size)
+        // body slot inside a larger frame buffer, like pooled frames
+        heapSlot = ByteBuffer.allocate(cipherLen + 64).slice(64, cipherLen)
+        directSlot = ByteBuffer.allocateDirect(cipherLen)
+        decrypted = ByteBuffer.allocate(size)
+    }
+
+    @Benchmark
+    fun byteArray(bh: Blackhole) {
+        val cipher = sender.encrypt(plain.copyOf())
+        bh.consume(receiver.decrypt(cipher))
+    }
+
+    @Benchmark
+    fun heapBuffer(bh: Blackhole) = roundTrip(heapSlot, bh)
+
+    @Benchmark
+    fun directBuffer(bh: Blackhole) = roundTrip(directSlot, bh)
+
+    private fun roundTrip(slot: ByteBuffer, bh: Blackhole) {
+        slot.clear()
+        sender.encrypt(ByteBuffer.wrap(plain), slot)
+        decrypted.clear()
+        receiver.decrypt(slot.flip(), decrypted)
+        bh.consume(decrypted)
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openziti.impl
+
+import org.openjdk.jmh.annotations.*
+import org.openziti.api.Service
+import org.openziti.api.SessionType
+import org.openziti.api.interceptConfig
+import org.openziti.edge.model.ServiceDetail
+import org.openziti.net.Protocol
+import java.net.InetAddress
+import java.util.concurrent.TimeUnit
+
+/**
+ * Intercept address lookup: linear scan over services (previous `getDialAddress`) vs [InterceptIndex].
+ *
+ * Services are a mix of host names, wildcard domains and CIDR blocks;
+ * lookups target a service in the middle of the list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class InterceptLookupBenchmark {
+
+    @Param("10", "1000", "10000")
+    var services: Int = 0
+
+    private lateinit var list: List<Service>
+    private lateinit var index: InterceptIndex
+    private lateinit var host: String
+    private lateinit var wildcardHost: String
+    private lateinit var ip: InetAddress
+
+    @Setup
+    fun setup() {
+        list = (0 until services).map { i ->
+            val addr = when (i % 3) {
+                0 -> "svc$i.example.com"
+                1 -> "*.zone$i.example.com"
+                else -> "10.${(i shr 8) and 0xff}.${i and 0xff}.0/24"
+            }
+            ServiceDetail().id("$i").name("svc$i").permissions(listOf(SessionType.DIAL)).config(mapOf(
+                "intercept.v1" to mapOf(
+                    "protocols" to listOf("tcp"),
+                    "addresses" to listOf(addr),
+                    "portRanges" to listOf(mapOf("low" to 80, "high" to 80), mapOf("low" to 8000, "high" to 9000))
+                )
+            ))
+        }
+        index = InterceptIndex.build(list)
+
+        val mid = services / 2
+        host = "svc${mid - mid % 3}.example.com"
+        wildcardHost = "www.zone${mid - mid % 3 + 1}.example.com"
+        val c = mid - mid % 3 + 2
+        ip = InetAddress.getByName("10.${(c shr 8) and 0xff}.${c and 0xff}.7")
+    }
+
+    private fun scan(addr: Any, port: Int): Service? = list.firstOrNull { s ->
+        s.permissions.contains(SessionType.DIAL) &&
+                s.interceptConfig()?.let { cfg ->
+                    cfg.protocols.contains(Protocol.TCP) &&
+                            cfg.portRanges.any { it.contains(port) } &&
+                            cfg.addresses.any { it.matches(addr) }
+                } ?: false
+    }
+
+    @Benchmark
+    fun scanHost() = scan(host, 8080)
+
+    @Benchmark
+    fun indexHost() = index.find(host, 8080, Protocol.TCP, SessionType.DIAL)
+
+    @Benchmark
+    fun scanWildcard() = scan(wildcardHost, 8080)
+
+    @Benchmark
+    fun indexWildcard() = index.find(wildcardHost, 8080, Protocol.TCP, SessionType.DIAL)
+
+    @Benchmark
+    fun scanIP() = scan(ip, 8080)
+
+    @Benchmark
+    fun indexIP() = index.find(ip, 8080, Protocol.TCP, SessionType.DIAL)
+}
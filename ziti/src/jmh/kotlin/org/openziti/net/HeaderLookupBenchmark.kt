@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.Header
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.TimeUnit
+
+/**
+ * Header parsing and per-message dispatch lookup:
+ * boxed `MutableMap<Int, ByteArray>` (previous [Message] representation) vs. [HeaderTable] over frame bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class HeaderLookupBenchmark {
+
+    private lateinit var frame: Frame
+    private lateinit var headersBlock: ByteBuffer
+    private lateinit var map: MutableMap<Int, ByteArray>
+    private lateinit var frameMessage: Message
+
+    @Setup
+    fun setup() {
+        frame = FramePool(1, 4096).acquire().begin(ContentType.Data.id, 1)
+            .putHeader(Header.ConnId, 1234)
+            .putHeader(Header.SeqHeader, 5678)
+            .putHeader(Header.FlagsHeader, 0)
+            .putHeader(Header.CallerIdHeader, "benchmark-caller".toByteArray())
+        frame.body(1024)
+
+        headersBlock = frame.buf.slice(ZitiProtocol.HEADER_LENGTH, frame.headersLength).order(ByteOrder.LITTLE_ENDIAN)
+        map = Message.parseHeaders(headersBlock.duplicate().order(ByteOrder.LITTLE_ENDIAN))
+        frameMessage = Message(ContentType.Data, frame)
+    }
+
+    @Benchmark
+    fun mapParse(bh: Blackhole) {
+        bh.consume(Message.parseHeaders(headersBlock.duplicate().order(ByteOrder.LITTLE_ENDIAN)))
+    }
+
+    @Benchmark
+    fun tableParse(bh: Blackhole) {
+        bh.consume(frame.index())
+    }
+
+    @Benchmark
+    fun mapConnIdLookup(): Int? =
+        map[Header.ConnId]?.let { ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).int }
+
+    @Benchmark
+    fun tableConnIdLookup(): Int = frame.intHeader(Header.ConnId, -1)
+
+    @Benchmark
+    fun mapParseAndDispatch(): Int? {
+        val headers = Message.parseHeaders(headersBlock.duplicate().order(ByteOrder.LITTLE_ENDIAN))
+        return headers[Header.ConnId]?.let { ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).int }
+    }
+
+    @Benchmark
+    fun tableParseAndDispatch(): Int {
+        frame.index()
+        return frameMessage.getIntHeader(Header.ConnId, -1)
+    }
+}
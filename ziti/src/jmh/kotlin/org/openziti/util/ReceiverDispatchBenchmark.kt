@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.util
+
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Receiver lookup by connId with 10k registered connections:
+ * `Mutex` + `HashMap` (previous `ChannelImpl` dispatch), `ConcurrentHashMap`, and [ConcurrentIntMap].
+ *
+ * `dispatch` benchmarks do a batch of [BATCH] lookups per invocation;
+ * the `churn` group runs lookups concurrently with register/deregister.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+open class ReceiverDispatchBenchmark {
+
+    @Param("10000")
+    var connections: Int = 0
+
+    private val mutex = Mutex()
+    private val hashMap = HashMap<Int, Any>()
+    private val chm = ConcurrentHashMap<Int, Any>()
+    private val intMap = ConcurrentIntMap<Any>()
+    private lateinit var ids: IntArray
+
+    @Setup
+    fun setup() {
+        ids = IntArray(BATCH) { Random.nextInt(connections) }
+        for (id in 0 until connections) {
+            val receiver = Any()
+            hashMap[id] = receiver
+            chm[id] = receiver
+            intMap[id] = receiver
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    fun mutexDispatch(bh: Blackhole) = runBlocking {
+        for (id in ids) bh.consume(mutex.withLock { hashMap[id] })
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    fun chmDispatch(bh: Blackhole) {
+        for (id in ids) bh.consume(chm[id])
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    fun intMapDispatch(bh: Blackhole) {
+        for (id in ids) bh.consume(intMap[id])
+    }
+
+    @State(Scope.Thread)
+    open class Churn {
+        var next = 0
+    }
+
+    @Benchmark
+    @Group("mutexChurn")
+    @GroupThreads(3)
+    @OperationsPerInvocation(BATCH)
+    fun mutexChurnDispatch(bh: Blackhole) = mutexDispatch(bh)
+
+    @Benchmark
+    @Group("mutexChurn")
+    @GroupThreads(1)
+    fun mutexChurnRegister(c: Churn) = runBlocking {
+        val id = connections + (c.next++ and 0xffff)
+        mutex.withLock { hashMap[id] = c }
+        mutex.withLock { hashMap.remove(id) }
+    }
+
+    @Benchmark
+    @Group("chmChurn")
+    @GroupThreads(3)
+    @OperationsPerInvocation(BATCH)
+    fun chmChurnDispatch(bh: Blackhole) = chmDispatch(bh)
+
+    @Benchmark
+    @Group("chmChurn")
+    @GroupThreads(1)
+    fun chmChurnRegister(c: Churn) {
+        val id = connections + (c.next++ and 0xffff)
+        chm[id] = c
+        chm.remove(id)
+    }
+
+    @Benchmark
+    @Group("intMapChurn")
+    @GroupThreads(3)
+    @OperationsPerInvocation(BATCH)
+    fun intMapChurnDispatch(bh: Blackhole) = intMapDispatch(bh)
+
+    @Benchmark
+    @Group("intMapChurn")
+    @GroupThreads(1)
+    fun intMapChurnRegister(c: Churn) {
+        val id = connections + (c.next++ and 0xffff)
+        intMap[id] = c
+        intMap.remove(id)
+    }
+
+    companion object {
+        const val BATCH = 1024
+    }
+}
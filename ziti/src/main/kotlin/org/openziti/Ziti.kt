@@ -21,6 +21,7 @@ import org.openziti.api.Service
 import org.openziti.impl.ZitiImpl
 import org.openziti.net.ZitiSocketFactory
 import org.openziti.net.dns.DNSResolver
+import org.openziti.net.dns.DNSServer
 import org.openziti.net.dns.ZitiDNSManager
 import org.openziti.net.nio.AsyncTLSSocketFactory
 import java.io.File
@@ -106,6 +107,13 @@ object Ziti {
     @JvmStatic
     fun getDNSResolver(): DNSResolver = ZitiDNSManager
 
+    /**
+     * Embedded DNS server enabled with `-Dziti.dns.server=<host:port>`,
+     * `null` if it is not configured or failed to start. Its metrics are in [ZitiMetrics.getRegistry].
+     */
+    @JvmStatic
+    fun getDNSServer(): DNSServer? = ZitiImpl.dnsServer
+
     @JvmStatic
     fun connect(addr: SocketAddress): ZitiConnection = ZitiImpl.connect(addr)
 
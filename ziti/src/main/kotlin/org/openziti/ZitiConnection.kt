@@ -17,6 +17,7 @@
 package org.openziti
 
 import kotlinx.coroutines.runBlocking
+import org.openziti.util.NetworkStats
 import java.io.Closeable
 
 /**
@@ -32,4 +33,9 @@ interface ZitiConnection: Closeable {
     fun read(out: ByteArray, off: Int, len: Int): Int = runBlocking { receive(out, off, len) }
 
     fun isClosed(): Boolean
+
+    /**
+     * Current throughput of this connection.
+     */
+    fun getNetworkStats(): NetworkStats = NetworkStats(0.0, 0.0)
 }
\ No newline at end of file
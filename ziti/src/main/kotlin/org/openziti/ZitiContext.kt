@@ -17,12 +17,15 @@
 package org.openziti
 
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import org.openziti.api.MFAEnrollment
 import org.openziti.api.Service
 import org.openziti.edge.model.IdentityDetail
 import org.openziti.edge.model.TerminatorClientDetail
 import org.openziti.identity.Identity
+import org.openziti.util.NetworkStats
+import org.openziti.util.Settings
 import java.io.Writer
 import java.net.InetSocketAddress
 import java.net.Socket
@@ -58,6 +61,72 @@ interface ZitiContext: Identity {
         override fun toString(): String = this::class.java.simpleName
     }
 
+    /**
+     * Latency of an edge router channel, as measured by periodic probes.
+     * All times are in milliseconds; percentiles are biased towards the last few minutes.
+     */
+    data class ChannelLatency(
+        val channel: String,
+        val router: String,
+        val connected: Boolean,
+        val current: Long?,
+        val count: Long,
+        val mean: Double,
+        val p50: Double,
+        val p99: Double,
+        val max: Double,
+    )
+
+    /**
+     * Periodic snapshot of network throughput of the context and its services.
+     * @param timestamp snapshot time (epoch millis)
+     */
+    data class NetworkSnapshot(
+        val timestamp: Long,
+        val total: NetworkStats,
+        val services: Map<String, NetworkStats>,
+    )
+
+    /**
+     * Stages of dialing a service.
+     */
+    enum class DialStage {
+        /** service lookup */
+        Service,
+        /** getting network session (may call the controller) */
+        Session,
+        /** selecting edge router channel (may wait for a channel to connect) */
+        Channel,
+        /** connect request/reply with the edge router, end-to-end crypto setup */
+        Handshake,
+    }
+
+    /**
+     * Timing of a single dial, delivered to [DialTraceListener]s.
+     * @param stages duration (nanos) of each stage that was reached, including the failed one
+     * @param error dial failure, `null` if the dial succeeded
+     */
+    data class DialTrace(
+        val service: String,
+        val connId: Int,
+        val router: String?,
+        val stages: Map<DialStage, Long>,
+        val totalNanos: Long,
+        val error: Throwable?,
+    )
+
+    fun interface DialTraceListener {
+        /**
+         * Called after every dial on the dialing thread; must not block.
+         */
+        fun onDial(trace: DialTrace)
+    }
+
+    /**
+     * Timing histogram summary, all values in milliseconds.
+     */
+    data class TimingStats(val count: Long, val mean: Double, val p50: Double, val p99: Double, val max: Double)
+
     fun isEnabled(): Boolean
     fun setEnabled(v: Boolean)
 
@@ -142,5 +211,54 @@ interface ZitiContext: Identity {
     suspend fun getMFARecoveryCodes(code: String, newCodes: Boolean): Array<String>
     fun getMFARecoveryCodesAsync(code: String, newCodes: Boolean): CompletionStage<Array<String>>
 
+    /**
+     * Default receive buffer size (in bytes) for connections created by this context.
+     * Can be overridden on individual connections with [java.net.StandardSocketOptions.SO_RCVBUF].
+     */
+    val receiveBufferSize: Int
+        get() = Settings.rxBufferBytes
+
+    /**
+     * Set [receiveBufferSize] for connections created after this call.
+     * Contexts that do not support it keep using the `ziti.conn.rxBufferBytes` default.
+     */
+    fun setReceiveBufferSize(size: Int) {
+        require(size > 0) { "receive buffer size must be positive" }
+    }
+
+    /**
+     * Number of received bytes currently buffered by this context's connections and not yet read by the application.
+     */
+    fun getBufferedBytes(): Long = 0
+
+    /**
+     * Current network throughput of all connections of this context.
+     */
+    fun getNetworkStats(): NetworkStats = NetworkStats(0.0, 0.0)
+
+    /**
+     * Current network throughput of connections to/from the given service, `null` if there was no traffic.
+     */
+    fun getNetworkStats(service: String): NetworkStats? = null
+
+    /**
+     * Network throughput snapshots, updated every sampling interval (`ziti.stats.interval`, 1s by default).
+     */
+    fun networkStatsUpdates(): StateFlow<NetworkSnapshot> =
+        MutableStateFlow(NetworkSnapshot(System.currentTimeMillis(), getNetworkStats(), emptyMap()))
+
+    /**
+     * Per-stage dial timing of this context.
+     */
+    fun getDialTimings(): Map<DialStage, TimingStats> = emptyMap()
+
+    fun addDialTraceListener(listener: DialTraceListener) {}
+    fun removeDialTraceListener(listener: DialTraceListener) {}
+
+    /**
+     * Latency statistics of all edge router channels of this context.
+     */
+    fun getChannelLatency(): List<ChannelLatency> = emptyList()
+
     fun dump(writer: Writer)
 }
\ No newline at end of file
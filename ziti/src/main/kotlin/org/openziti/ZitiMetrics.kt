@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.openziti
+
+import com.codahale.metrics.MetricRegistry
+import org.openziti.impl.ZitiContextImpl
+import org.openziti.net.dns.DNSServer
+
+/**
+ * Opt-in Dropwizard metrics of Ziti contexts (throughput, dial latency, queue depths, crypto time, etc.)
+ * and of the embedded [DNSServer].
+ *
+ * `metrics-core` is not exported by the SDK, applications using this API add
+ * `io.dropwizard.metrics:metrics-core` to their own dependencies.
+ * Metrics can also be enabled for every context on start with `-Dziti.metrics.enabled=true`.
+ * Context metric names start with `ziti.<identity name>.`, DNS server metric names with `ziti.dns.server.`
+ */
+object ZitiMetrics {
+
+    /**
+     * Metrics registry of the given context, or `null` if metrics are disabled.
+     */
+    @JvmStatic
+    fun getRegistry(ztx: ZitiContext): MetricRegistry? = impl(ztx).getMetrics()
+
+    /**
+     * Metrics registry of the given DNS server.
+     */
+    @JvmStatic
+    fun getRegistry(server: DNSServer): MetricRegistry = server.registry
+
+    /**
+     * Start collecting metrics of the given context into the registry. Any Dropwizard reporter attached
+     * to the registry (JMX, Slf4j, Graphite, etc.) can be used to export them.
+     */
+    @JvmStatic
+    fun enable(ztx: ZitiContext, registry: MetricRegistry) = impl(ztx).enableMetrics(registry)
+
+    /**
+     * Stop collecting metrics of the given context and remove them from its registry.
+     */
+    @JvmStatic
+    fun disable(ztx: ZitiContext) = impl(ztx).disableMetrics()
+
+    private fun impl(ztx: ZitiContext): ZitiContextImpl =
+        ztx as? ZitiContextImpl ?: throw IllegalArgumentException("metrics are not supported by ${ztx::class.java.name}")
+}
@@ -20,6 +20,8 @@ import com.goterl.lazysodium.LazySodium
 import com.goterl.lazysodium.utils.Key
 import com.goterl.lazysodium.utils.KeyPair
 import com.goterl.lazysodium.utils.SessionPair
+import org.openziti.net.ZitiProtocol.CryptoMethod
+import java.nio.ByteBuffer
 import java.util.*
 
 object Crypto {
@@ -29,6 +31,29 @@ object Crypto {
         fun initialized(): Boolean
         fun encrypt(b: ByteArray): ByteArray
         fun decrypt(b: ByteArray): ByteArray
+
+        fun encryptedSize(plainLen: Int): Int = plainLen + com.goterl.lazysodium.interfaces.SecretStream.ABYTES
+        fun decryptedSize(cipherLen: Int): Int = cipherLen - com.goterl.lazysodium.interfaces.SecretStream.ABYTES
+
+        /**
+         * Encrypt remaining bytes of [src] into [dst]; [dst] must have at least [encryptedSize] bytes remaining.
+         * Both buffers' positions are advanced.
+         */
+        fun encrypt(src: ByteBuffer, dst: ByteBuffer) {
+            val b = ByteArray(src.remaining())
+            src.get(b)
+            dst.put(encrypt(b))
+        }
+
+        /**
+         * Decrypt remaining bytes of [src] into [dst]; [dst] must have at least [decryptedSize] bytes remaining.
+         * Both buffers' positions are advanced.
+         */
+        fun decrypt(src: ByteBuffer, dst: ByteBuffer) {
+            val b = ByteArray(src.remaining())
+            src.get(b)
+            dst.put(decrypt(b))
+        }
     }
 
     internal val sodium: LazySodium
@@ -41,7 +66,11 @@ object Crypto {
         else
             sodium.cryptoKxClientSessionKeys(pair.publicKey, pair.secretKey, peerPub)
 
-    fun newStream(pair: SessionPair): SecretStream = StreamImpl(pair)
+    /**
+     * @param method negotiated [CryptoMethod], used in both directions
+     */
+    fun newStream(pair: SessionPair, method: Int = CryptoMethod.Libsodium): SecretStream =
+        NegotiatedStream(pair, method)
 
     init {
         val sl = ServiceLoader.load(CryptoLoader::class.java)
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.crypto
+
+import com.goterl.lazysodium.interfaces.SecretStream
+import com.goterl.lazysodium.utils.SessionPair
+import org.openziti.net.ZitiProtocol.CryptoMethod
+import java.nio.ByteBuffer
+
+/**
+ * Stream using the [CryptoMethod] negotiated during connection setup for both directions.
+ *
+ * The peer's stream header must match the negotiated method (libsodium secretstream headers are 24 bytes,
+ * AES-GCM headers are 12); anything else means the peers disagree and is rejected.
+ */
+internal class NegotiatedStream(private val pair: SessionPair, val method: Int): Crypto.SecretStream {
+
+    private val tx: Crypto.SecretStream = newStream()
+
+    @Volatile
+    private var rx: Crypto.SecretStream? = null
+
+    private fun newStream(): Crypto.SecretStream = when (method) {
+        CryptoMethod.AES256_GCM -> AesGcmStream(pair)
+        else -> StreamImpl(pair)
+    }
+
+    private val headerBytes = when (method) {
+        CryptoMethod.AES256_GCM -> AesGcmStream.HEADER_BYTES
+        else -> SecretStream.HEADERBYTES
+    }
+
+    override fun header(): ByteArray = tx.header()
+
+    override fun initialized(): Boolean = rx != null
+
+    override fun init(peerHeader: ByteArray) {
+        check(rx == null) { "rxState was already initialized" }
+        require(peerHeader.size == headerBytes) {
+            "stream header size[${peerHeader.size}] does not match crypto method[$method]"
+        }
+        val stream = newStream()
+        stream.init(peerHeader)
+        rx = stream
+    }
+    private fun rx(): Crypto.SecretStream = checkNotNull(rx) { "stream is not initialized" }
+
+    override fun encryptedSize(plainLen: Int) = tx.encryptedSize(plainLen)
+    override fun decryptedSize(cipherLen: Int) = rx().decryptedSize(cipherLen)
+
+    override fun encrypt(b: ByteArray): ByteArray = tx.encrypt(b)
+    override fun decrypt(b: ByteArray): ByteArray = rx().decrypt(b)
+
+    override fun encrypt(src: ByteBuffer, dst: ByteBuffer) = tx.encrypt(src, dst)
+    override fun decrypt(src: ByteBuffer, dst: ByteBuffer) = rx().decrypt(src, dst)
+}
@@ -19,6 +19,7 @@ package org.openziti.crypto
 import com.goterl.lazysodium.interfaces.SecretStream
 import com.goterl.lazysodium.utils.Key
 import com.goterl.lazysodium.utils.SessionPair
+import java.nio.ByteBuffer
 import java.security.SecureRandom
 import java.util.*
 import java.util.concurrent.atomic.AtomicReference
@@ -71,4 +72,57 @@ class StreamImpl(pair: SessionPair): Crypto.SecretStream {
         }
         return plain
     }
+
+    // lazysodium binds libsodium with plain arrays (data starting at index 0): input that is such an array
+    // (e.g. the connection's plaintext staging buffer) is used in place, anything else and the output
+    // (frame body slices never start at index 0) go through reusable per-direction scratch arrays.
+    // Encryption and decryption are each driven by a single writer/reader of the connection.
+    private var txIn = ByteArray(0)
+    private var txOut = ByteArray(0)
+    private var rxIn = ByteArray(0)
+    private var rxOut = ByteArray(0)
+
+    override fun encrypt(src: ByteBuffer, dst: ByteBuffer) {
+        val len = src.remaining()
+        val outLen = encryptedSize(len)
+        require(dst.remaining() >= outLen) { "insufficient space in output buffer" }
+
+        val input = zeroBasedArray(src) ?: grow(txIn, len).also { txIn = it; src.get(src.position(), it, 0, len) }
+        val output = grow(txOut, outLen).also { txOut = it }
+
+        if (!Crypto.sodium.cryptoSecretStreamPush(txState, output, input, len.toLong(), SecretStream.TAG_MESSAGE)) {
+            error("encryption failed")
+        }
+
+        dst.put(dst.position(), output, 0, outLen)
+        src.position(src.position() + len)
+        dst.position(dst.position() + outLen)
+    }
+
+    override fun decrypt(src: ByteBuffer, dst: ByteBuffer) {
+        val len = src.remaining()
+        val outLen = decryptedSize(len)
+        require(outLen >= 0) { "invalid cipher text" }
+        require(dst.remaining() >= outLen) { "insufficient space in output buffer" }
+
+        val input = zeroBasedArray(src) ?: grow(rxIn, len).also { rxIn = it; src.get(src.position(), it, 0, len) }
+        val output = grow(rxOut, outLen).also { rxOut = it }
+
+        if (!Crypto.sodium.cryptoSecretStreamPull(rxState, output, null, input, len.toLong())) {
+            error("decryption failure")
+        }
+
+        dst.put(dst.position(), output, 0, outLen)
+        src.position(src.position() + len)
+        dst.position(dst.position() + outLen)
+    }
+
+    companion object {
+        // backing array of the buffer if its remaining bytes start at index 0
+        private fun zeroBasedArray(b: ByteBuffer): ByteArray? =
+            if (b.hasArray() && !b.isReadOnly && b.arrayOffset() + b.position() == 0) b.array() else null
+
+        private fun grow(a: ByteArray, size: Int): ByteArray =
+            if (a.size >= size) a else ByteArray(maxOf(size, a.size * 2))
+    }
 }
\ No newline at end of file
@@ -21,43 +21,54 @@ import kotlinx.coroutines.*
 import kotlinx.coroutines.channels.onSuccess
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.selects.select
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
+import org.openziti.ZitiContext
 import org.openziti.api.ApiSession
 import org.openziti.identity.Identity
 import org.openziti.net.Channel
 import org.openziti.net.Message
+import org.openziti.net.ReceiverInbox
+import org.openziti.net.MessageBatch
 import org.openziti.net.Transport
+import org.openziti.net.TxQueue
 import org.openziti.net.ZitiProtocol
+import org.openziti.util.ConcurrentIntMap
+import org.openziti.util.Ewma
 import org.openziti.util.Logged
+import org.openziti.util.Settings
 import org.openziti.util.ZitiLog
-import java.time.Duration
-import java.time.Instant
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
 import kotlin.coroutines.CoroutineContext
+import kotlin.math.abs
+import kotlin.math.max
 import kotlin.math.min
 import kotlin.random.Random
 
-internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: () -> ApiSession?) : Channel,
-    CoroutineScope, Logged by ZitiLog("Channel[$addr]") {
+internal class ChannelImpl(override val addr: String, val id: Identity, val index: Int, val apiSession: () -> ApiSession?) : Channel,
+    CoroutineScope, Logged by ZitiLog("Channel[${channelName(addr, index)}]") {
 
     private val supervisor = SupervisorJob()
     override val coroutineContext: CoroutineContext
         get() = Dispatchers.IO + supervisor
 
     private val sequencer = AtomicInteger(1)
-    private val txChan = kotlinx.coroutines.channels.Channel<Message>(16)
+    internal val txQueue = TxQueue(Settings.txQueueBytes)
     private val waiters = ConcurrentHashMap<Int, CompletableDeferred<Message>>()
     private val synchers = ConcurrentHashMap<Int, CompletableDeferred<Unit>>()
 
-    private val recMutex = Mutex()
-    private val receivers = mutableMapOf<Int, Channel.MessageReceiver>()
+    private val receivers = ConcurrentIntMap<ReceiverInbox>()
     private val chState = MutableStateFlow<Channel.State>(Channel.State.Initial)
     private val reconnectSignal = kotlinx.coroutines.channels.Channel<Unit>()
 
     internal val latencyMeter: Timer = Timer()
+    private val latencyAvg = Ewma(LATENCY_EWMA_ALPHA)
+
+    private val sentMessages = LongAdder()
+    private val sentBytes = LongAdder()
+    private val receivedMessages = LongAdder()
+    private val receivedBytes = LongAdder()
 
     init {
         launch {
@@ -67,21 +78,52 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
         }
     }
 
-    override val name: String
-        get() = addr
+    override val name: String = channelName(addr, index)
 
     override val state: Channel.State
         get() = chState.value
 
+    internal fun latencyStats(): ZitiContext.ChannelLatency {
+        val snap = latencyMeter.snapshot
+        val connected = state is Channel.State.Connected
+        return ZitiContext.ChannelLatency(
+            channel = name,
+            router = addr,
+            connected = connected,
+            current = if (connected) getCurrentLatency() else null,
+            count = latencyMeter.count,
+            mean = snap.mean / NANOS_PER_MS,
+            p50 = snap.median / NANOS_PER_MS,
+            p99 = snap.get99thPercentile() / NANOS_PER_MS,
+            max = snap.max / NANOS_PER_MS,
+        )
+    }
+
+    override val latencyEwma: Double
+        get() = latencyAvg.value
 
-    override fun registerReceiver(id: Int, rec: Channel.MessageReceiver) = runBlocking{
-        recMutex.withLock {
-            receivers[id] = rec
-        }
+    override val connections: Int
+        get() = receivers.size
+
+    override val stats: Channel.Stats
+        get() = Channel.Stats(
+            name = name,
+            state = state,
+            connections = receivers.size,
+            queuedBytes = txQueue.queuedBytes,
+            sentMessages = sentMessages.sum(),
+            sentBytes = sentBytes.sum(),
+            receivedMessages = receivedMessages.sum(),
+            receivedBytes = receivedBytes.sum(),
+        )
+
+
+    override fun registerReceiver(id: Int, rec: Channel.MessageReceiver) {
+        receivers.put(id, ReceiverInbox(id, rec, this, Settings.rxBacklogBytes))?.close()
     }
 
-    override fun deregisterReceiver(id: Int): Unit = runBlocking {
-        recMutex.withLock { receivers.remove(id) }
+    override fun deregisterReceiver(id: Int) {
+        receivers.remove(id)?.close()
     }
 
     override fun tryConnect() {
@@ -138,10 +180,11 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
                     retryCount = 0 // successful connect -- reset backoff
 
                     val latency = System.currentTimeMillis() - latencyStart
+                    latencyAvg.update(latency.toDouble())
                     chState.value = Channel.State.Connected(latency)
 
                     v{"starting latency check"}
-                    jobs += startLatencyCheckAsync(Duration.ofMinutes(1), latencyMeter)
+                    jobs += startLatencyCheckAsync(latencyMeter)
 
                     v{"channel is active"}
                     val j = select<Deferred<Unit>> {
@@ -164,6 +207,7 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
             e(err){ "channel disconnected" }
         }
         chState.value = Channel.State.Disconnected(ex?.cause)
+        latencyAvg.reset()
 
         for (v in waiters.values) v.cancel()
         waiters.clear()
@@ -171,17 +215,11 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
         for (v in synchers.values) v.cancel()
         synchers.clear()
 
-        recMutex.withLock {
-            for((_,r) in receivers) {
-                r.receive(Result.failure(CancellationException()))
-            }
-            receivers.clear()
+        for (inbox in receivers.drain()) {
+            inbox.fail(CancellationException())
         }
 
-        var count = 0
-        while(txChan.tryReceive().isSuccess) {
-            count++
-        }
+        val count = txQueue.clear()
         if (count > 0) d{"dropped $count undelivered messages"}
     }
 
@@ -191,7 +229,7 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
 
     override suspend fun Send(msg: Message) {
         msg.seqNo = sequencer.getAndIncrement()
-        txChan.send(msg)
+        txQueue.send(msg)
     }
 
     /**
@@ -201,7 +239,7 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
         CompletableDeferred<Unit>().apply {
             msg.seqNo = sequencer.getAndIncrement()
             synchers[msg.seqNo] = this
-            txChan.send(msg)
+            txQueue.send(msg)
             await()
         }
     }
@@ -209,21 +247,36 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
     override suspend fun SendAndWait(msg: Message): Message = CompletableDeferred<Message>().let {
         msg.seqNo = sequencer.getAndIncrement()
         waiters[msg.seqNo] = it
-        txChan.send(msg)
+        txQueue.send(msg)
         it.await()
     }
 
     private suspend fun txer(peer: Transport) {
+        val batch = MessageBatch(Settings.txBatchBytes, Settings.txBatchMessages)
+        val batchSynchers = mutableListOf<CompletableDeferred<Unit>>()
         try {
-            for (m in txChan) {
-                v{"sending m = $m"}
-                val syncher = synchers.remove(m.seqNo)
+            while (true) {
+                // drain whatever is queued (within budget) and flush it with a single write
+                var next: Message? = txQueue.receive()
+                while (next != null) {
+                    val m = next
+                    v{"sending m = $m"}
+                    synchers.remove(m.seqNo)?.let { batchSynchers.add(it) }
+                    batch.add(m)
+                    next = if (batch.isFull()) null else txQueue.tryReceive()
+                }
+
                 try {
-                    m.write(peer)
-                    syncher?.complete(Unit)
+                    batch.write(peer)
+                    sentMessages.add(batch.count.toLong())
+                    sentBytes.add(batch.bytes)
+                    batchSynchers.forEach { it.complete(Unit) }
                 } catch (ex: Throwable) {
-                    waiters.remove(m.seqNo)?.completeExceptionally(ex)
-                    syncher?.completeExceptionally(ex)
+                    batch.messages.forEach { waiters.remove(it.seqNo)?.completeExceptionally(ex) }
+                    batchSynchers.forEach { it.completeExceptionally(ex) }
+                } finally {
+                    batch.clear()
+                    batchSynchers.clear()
                 }
             }
         } catch (ce: CancellationException) {
@@ -239,27 +292,35 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
         kotlin.runCatching {
             rx(peer).collect { m ->
                 v{"got m = $m"}
-                val waiter = waiters.remove(m.repTo)
-                if (waiter != null) {
-                    waiter.complete(m)
-                } else {
-                    val recId = m.getIntHeader(ZitiProtocol.Header.ConnId)
-                    recId?.let {
-                        val receiver = recMutex.withLock { receivers[it] }
-
-                        receiver?.runCatching {
-                            receive(Result.success(m))
-                        }?.onFailure {
-                            w("failed to dispatch: ${it.localizedMessage}")
-                        } ?: d{"receiver[connId=$recId] not found for $m"}
-                    }
-                }
+                receivedMessages.increment()
+                receivedBytes.add(m.wireSize().toLong())
+                dispatch(m)
             }
         }.onFailure {
             coroutineScope { cancel("rxer() is done: ${it.localizedMessage}", it) }
         }
     }
 
+    // never suspends: one slow receiver must not hold up the other connections or replies
+    internal fun dispatch(m: Message) {
+        val waiter = waiters.remove(m.repTo)
+        if (waiter != null) {
+            waiter.complete(m)
+        } else {
+            val recId = m.getIntHeader(ZitiProtocol.Header.ConnId, NO_CONN_ID)
+            if (recId != NO_CONN_ID) {
+                // delivery (and decryption) runs on the receiver's own inbox
+                val inbox = receivers[recId]
+                if (inbox == null) {
+                    d{"receiver[connId=$recId] not found for $m"}
+                    m.release()
+                } else if (!inbox.offer(m)) {
+                    receivers.remove(recId, inbox)
+                }
+            }
+        }
+    }
+
     internal fun rx(peer: Transport): Flow<Message> = flow {
         while(true) {
             Message.readMessage(peer).onSuccess {
@@ -281,23 +342,46 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
             else Long.MAX_VALUE
         }
 
-    private fun startLatencyCheckAsync(interval: Duration, timer: Timer): Deferred<Unit> = async {
+    /**
+     * Probes the edge router latency.
+     * Probing is faster right after (re)connect and after a significant latency shift,
+     * so that router selection reacts quickly.
+     */
+    private fun startLatencyCheckAsync(timer: Timer): Deferred<Unit> = async {
         try {
+            var fastProbes = Settings.latencyFastProbes
             while (true) {
-                val start = Instant.now()
+                val start = System.nanoTime()
 
+                // probe time is reflected by the router
                 val q = Message(ZitiProtocol.ContentType.LatencyType)
+                    .setHeader(ZitiProtocol.Header.LatencyProbeTime, start)
                 val r = SendAndWait(q)
+                val end = System.nanoTime()
                 check(r.content == ZitiProtocol.ContentType.ResultType) {"invalid response"}
                 check(r.getBoolHeader(ZitiProtocol.Header.ResultSuccess)) {"not successful"}
 
-                val latency = Duration.between(start, Instant.now())
-                timer.update(latency.toNanos(), TimeUnit.NANOSECONDS)
+                val sent = r.getLongHeader(ZitiProtocol.Header.LatencyProbeTime) ?: start
+                val latency = end - sent
+                timer.update(latency, TimeUnit.NANOSECONDS)
 
+                val latencyMs = latency / 1e6
+                val prev = latencyAvg.value
+                latencyAvg.update(latencyMs)
+                chState.value = Channel.State.Connected(TimeUnit.NANOSECONDS.toMillis(latency))
                 t { "latency[${this@ChannelImpl}] is now ${getCurrentLatency()}" }
-                chState.value = Channel.State.Connected(latency.toMillis())
 
-                delay(interval.toMillis())
+                if (!prev.isNaN() && abs(latencyMs - prev) > max(prev, LATENCY_SHIFT_MS)) {
+                    d { "latency shifted ${"%.1f".format(prev)} -> ${"%.1f".format(latencyMs)}ms" }
+                    fastProbes = Settings.latencyFastProbes
+                }
+
+                if (fastProbes > 0) {
+                    fastProbes--
+                    delay(Settings.latencyFastProbeInterval)
+                } else {
+                    delay(Settings.latencyProbeInterval)
+                }
             }
         } catch (cex: CancellationException) {
             d{"latency check cancelled"}
@@ -306,9 +390,16 @@ internal class ChannelImpl(val addr: String, val id: Identity, val apiSession: (
         }
     }
 
-    override fun toString(): String = "Channel[$addr]"
+    override fun toString(): String = "Channel[$name]"
 
     companion object {
+        /** first channel to a router is named by its address, additional ones get `#<index>` suffix */
+        fun channelName(addr: String, index: Int) = if (index == 0) addr else "$addr#$index"
+
         const val CONNECT_TIMEOUT: Long = 20_000
+        const val LATENCY_EWMA_ALPHA = 0.3
+        const val LATENCY_SHIFT_MS = 5.0
+        private const val NANOS_PER_MS = 1e6
+        private const val NO_CONN_ID = Int.MIN_VALUE
     }
 }
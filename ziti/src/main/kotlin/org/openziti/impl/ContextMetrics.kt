@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.Meter
+import com.codahale.metrics.Metric
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.Timer
+import org.openziti.crypto.Crypto
+import org.openziti.net.Channel
+import java.nio.ByteBuffer
+import java.nio.channels.CompletionHandler
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * SDK metrics of a single context, registered in [registry] under [prefix] (`ziti.<identity name>`).
+ *
+ * Only exists while metrics are enabled: instrumented code holds nullable references
+ * so disabled metrics cost a null check.
+ */
+internal class ContextMetrics(val registry: MetricRegistry, val prefix: String) {
+
+    val dialTime: Timer = registry.timer(name(prefix, "dial"))
+    val dialFailures: Meter = registry.meter(name(prefix, "dial", "failures"))
+    val encryptTime: Timer = registry.timer(name(prefix, "crypto", "encrypt"))
+    val decryptTime: Timer = registry.timer(name(prefix, "crypto", "decrypt"))
+
+    private val services = ConcurrentHashMap<String, ServiceMeters>()
+
+    inner class ServiceMeters(service: String) {
+        val bytesIn: Meter = registry.meter(name(prefix, "service", service, "bytes", "in"))
+        val bytesOut: Meter = registry.meter(name(prefix, "service", service, "bytes", "out"))
+        val framesIn: Meter = registry.meter(name(prefix, "service", service, "frames", "in"))
+        val framesOut: Meter = registry.meter(name(prefix, "service", service, "frames", "out"))
+        val dialTime: Timer = registry.timer(name(prefix, "service", service, "dial"))
+        val dialFailures: Meter = registry.meter(name(prefix, "service", service, "dial", "failures"))
+
+        fun received(bytes: Int) {
+            framesIn.mark()
+            bytesIn.mark(bytes.toLong())
+        }
+
+        fun sent(bytes: Int) {
+            framesOut.mark()
+            bytesOut.mark(bytes.toLong())
+        }
+    }
+
+    fun service(name: String): ServiceMeters = services.computeIfAbsent(name) { ServiceMeters(it) }
+
+    fun bind(ctx: ZitiContextImpl) {
+        gauge(name(prefix, "connections", "active")) { ctx.activeConnections }
+        gauge(name(prefix, "rx", "buffered")) { ctx.getBufferedBytes() }
+        ctx.dialTracing.stageTimers.forEach { (stage, timer) ->
+            replace(name(prefix, "dial", "stage", stage.name.lowercase()), timer)
+        }
+        ctx.channels.values.forEach { r -> r.channels.forEach { channelAdded(it) } }
+    }
+
+    fun channelAdded(ch: Channel) {
+        val chPrefix = name(prefix, "channel", ch.name)
+        gauge(name(chPrefix, "connections")) { ch.connections }
+        gauge(name(chPrefix, "tx", "bytes")) { ch.stats.sentBytes }
+        gauge(name(chPrefix, "tx", "frames")) { ch.stats.sentMessages }
+        gauge(name(chPrefix, "rx", "bytes")) { ch.stats.receivedBytes }
+        gauge(name(chPrefix, "rx", "frames")) { ch.stats.receivedMessages }
+        if (ch is ChannelImpl) {
+            gauge(name(chPrefix, "tx", "queue", "bytes")) { ch.txQueue.queuedBytes }
+            gauge(name(chPrefix, "tx", "queue", "depth")) { ch.txQueue.controlDepth + ch.txQueue.dataDepth }
+            replace(name(chPrefix, "latency"), ch.latencyMeter)
+        }
+    }
+
+    fun channelRemoved(ch: Channel) {
+        val chPrefix = name(prefix, "channel", ch.name) + "."
+        registry.removeMatching { name, _ -> name.startsWith(chPrefix) }
+    }
+
+    /**
+     * remove all metrics of this context from the registry
+     */
+    fun unbind() {
+        registry.removeMatching { name, _ -> name.startsWith("$prefix.") }
+    }
+
+    private fun <T> gauge(name: String, value: () -> T) = replace(name, Gauge { value() })
+
+    private fun replace(name: String, metric: Metric) {
+        registry.remove(name)
+        registry.register(name, metric)
+    }
+
+    fun <A> timeDial(service: String, handler: CompletionHandler<Void, in A>): CompletionHandler<Void, A> {
+        val start = System.nanoTime()
+        val svc = service(service)
+        return object : CompletionHandler<Void, A> {
+            override fun completed(result: Void?, attachment: A) {
+                val t = System.nanoTime() - start
+                dialTime.update(t, TimeUnit.NANOSECONDS)
+                svc.dialTime.update(t, TimeUnit.NANOSECONDS)
+                handler.completed(result, attachment)
+            }
+
+            override fun failed(exc: Throwable, attachment: A) {
+                dialFailures.mark()
+                svc.dialFailures.mark()
+                handler.failed(exc, attachment)
+            }
+        }
+    }
+
+    fun timed(stream: Crypto.SecretStream): Crypto.SecretStream = TimedStream(stream)
+
+    private inner class TimedStream(val s: Crypto.SecretStream) : Crypto.SecretStream by s {
+        override fun encrypt(b: ByteArray): ByteArray = encryptTime.timeSupplier { s.encrypt(b) }
+        override fun decrypt(b: ByteArray): ByteArray = decryptTime.timeSupplier { s.decrypt(b) }
+        override fun encrypt(src: ByteBuffer, dst: ByteBuffer) = encryptTime.time(Runnable { s.encrypt(src, dst) })
+        override fun decrypt(src: ByteBuffer, dst: ByteBuffer) = decryptTime.time(Runnable { s.decrypt(src, dst) })
+    }
+
+    companion object {
+        const val PREFIX = "ziti"
+    }
+}
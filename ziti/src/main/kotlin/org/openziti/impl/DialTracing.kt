@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import com.codahale.metrics.Timer
+import org.openziti.ZitiContext
+import org.openziti.ZitiContext.DialStage
+import org.openziti.util.Logged
+import org.openziti.util.ZitiLog
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+/**
+ * Stage timing of a single dial.
+ */
+internal class DialTiming(val service: String, val connId: Int) {
+    private val start = System.nanoTime()
+    private var last = start
+    internal val stages = LongArray(DialStage.values().size)
+    internal var reached = 0
+    var router: String? = null
+
+    fun mark(stage: DialStage) {
+        val now = System.nanoTime()
+        stages[stage.ordinal] = now - last
+        reached = stage.ordinal + 1
+        last = now
+    }
+
+    /**
+     * mark the stage in progress as finished (with failure)
+     */
+    fun markFailed() {
+        if (reached < stages.size) mark(DialStage.values()[reached])
+    }
+
+    val total: Long
+        get() = last - start
+}
+
+/**
+ * Per-stage dial histograms and trace listeners of a context.
+ */
+internal class DialTracing : Logged by ZitiLog() {
+
+    val stageTimers: Map<DialStage, Timer> = DialStage.values().associateWith { Timer() }
+    val totalTimer = Timer()
+
+    private val listeners = CopyOnWriteArrayList<ZitiContext.DialTraceListener>()
+
+    fun addListener(l: ZitiContext.DialTraceListener) = listeners.addIfAbsent(l)
+    fun removeListener(l: ZitiContext.DialTraceListener) = listeners.remove(l)
+
+    fun completed(timing: DialTiming, error: Throwable?) {
+        for (i in 0 until timing.reached) {
+            stageTimers[DialStage.values()[i]]?.update(timing.stages[i], TimeUnit.NANOSECONDS)
+        }
+        if (error == null) totalTimer.update(timing.total, TimeUnit.NANOSECONDS)
+
+        if (listeners.isEmpty()) return
+
+        val trace = ZitiContext.DialTrace(
+            service = timing.service,
+            connId = timing.connId,
+            router = timing.router,
+            stages = (0 until timing.reached).associate { DialStage.values()[it] to timing.stages[it] },
+            totalNanos = timing.total,
+            error = error
+        )
+        for (l in listeners) {
+            runCatching { l.onDial(trace) }.onFailure { w { "dial trace listener failed: $it" } }
+        }
+    }
+
+    fun stats(): Map<DialStage, ZitiContext.TimingStats> = stageTimers.mapValues { it.value.stats() }
+
+    companion object {
+        private const val NANOS_PER_MS = 1e6
+
+        fun Timer.stats(): ZitiContext.TimingStats {
+            val snap = snapshot
+            return ZitiContext.TimingStats(
+                count = count,
+                mean = snap.mean / NANOS_PER_MS,
+                p50 = snap.median / NANOS_PER_MS,
+                p99 = snap.get99thPercentile() / NANOS_PER_MS,
+                max = snap.max / NANOS_PER_MS,
+            )
+        }
+    }
+}
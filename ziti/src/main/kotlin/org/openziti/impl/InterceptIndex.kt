@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openziti.impl
+
+import org.openziti.api.*
+import org.openziti.net.Protocol
+import org.openziti.util.CidrTrie
+import org.openziti.util.DomainTrie
+import org.openziti.util.IPUtil
+import java.net.InetAddress
+
+/**
+ * Immutable index of service intercept addresses, rebuilt on every service update.
+ *
+ * The most specific intercept wins: exact host name, then wildcard domains (longest first),
+ * then CIDR blocks (longest prefix first). [Match.rank] allows comparing matches across indexes.
+ */
+internal class InterceptIndex private constructor(entries: Collection<Entry>) {
+
+    class Entry(val service: Service, val config: InterceptConfig) {
+        val ports = PortSet(config.portRanges)
+
+        fun accepts(port: Int, proto: Protocol?, permission: SessionType?) =
+            ports.contains(port) &&
+                    (proto == null || config.protocols.contains(proto)) &&
+                    (permission == null || service.permissions.contains(permission))
+    }
+
+    /**
+     * @param rank specificity of the match, higher is more specific
+     */
+    class Match(val entry: Entry, val rank: Int) {
+        val service: Service
+            get() = entry.service
+    }
+
+    /**
+     * Sorted, merged port ranges with binary search lookup.
+     */
+    class PortSet(ranges: Collection<PortRange>) {
+        private val lows: IntArray
+        private val highs: IntArray
+
+        init {
+            val merged = mutableListOf<PortRange>()
+            for (r in ranges.sorted()) {
+                val last = merged.lastOrNull()
+                if (last != null && r.low <= last.high + 1) {
+                    if (r.high > last.high) merged[merged.size - 1] = PortRange(last.low, r.high)
+                } else {
+                    merged.add(r)
+                }
+            }
+            lows = IntArray(merged.size) { merged[it].low }
+            highs = IntArray(merged.size) { merged[it].high }
+        }
+
+        fun contains(port: Int): Boolean {
+            var lo = 0
+            var hi = lows.size - 1
+            while (lo <= hi) {
+                val mid = (lo + hi) ushr 1
+                when {
+                    port < lows[mid] -> hi = mid - 1
+                    port > highs[mid] -> lo = mid + 1
+                    else -> return true
+                }
+            }
+            return false
+        }
+    }
+
+    private val hosts = HashMap<String, MutableList<Entry>>()
+    private val domains = DomainTrie<Entry>()
+    private val cidrs = CidrTrie<Entry>()
+    // wildcards that are not `*.<domain>`, matched the slow way
+    private val patterns = mutableListOf<Pair<DomainName, Entry>>()
+
+    val size: Int = entries.size
+
+    init {
+        for (e in entries) {
+            for (addr in e.config.addresses) {
+                when (addr) {
+                    is DNSName -> hosts.getOrPut(addr.name.lowercase()) { mutableListOf() }.add(e)
+                    is DomainName ->
+                        if (addr.name.startsWith("*.")) domains.add(addr.name.substring(2), e)
+                        else patterns.add(addr to e)
+                    is CIDRBlock -> cidrs.add(addr.cidrAddress.address, addr.bits, e)
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the most specific service intercept for [addr] (host name or IP address) on [port].
+     * @param proto required intercept protocol, any if `null`
+     * @param permission required service permission, any if `null`
+     */
+    fun find(addr: Any, port: Int, proto: Protocol? = null, permission: SessionType? = null): Match? {
+        val accepts = { e: Entry -> e.accepts(port, proto, permission) }
+        return when (addr) {
+            is String -> {
+                hosts[addr.lowercase()]?.firstOrNull(accepts)?.let { Match(it, RANK_HOST) }
+                    ?: domains.longestMatch(addr, accepts)?.let { Match(it.value, RANK_DOMAIN + it.labels) }
+                    ?: patterns.firstOrNull { (d, e) -> d.matches(addr) && accepts(e) }?.let {
+                        Match(it.second, RANK_DOMAIN)
+                    }
+                    ?: if (IPUtil.isValidIPv4(addr)) findCidr(IPUtil.toIPv4(addr), accepts) else null
+            }
+            is InetAddress -> findCidr(addr.address, accepts)
+            else -> null
+        }
+    }
+
+    private fun findCidr(addr: ByteArray, accepts: (Entry) -> Boolean) =
+        cidrs.longestMatch(addr, accepts)?.let { Match(it.value, it.bits) }
+
+    companion object {
+        // CIDR matches rank by prefix length (0-128)
+        const val RANK_DOMAIN = 1_000
+        const val RANK_HOST = Int.MAX_VALUE
+
+        val EMPTY = InterceptIndex(emptyList())
+
+        fun build(services: Collection<Service>) = InterceptIndex(
+            services.mapNotNull { s -> s.interceptConfig()?.let { Entry(s, it) } }
+        )
+    }
+}
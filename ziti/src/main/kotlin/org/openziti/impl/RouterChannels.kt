@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import org.openziti.api.ApiSession
+import org.openziti.identity.Identity
+import org.openziti.net.Channel
+import org.openziti.util.DecayingCounter
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Set of parallel channels to a single edge router.
+ *
+ * Each channel is a separate TLS connection with its own tx/rx loops; new ziti connections are striped
+ * across the connected channels so that traffic to a busy router is not limited to a single core.
+ */
+internal class RouterChannels(val addr: String, val channels: List<Channel>, private val striping: Striping) :
+    Closeable {
+
+    enum class Striping {
+        /** pick the channel with the fewest active connections */
+        Load,
+        RoundRobin,
+    }
+
+    private val next = AtomicInteger()
+    private val failures = DecayingCounter(FAILURE_HALF_LIFE)
+
+    val state: Channel.State
+        get() = channels.map { it.state }.firstOrNull { it is Channel.State.Connected } ?: channels.first().state
+
+    val latency: Long
+        get() = channels.minOf { it.getCurrentLatency() }
+
+    val stats: List<Channel.Stats>
+        get() = channels.map { it.stats }
+
+    /**
+     * select connected channel for a new connection
+     * @return `null` if none of the channels is connected
+     */
+    fun select(): Channel? {
+        val start = next.getAndIncrement()
+        var selected: Channel? = null
+        for (i in channels.indices) {
+            val ch = channels[Math.floorMod(start + i, channels.size)]
+            if (ch.state !is Channel.State.Connected) continue
+            if (striping == Striping.RoundRobin) return ch
+            // scanning from rotating position spreads concurrent dials among equally loaded channels
+            if (selected == null || ch.connections < selected.connections) selected = ch
+        }
+        return selected
+    }
+
+    /** record failed dial through this router */
+    fun dialFailed() = failures.increment()
+
+    /**
+     * current score of this router, `null` if it is not connected
+     */
+    fun score(): RouterScore? {
+        val connected = channels.filter { it.state is Channel.State.Connected }
+        if (connected.isEmpty()) return null
+
+        val latency = connected.minOf { ch ->
+            ch.latencyEwma.takeUnless { it.isNaN() } ?: ch.getCurrentLatency().toDouble()
+        }
+        var queued = 0L
+        var conns = 0
+        for (ch in connected) {
+            val st = ch.stats
+            queued += st.queuedBytes
+            conns += st.connections
+        }
+        return RouterScore(this, latency, queued, conns, failures.value)
+    }
+
+    fun tryConnect() {
+        channels.filter { it.state !is Channel.State.Connected }.forEach { it.tryConnect() }
+    }
+
+    override fun close() {
+        channels.forEach { runCatching { it.close() } }
+    }
+
+    override fun toString() = "RouterChannels[$addr x${channels.size} $striping]"
+
+    companion object {
+        const val FAILURE_HALF_LIFE = 30_000L
+
+        fun open(addr: String, id: Identity, count: Int, striping: Striping, apiSession: () -> ApiSession?) =
+            RouterChannels(addr, List(count) { Channel(addr, id, it, apiSession) }, striping)
+    }
+}
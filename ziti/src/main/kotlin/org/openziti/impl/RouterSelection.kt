@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import org.openziti.util.Logged
+import org.openziti.util.ZitiLog
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+import kotlin.random.Random
+
+/**
+ * Inputs used to rank an edge router.
+ *
+ * [score] is an effective latency in milliseconds (lower is better): probe latency (EWMA)
+ * plus penalties for queued bytes, active connections and recent dial failures.
+ */
+internal class RouterScore(
+    val router: RouterChannels,
+    val latency: Double,
+    val queuedBytes: Long,
+    val connections: Int,
+    val recentFailures: Double,
+) {
+    val score: Double = latency +
+            queuedBytes.toDouble() / QUEUE_BYTES_PER_MS +
+            connections * CONNECTION_COST_MS +
+            recentFailures * FAILURE_COST_MS
+
+    override fun toString() = "%s[score=%.1f latency=%.1f queued=%d conns=%d failures=%.2f]".format(
+        router.addr, score, latency, queuedBytes, connections, recentFailures)
+
+    companion object {
+        /** queued bytes are converted to expected wait assuming the channel drains ~64KB per ms */
+        const val QUEUE_BYTES_PER_MS = 64.0 * 1024
+        const val CONNECTION_COST_MS = 0.1
+        const val FAILURE_COST_MS = 500.0
+    }
+}
+
+/**
+ * Strategy for picking an edge router from the connected candidates.
+ */
+internal fun interface RouterSelectionStrategy {
+    fun select(candidates: List<RouterScore>): RouterScore
+
+    /** deterministic: router with the lowest score */
+    object LowestLatency : RouterSelectionStrategy {
+        override fun select(candidates: List<RouterScore>) = candidates.minBy { it.score }
+        override fun toString() = "lowest-latency"
+    }
+
+    /** pick two routers at random and use the better one; avoids herding on a single router */
+    class PowerOfTwoChoices(private val rand: Random = Random.Default) : RouterSelectionStrategy {
+        override fun select(candidates: List<RouterScore>): RouterScore {
+            if (candidates.size == 1) return candidates[0]
+            val i = rand.nextInt(candidates.size)
+            val j = (i + 1 + rand.nextInt(candidates.size - 1)) % candidates.size
+            val a = candidates[i]
+            val b = candidates[j]
+            return if (a.score <= b.score) a else b
+        }
+        override fun toString() = "power-of-two-choices"
+    }
+
+    /** random pick with probability inversely proportional to the score */
+    class WeightedRandom(private val rand: Random = Random.Default) : RouterSelectionStrategy {
+        override fun select(candidates: List<RouterScore>): RouterScore {
+            val weights = candidates.map { 1.0 / it.score.coerceAtLeast(MIN_SCORE) }
+            var r = rand.nextDouble() * weights.sum()
+            for (i in candidates.indices) {
+                r -= weights[i]
+                if (r <= 0.0) return candidates[i]
+            }
+            return candidates.last()
+        }
+        override fun toString() = "weighted-random"
+    }
+
+    companion object {
+        const val MIN_SCORE = 0.1
+
+        fun of(name: String): RouterSelectionStrategy? = when (name.lowercase()) {
+            "lowest-latency" -> LowestLatency
+            "power-of-two-choices", "p2c" -> PowerOfTwoChoices()
+            "weighted-random" -> WeightedRandom()
+            else -> null
+        }
+    }
+}
+
+/**
+ * Picks edge routers for new connections and keeps track of decisions.
+ */
+internal class RouterSelector(val strategy: RouterSelectionStrategy) : Logged by ZitiLog() {
+
+    class Selection(val strategy: RouterSelectionStrategy, val chosen: RouterScore, val candidates: List<RouterScore>) {
+        override fun toString() = "$strategy selected $chosen from ${candidates.sortedBy { it.score }}"
+    }
+
+    private val selected = ConcurrentHashMap<String, LongAdder>()
+
+    @Volatile
+    var lastSelection: Selection? = null
+        private set
+
+    /**
+     * number of times each router was selected
+     */
+    val selectionCounts: Map<String, Long>
+        get() = selected.mapValues { it.value.sum() }
+
+    /**
+     * @return selection or `null` if none of the routers is connected
+     */
+    fun select(routers: Collection<RouterChannels>): Selection? {
+        val candidates = routers.mapNotNull { it.score() }
+        if (candidates.isEmpty()) return null
+
+        val chosen = strategy.select(candidates)
+        val selection = Selection(strategy, chosen, candidates)
+        selected.computeIfAbsent(chosen.router.addr) { LongAdder() }.increment()
+        lastSelection = selection
+        d { selection.toString() }
+        return selection
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import org.openziti.api.*
+import org.openziti.util.CidrTrie
+import org.openziti.util.DomainTrie
+import org.openziti.util.IPUtil
+import java.net.InetAddress
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Process wide index of services and intercept addresses to the contexts providing them.
+ * Maintained by the contexts as they process service updates (see [sync]), so that resolving a service
+ * or an intercepted address only consults the contexts that can possibly handle it.
+ *
+ * Address lookups return candidates in context load order, exact port/protocol matching and ranking
+ * is left to the per-context [InterceptIndex].
+ */
+internal class ServiceDirectory<C : Any> {
+
+    private val lock = ReentrantReadWriteLock()
+
+    private val order = HashMap<C, Long>()
+    private var nextOrder = 0L
+
+    private val names = HashMap<String, MutableList<C>>()
+    private val registered = HashMap<C, HashMap<String, Set<InterceptAddress>>>()
+
+    private val hosts = HashMap<String, MutableList<C>>()
+    private val domains = DomainTrie<C>()
+    private val cidrs = CidrTrie<C>()
+    private val patterns = mutableListOf<Pair<DomainName, C>>()
+
+    val serviceCount: Int
+        get() = lock.read { registered.values.sumOf { it.size } }
+
+    fun attach(ctx: C) = lock.write {
+        order.getOrPut(ctx) { nextOrder++ }
+        registered.getOrPut(ctx) { HashMap() }
+        Unit
+    }
+
+    fun detach(ctx: C) = lock.write {
+        registered.remove(ctx)?.forEach { (name, addrs) ->
+            removeName(name, ctx)
+            addrs.forEach { removeAddress(it, ctx) }
+        }
+        order.remove(ctx)
+        Unit
+    }
+
+    fun put(ctx: C, service: Service) = lock.write {
+        val services = registered[ctx] ?: return@write // detached
+        val addrs = service.interceptConfig()?.addresses ?: emptySet()
+        val old = services.put(service.name, addrs)
+        if (old == null) {
+            names.getOrPut(service.name) { mutableListOf() }.add(ctx)
+            names[service.name]!!.sortBy { order[it] }
+        }
+        old?.filter { it !in addrs }?.forEach { removeAddress(it, ctx) }
+        addrs.filter { old == null || it !in old }.forEach { addAddress(it, ctx) }
+    }
+
+    /**
+     * Replace services registered for [ctx] with [services].
+     */
+    fun sync(ctx: C, services: Collection<Service>) = lock.write {
+        val current = registered[ctx] ?: return@write // detached
+        val names = services.mapTo(HashSet()) { it.name }
+        current.keys.filter { it !in names }.forEach { remove(ctx, it) }
+        services.forEach { put(ctx, it) }
+    }
+
+    fun remove(ctx: C, service: String) = lock.write {
+        val addrs = registered[ctx]?.remove(service) ?: return@write
+        removeName(service, ctx)
+        addrs.forEach { removeAddress(it, ctx) }
+    }
+
+    /**
+     * @return contexts providing service [name], in load order
+     */
+    fun contextsFor(name: String): List<C> = lock.read { names[name]?.toList() ?: emptyList() }
+
+    /**
+     * @param addrs host names or IP addresses, `null`s are ignored
+     * @return contexts with an intercept address possibly matching any of [addrs], in load order
+     */
+    fun candidates(vararg addrs: Any?): List<C> = lock.read {
+        val result = LinkedHashSet<C>()
+        for (addr in addrs) {
+            when (addr) {
+                is String -> {
+                    hosts[addr.lowercase()]?.let { result.addAll(it) }
+                    result.addAll(domains.matches(addr))
+                    patterns.forEach { (d, c) -> if (d.matches(addr)) result.add(c) }
+                    if (IPUtil.isValidIPv4(addr)) result.addAll(cidrs.matches(IPUtil.toIPv4(addr)))
+                }
+                is InetAddress -> result.addAll(cidrs.matches(addr.address))
+            }
+        }
+        if (result.size > 1) result.sortedBy { order[it] } else result.toList()
+    }
+
+    private fun removeName(name: String, ctx: C) {
+        names[name]?.let {
+            it.remove(ctx)
+            if (it.isEmpty()) names.remove(name)
+        }
+    }
+
+    private fun addAddress(addr: InterceptAddress, ctx: C) {
+        when (addr) {
+            is DNSName -> hosts.getOrPut(addr.name.lowercase()) { mutableListOf() }.add(ctx)
+            is DomainName ->
+                if (addr.name.startsWith("*.")) domains.add(addr.name.substring(2), ctx)
+                else patterns.add(addr to ctx)
+            is CIDRBlock -> cidrs.add(addr.cidrAddress.address, addr.bits, ctx)
+        }
+    }
+
+    private fun removeAddress(addr: InterceptAddress, ctx: C) {
+        when (addr) {
+            is DNSName -> {
+                val key = addr.name.lowercase()
+                hosts[key]?.let {
+                    it.remove(ctx)
+                    if (it.isEmpty()) hosts.remove(key)
+                }
+            }
+            is DomainName ->
+                if (addr.name.startsWith("*.")) domains.remove(addr.name.substring(2), ctx)
+                else patterns.remove(addr to ctx)
+            is CIDRBlock -> cidrs.remove(addr.cidrAddress.address, addr.bits, ctx)
+        }
+    }
+}
@@ -21,6 +21,7 @@ import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.future.asCompletableFuture
 import kotlinx.coroutines.selects.select
+import com.codahale.metrics.MetricRegistry
 import org.openziti.*
 import org.openziti.api.*
 import org.openziti.edge.model.CurrentIdentityEdgeRouterDetail
@@ -35,6 +36,9 @@ import org.openziti.net.routing.RouteManager
 import org.openziti.posture.PostureService
 import org.openziti.util.IPUtil
 import org.openziti.util.Logged
+import org.openziti.util.NetworkStats
+import org.openziti.util.Settings
+import org.openziti.util.TrafficCounter
 import org.openziti.util.ZitiLog
 import java.io.Writer
 import java.net.*
@@ -42,9 +46,11 @@ import java.nio.channels.AsynchronousServerSocketChannel
 import java.nio.channels.AsynchronousSocketChannel
 import java.time.OffsetDateTime
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.coroutines.CoroutineContext
 import kotlin.properties.Delegates
 import kotlin.random.Random
@@ -93,16 +99,67 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
 
     private val servicesByAddr = mutableMapOf<InetAddress, MutableMap<PortRange,Service>>()
 
+    @Volatile
+    private var interceptIndex = InterceptIndex.EMPTY
+
+    // process wide directory this context publishes its services to
+    private var directory: ServiceDirectory<ZitiContextImpl>? = null
+
     data class SessionKey (val serviceId: String, val type: DialBind)
     private val networkSessions = ConcurrentHashMap<SessionKey, Session>()
 
     private val connCounter = AtomicInteger(0)
 
-    private val connections = sortedMapOf<Int, ZitiConnection>()
+    private val connections = ConcurrentSkipListMap<Int, ZitiConnection>()
+
+    internal val traffic = TrafficCounter(null, Settings.statsWindow)
+    private val serviceTraffic = ConcurrentHashMap<String, TrafficCounter>()
+    private val networkStats = MutableStateFlow(
+        ZitiContext.NetworkSnapshot(System.currentTimeMillis(), NetworkStats(0.0, 0.0), emptyMap()))
+
+    internal fun serviceTraffic(service: String): TrafficCounter =
+        serviceTraffic.computeIfAbsent(service) { TrafficCounter(traffic, Settings.statsWindow) }
+
+    override fun getNetworkStats(): NetworkStats = traffic.stats()
+    override fun getNetworkStats(service: String): NetworkStats? = serviceTraffic[service]?.stats()
+    override fun networkStatsUpdates(): StateFlow<ZitiContext.NetworkSnapshot> = networkStats.asStateFlow()
+
+    internal fun sampleTraffic(now: Long = System.nanoTime()) {
+        traffic.sample(now)
+        serviceTraffic.values.forEach { it.sample(now) }
+        connections.values.forEach { (it as? ZitiSocketChannel)?.traffic?.sample(now) }
+
+        networkStats.value = ZitiContext.NetworkSnapshot(
+            timestamp = System.currentTimeMillis(),
+            total = traffic.stats(),
+            services = serviceTraffic.mapValues { it.value.stats() }
+        )
+    }
+
+    internal val bufferedBytes = AtomicLong()
+
+    @Volatile
+    private var rxBufferSize = Settings.rxBufferBytes
+    override val receiveBufferSize: Int
+        get() = rxBufferSize
+
+    override fun setReceiveBufferSize(size: Int) {
+        require(size > 0) { "receive buffer size must be positive" }
+        rxBufferSize = size
+    }
+
+    override fun getBufferedBytes(): Long = bufferedBytes.get()
 
     init {
         this._enabled = enabled
 
+        launch {
+            while (true) {
+                delay(Settings.statsInterval)
+                sampleTraffic()
+            }
+        }
+
         launch {
             statusCh.collect {
                 d { "${this@ZitiContextImpl} transitioned to $it" }
@@ -250,11 +307,12 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
     fun stop() {
         val copy = channels.values.toList()
         channels.clear()
+        metrics?.let { m -> copy.forEach { r -> r.channels.forEach { m.channelRemoved(it) } } }
 
         runBlocking {
             copy.forEach { ch ->
                 runCatching {
-                    d{"closing ${ch.name}"}
+                    d{"closing ${ch.addr}"}
                     ch.close()
                 }
             }
@@ -406,7 +464,13 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
         return null
     }
 
-    internal fun getDialAddress(addr: InetSocketAddress, proto: Protocol = Protocol.TCP): ZitiAddress.Dial? {
+    internal fun getDialAddress(addr: InetSocketAddress, proto: Protocol = Protocol.TCP): ZitiAddress.Dial? =
+        getDialMatch(addr, proto)?.first
+
+    /**
+     * @return dial address and specificity of the matching intercept (see [InterceptIndex.Match.rank])
+     */
+    internal fun getDialMatch(addr: InetSocketAddress, proto: Protocol = Protocol.TCP): Pair<ZitiAddress.Dial, Int>? {
         isEnabled() || return null
 
         val targetIP = getIPtarget(addr)
@@ -414,26 +478,20 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
 
         val matchAddr = targetAddr ?: targetIP ?: return null
 
-        val service = servicesById.values.firstOrNull { s ->
-            s.permissions.contains(SessionType.DIAL) &&
-            s.interceptConfig()?.let { cfg ->
-                cfg.protocols.contains(proto) &&
-                        cfg.portRanges.any { it.contains(addr.port) } &&
-                        cfg.addresses.any { it.matches(matchAddr) }
-            } ?: false
-        } ?: return null
-
-        val identity = service.interceptConfig()?.dialOptions
-            ?.get("identity")?.toString()?.run {
-                replace("\$dst_protocol", proto.name)
-                replace("\$dst_port", addr.port.toString())
-
-                if (targetAddr != null) {
-                    replace("\$dst_hostname", targetAddr)
-                } else {
-                    replace("\$dst_ip", targetIP.toString())
-                }
+        val match = interceptIndex.find(matchAddr, addr.port, proto, SessionType.DIAL) ?: return null
+        val intercept = match.entry
+        val service = intercept.service
+
+        val identity = intercept.config.dialOptions["identity"]?.toString()?.run {
+            replace("\$dst_protocol", proto.name)
+            replace("\$dst_port", addr.port.toString())
+
+            if (targetAddr != null) {
+                replace("\$dst_hostname", targetAddr)
+            } else {
+                replace("\$dst_ip", targetIP.toString())
             }
+        }
 
         return ZitiAddress.Dial(
             service = service.name,
@@ -444,7 +502,7 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
                 dstHostname = targetAddr,
                 dstIp = targetIP?.hostAddress,
                 dstPort = addr.port.toString()
-            ))
+            )) to match.rank
     }
 
     override fun getService(addr: InetSocketAddress): Service? {
@@ -472,14 +530,22 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
 
     override fun getService(addr: InetSocketAddress, timeout: Long): Service = getService(addr.hostString, addr.port, timeout)
 
-    internal fun getServiceForAddress(host: String, port: Int): Service? {
-        return servicesByName.values.find { svc ->
-            svc.interceptConfig()?.let {
-                it.addresses.any { it.matches(host) } && it.portRanges.any { r -> port in r.low..r.high }
-            } ?: false
-        }
+    internal fun getServiceForAddress(host: String, port: Int): Service? =
+        findIntercept(host, port)?.service
+
+    internal fun attachTo(dir: ServiceDirectory<ZitiContextImpl>) {
+        dir.attach(this)
+        synchronized(servicesById) { directory = dir }
+        publishServices()
     }
 
+    // services are read under the lock, so the last publisher always leaves the latest state
+    private fun publishServices() = synchronized(servicesById) {
+        directory?.sync(this, servicesById.values)
+    }
+
+    internal fun findIntercept(host: String, port: Int): InterceptIndex.Match? = interceptIndex.find(host, port)
+
     internal fun getService(host: String, port: Int, timeout: Long): Service {
         return getServiceForAddress(host, port) ?: runCatching {
             runBlocking {
@@ -499,7 +565,37 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
 
     internal fun nextConnId() = connCounter.incrementAndGet()
 
-    internal val channels = ConcurrentHashMap<String, Channel>()
+    internal val channels = ConcurrentHashMap<String, RouterChannels>()
+    internal val routerSelector = RouterSelector(Settings.routerSelection)
+    internal val dialTracing = DialTracing()
+
+    override fun getDialTimings() = dialTracing.stats()
+    override fun addDialTraceListener(listener: ZitiContext.DialTraceListener) { dialTracing.addListener(listener) }
+    override fun removeDialTraceListener(listener: ZitiContext.DialTraceListener) { dialTracing.removeListener(listener) }
+
+    @Volatile
+    internal var metrics: ContextMetrics? = null
+
+    init {
+        if (Settings.metrics) enableMetrics(MetricRegistry())
+    }
+
+    internal val activeConnections: Int
+        get() = connections.size
+
+    internal fun getMetrics(): MetricRegistry? = metrics?.registry
+
+    @Synchronized
+    internal fun enableMetrics(registry: MetricRegistry) {
+        metrics?.unbind()
+        metrics = ContextMetrics(registry, MetricRegistry.name(ContextMetrics.PREFIX, name())).also { it.bind(this) }
+    }
+
+    @Synchronized
+    internal fun disableMetrics() {
+        metrics?.unbind()
+        metrics = null
+    }
 
     internal suspend fun getChannel(ns: Session): Channel {
         val ers = ns.edgeRouters
@@ -508,31 +604,28 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
 
         val addrList = ers.map { it.supportedProtocols["tls"] }.filterNotNull()
 
-        val chMap = sortedMapOf<Long,Channel>()
-        val unconnected = mutableListOf<Channel>()
+        val routers = addrList.map { getRouterChannels(it) }
+        routers.forEach { it.tryConnect() }
 
-        for (addr in addrList) {
-            val c = getChannel(addr)
+        routerSelector.select(routers)?.chosen?.router?.select()?.let { return it }
 
-            when(val s = c.state) {
-                is Channel.State.Connected -> chMap[s.latency] = c
-                else -> unconnected.add(c)
-            }
-        }
+        val unconnected = routers.flatMap { r -> r.channels.filter { it.state !is Channel.State.Connected } }
+        val selected = connectAll(unconnected) ?: throw ZitiException(Errors.EdgeRouterUnavailable)
+        d{"selected $selected"}
+        return selected
+    }
 
-        if (chMap.isEmpty()) {
-            val selected = connectAll(unconnected) ?: throw ZitiException(Errors.EdgeRouterUnavailable)
-            d{"selected $selected"}
-            return selected
-        } else {
-            unconnected.forEach { it.tryConnect() }
-            return chMap.entries.first().value
-        }
+    /**
+     * record failed dial/bind through the given channel, it is taken into account when selecting routers
+     */
+    internal fun dialFailed(ch: Channel) {
+        channels[ch.addr]?.dialFailed()
     }
 
-    internal fun getChannel(addr: String): Channel {
+    internal fun getRouterChannels(addr: String): RouterChannels {
         return channels.computeIfAbsent(addr) {
-            Channel(it, id) { apiSession.value }
+            RouterChannels.open(it, id, Settings.channelsPerRouter, Settings.channelStriping) { apiSession.value }
+                .also { r -> metrics?.let { m -> r.channels.forEach { m.channelAdded(it) } } }
         }
     }
 
@@ -627,6 +720,9 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
             }
         }
 
+        interceptIndex = InterceptIndex.build(servicesById.values)
+        publishServices()
+
         runBlocking {
             controller.sendPostureResp(postureService.getPosture())
 
@@ -643,6 +739,13 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
         }
     }
 
+    /**
+     * track connection accepted by a hosted service, same as connections opened by this context
+     */
+    internal fun accepted(conn: ZitiSocketChannel) {
+        connections[conn.connId] = conn
+    }
+
     internal fun close(conn: ZitiSocketChannel) {
         connections.remove(conn.connId)
     }
@@ -698,6 +801,9 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
     override fun getMFARecoveryCodesAsync(code: String, newCodes: Boolean) =
         async { getMFARecoveryCodes(code, newCodes) }.asCompletableFuture()
 
+    override fun getChannelLatency(): List<ZitiContext.ChannelLatency> =
+        channels.values.flatMap { it.channels }.mapNotNull { (it as? ChannelImpl)?.latencyStats() }
+
     override fun dump(writer: Writer) {
         writer.appendLine("""
             id:         ${id.name()}
@@ -719,10 +825,28 @@ internal class ZitiContextImpl(internal val id: Identity, enabled: Boolean) : Zi
             writer.appendLine("ER[${it.name}/${it.id}] online[${it.isOnline}] ${it.supportedProtocols}")
         }
         writer.appendLine("=== Channels[${channels.size}] ===")
-        channels.forEach { (name, ch) ->
-            writer.appendLine("ER: $name status: ${ch.state}")
+        writer.appendLine("router selection: ${routerSelector.strategy} counts: ${routerSelector.selectionCounts}")
+        routerSelector.lastSelection?.let { writer.appendLine("last selection: $it") }
+        channels.forEach { (name, router) ->
+            writer.appendLine("ER: $name status: ${router.state} channels: ${router.channels.size}")
+            router.channels.forEach { ch ->
+                val st = ch.stats
+                writer.appendLine("  ${st.name} status: ${st.state} connections: ${st.connections}" +
+                        " sent: ${st.sentMessages} msgs/${st.sentBytes} bytes" +
+                        " received: ${st.receivedMessages} msgs/${st.receivedBytes} bytes")
+                (ch as? ChannelImpl)?.latencyStats()?.let { l ->
+                    writer.appendLine("    latency(ms): current: ${l.current} p50: ${"%.1f".format(l.p50)}" +
+                            " p99: ${"%.1f".format(l.p99)} max: ${"%.1f".format(l.max)} probes: ${l.count}")
+                }
+                (ch as? ChannelImpl)?.txQueue?.let { q ->
+                    writer.appendLine("    tx: $q mean wait(ms) control: ${q.controlWait.snapshot.mean / 1e6}" +
+                            " data: ${q.dataWait.snapshot.mean / 1e6}")
+                }
+            }
         }
         writer.appendLine("=== Connections[${connections.size}] ===")
+        writer.appendLine("network: ${traffic.stats()} sent[${traffic.sent}] received[${traffic.received}]")
+        writer.appendLine("buffered: ${bufferedBytes.get()} bytes (process: ${ReceiveBuffer.totalBufferedBytes} bytes)")
         connections.forEach { (id, conn) ->
             writer.appendLine("conn[$id]: $conn")
         }
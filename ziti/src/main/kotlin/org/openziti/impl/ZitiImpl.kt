@@ -25,9 +25,11 @@ import org.openziti.identity.Enroller
 import org.openziti.identity.KeyStoreIdentity
 import org.openziti.identity.findIdentityAlias
 import org.openziti.identity.loadKeystore
+import org.openziti.net.dns.DNSServer
 import org.openziti.net.dns.ZitiDNSManager
 import org.openziti.net.internal.Sockets
 import org.openziti.util.Logged
+import org.openziti.util.Settings
 import org.openziti.util.Version
 import org.openziti.util.ZitiLog
 import java.io.File
@@ -39,6 +41,7 @@ import java.security.KeyStore
 
 internal object ZitiImpl : Logged by ZitiLog() {
     internal val contexts = mutableListOf<ZitiContextImpl>()
+    internal val directory = ServiceDirectory<ZitiContextImpl>()
     internal var appId = ""
     internal var appVersion = ""
 
@@ -62,6 +65,7 @@ internal object ZitiImpl : Logged by ZitiLog() {
         val id = KeyStoreIdentity(ks, idName)
         return ZitiContextImpl(id, true).also { ctx ->
             contexts.add(ctx)
+            ctx.attachTo(directory)
             ctx.launch {
                 ztxEvents.emit(Ziti.IdentityEvent(Ziti.IdentityEventType.Loaded, ctx))
                 ctx.serviceUpdates().collect {
@@ -105,6 +109,7 @@ internal object ZitiImpl : Logged by ZitiLog() {
     fun removeContext(ctx: ZitiContext) {
         contexts.remove(ctx)
         if(ctx is ZitiContextImpl) {
+            directory.detach(ctx)
             runBlocking { ztxEvents.emit(Ziti.IdentityEvent(Ziti.IdentityEventType.Removed, ctx)) }
             ctx.destroy()
         }
@@ -129,6 +134,15 @@ internal object ZitiImpl : Logged by ZitiLog() {
 
     private fun initInternalNetworking(seamless: Boolean) {
         Sockets.init(seamless)
+        dnsServer
+    }
+
+    internal val dnsServer: DNSServer? by lazy {
+        Settings.dnsServer?.let { addr ->
+            runCatching { DNSServer(addr, Settings.dnsUpstream).start() }
+                .onFailure { e(it) { "failed to start DNS server on $addr" } }
+                .getOrNull()
+        }
     }
 
     fun enroll(ks: KeyStore, jwt: ByteArray, name: String): ZitiContext {
@@ -142,9 +156,11 @@ internal object ZitiImpl : Logged by ZitiLog() {
         return ZitiDNSManager.lookup(addr.address)?.let { getServiceFor(it, addr.port) }
     }
 
-    fun getServiceFor(host: String, port: Int): Pair<ZitiContext, Service>? = contexts.map { c ->
-            c.getServiceForAddress(host, port)?.let { Pair(c, it) }
-        }.filterNotNull().firstOrNull()
+    // most specific intercept across all contexts wins, ties go to the context loaded first
+    fun getServiceFor(host: String, port: Int): Pair<ZitiContext, Service>? = directory.candidates(host)
+        .mapNotNull { c -> c.findIntercept(host, port)?.let { c to it } }
+        .maxByOrNull { it.second.rank }
+        ?.let { (c, m) -> c to m.service }
 
     fun connect(addr: SocketAddress): ZitiConnection {
         when (addr) {
@@ -153,10 +169,8 @@ internal object ZitiImpl : Logged by ZitiLog() {
                 return ztx.dial(svc.name)
             }
             is ZitiAddress.Dial -> {
-                for (c in contexts) {
-                    c.getService(addr.service)?.let {
-                        return c.dial(addr)
-                    }
+                directory.contextsFor(addr.service).firstOrNull { it.getService(addr.service) != null }?.let {
+                    return it.dial(addr)
                 }
 
                 e { "service @[$addr] not available in any contexts" }
@@ -182,13 +196,14 @@ internal object ZitiImpl : Logged by ZitiLog() {
         emitAll(ztxEvents)
     }
 
-    fun findDialInfo(addr: InetSocketAddress): Pair<ZitiContext, SocketAddress>? {
-        for (c in contexts) {
-            val dial = c.getDialAddress(addr)
-            if (dial != null) {
-                return c to dial
-            }
-        }
-        return null
+    fun findDialInfo(addr: InetSocketAddress): Pair<ZitiContext, SocketAddress>? = dialCandidates(addr)
+        .mapNotNull { c -> c.getDialMatch(addr)?.let { c to it } }
+        .maxByOrNull { it.second.second }
+        ?.let { (c, m) -> c to m.first }
+
+    private fun dialCandidates(addr: InetSocketAddress): List<ZitiContextImpl> {
+        val ip = addr.address
+        val host = if (ip == null || addr.hostString != ip.hostAddress) addr.hostString else null
+        return directory.candidates(host, ip, ip?.let { ZitiDNSManager.lookup(it) })
     }
 }
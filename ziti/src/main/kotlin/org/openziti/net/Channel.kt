@@ -22,8 +22,8 @@ import org.openziti.identity.Identity
 import org.openziti.impl.ChannelImpl
 import java.io.Closeable
 
-internal fun Channel(addr: String, id: Identity, apiSession: () -> ApiSession?): Channel {
-    val ch = ChannelImpl(addr, id, apiSession)
+internal fun Channel(addr: String, id: Identity, index: Int = 0, apiSession: () -> ApiSession?): Channel {
+    val ch = ChannelImpl(addr, id, index, apiSession)
     ch.start()
     return ch
 }
@@ -42,8 +42,25 @@ internal interface Channel: Closeable {
         object Closed: State()
     }
 
+    data class Stats(
+        val name: String,
+        val state: State,
+        val connections: Int,
+        val queuedBytes: Long,
+        val sentMessages: Long,
+        val sentBytes: Long,
+        val receivedMessages: Long,
+        val receivedBytes: Long,
+    )
+
     interface MessageReceiver {
         suspend fun receive(msg: Result<Message>)
+
+        /**
+         * Called on the channel read loop before the message is queued for [receive].
+         * Must not block. Return `true` if the message was fully handled.
+         */
+        fun receiveNow(msg: Message): Boolean = false
     }
 
     fun tryConnect()
@@ -52,6 +69,16 @@ internal interface Channel: Closeable {
     val name: String
     val state: State
 
+    /** edge router address */
+    val addr: String
+
+    /** moving average of measured round-trip latency (ms), `NaN` if not measured yet */
+    val latencyEwma: Double
+
+    /** number of connections (receivers) currently using this channel */
+    val connections: Int
+    val stats: Stats
+
     fun deregisterReceiver(id: Int)
     fun registerReceiver(id: Int, rec: MessageReceiver)
 
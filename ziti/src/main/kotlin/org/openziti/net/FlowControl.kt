@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Credit-based flow control for Data messages of a single connection.
+ *
+ * Both sides advertise their receive window (bytes) during connection setup ([ZitiProtocol.Header.FlowControlWindowHeader]).
+ * The sender suspends in [acquire] while [txWindow] bytes are in flight; the receiver reports consumed bytes
+ * back with window update messages (Data with [ZitiProtocol.EdgeFlags.WINDOW_UPDATE] and
+ * [ZitiProtocol.Header.WindowAckHeader]) once half of its window has been consumed.
+ *
+ * Counted bytes are Data message payloads as they are sent on the wire (i.e. after encryption).
+ *
+ * Sending is only limited once [txEnabled] is set, i.e. once it is known that the peer sends window updates
+ * (the dialing side learns it from the reply to `Connect`, the hosting side from the first update it receives).
+ */
+internal class FlowControl(val txWindow: Int, val rxWindow: Int, txEnabled: Boolean) {
+
+    data class Stats(
+        val txWindow: Int,
+        val rxWindow: Int,
+        val inFlight: Long,
+        val maxInFlight: Long,
+        val bytesSent: Long,
+        val bytesAcked: Long,
+        val stalls: Long,
+        val stalledMillis: Long,
+        val updatesSent: Long,
+        val updatesReceived: Long,
+    ) {
+        /** current window utilization: 0.0 - 1.0 */
+        val utilization: Double
+            get() = if (txWindow == 0) 0.0 else inFlight.toDouble() / txWindow
+    }
+
+    private val inFlight = MutableStateFlow(0L)
+    private val maxInFlight = AtomicLong()
+    private val sent = LongAdder()
+    private val acked = LongAdder()
+    private val stalls = LongAdder()
+    private val stalledNanos = LongAdder()
+    private val updatesSent = LongAdder()
+    private val updatesReceived = LongAdder()
+
+    private val unacked = AtomicLong()
+
+    @Volatile
+    var txEnabled = txEnabled
+        private set
+
+    /**
+     * Reserve [n] bytes of send window, suspending until the peer has acknowledged enough data.
+     * A message larger than the whole window is let through when nothing else is in flight.
+     */
+    suspend fun acquire(n: Int) {
+        var stallStart = 0L
+        while (true) {
+            val current = inFlight.value
+            if (!txEnabled || current == 0L || current + n <= txWindow) {
+                if (inFlight.compareAndSet(current, current + n)) {
+                    maxInFlight.accumulateAndGet(current + n, ::maxOf)
+                    sent.add(n.toLong())
+                    if (stallStart != 0L) stalledNanos.add(System.nanoTime() - stallStart)
+                    return
+                }
+            } else {
+                if (stallStart == 0L) {
+                    stallStart = System.nanoTime()
+                    stalls.increment()
+                }
+                inFlight.first { !txEnabled || it == 0L || it + n <= txWindow }
+            }
+        }
+    }
+
+    /**
+     * Peer acknowledged [n] bytes.
+     */
+    fun ack(n: Int) {
+        txEnabled = true
+        updatesReceived.increment()
+        acked.add(n.toLong())
+        inFlight.update { maxOf(0L, it - n) }
+    }
+
+    /**
+     * Record [n] bytes delivered to the application.
+     * @return number of bytes to acknowledge to the peer now, or 0 if no update is due yet
+     */
+    fun consumed(n: Int): Int {
+        val total = unacked.addAndGet(n.toLong())
+        if (total < rxWindow / 2) return 0
+
+        val ack = unacked.getAndSet(0)
+        if (ack > 0) updatesSent.increment()
+        return ack.toInt()
+    }
+
+    val stats: Stats
+        get() = Stats(
+            txWindow = txWindow,
+            rxWindow = rxWindow,
+            inFlight = inFlight.value,
+            maxInFlight = maxInFlight.get(),
+            bytesSent = sent.sum(),
+            bytesAcked = acked.sum(),
+            stalls = stalls.sum(),
+            stalledMillis = stalledNanos.sum() / 1_000_000,
+            updatesSent = updatesSent.sum(),
+            updatesReceived = updatesReceived.sum(),
+        )
+
+    override fun toString() = "flow[inFlight=${inFlight.value}/$txWindow rx=$rxWindow]"
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.channels.Channel
+import org.openziti.net.ZitiProtocol.HEADER_LENGTH
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Reference counted wire frame.
+ *
+ * The whole frame -- fixed prefix, headers, and body -- lives in one backing buffer
+ * laid out exactly as it is on the wire, so it can be read from and written to [Transport]
+ * without intermediate copies. Prefix fields are parsed into primitive slots,
+ * headers and body are accessed as views into the backing buffer.
+ *
+ * Frames are obtained from [FramePool] with a single reference, and are returned to the pool
+ * once the last reference is [release]d. A frame that is never released is simply garbage collected.
+ */
+internal class Frame(private val pool: FramePool?, capacity: Int) {
+
+    internal var buf: ByteBuffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN)
+        private set
+
+    private val refs = AtomicInteger(0)
+    private val headers = HeaderTable()
+
+    var contentId: Int = 0
+        private set
+
+    var seq: Int = 0
+        set(v) {
+            field = v
+            buf.putInt(SEQ_OFFSET, v)
+        }
+
+    var headersLength: Int = 0
+        private set
+
+    var bodyLength: Int = 0
+        private set
+
+    val size: Int
+        get() = HEADER_LENGTH + headersLength + bodyLength
+
+    val bodyOffset: Int
+        get() = HEADER_LENGTH + headersLength
+
+    val isReleased: Boolean
+        get() = refs.get() <= 0
+
+    internal fun reset(): Frame = apply {
+        refs.set(1)
+        buf.clear()
+        contentId = 0
+        headersLength = 0
+        bodyLength = 0
+        headers.clear()
+    }
+
+    fun retain(): Frame = apply {
+        refs.updateAndGet {
+            check(it > 0) { "frame was already released" }
+            it + 1
+        }
+    }
+
+    fun release() {
+        val r = refs.decrementAndGet()
+        check(r >= 0) { "frame was already released" }
+        if (r == 0) pool?.recycle(this)
+    }
+
+    private fun checkLive() = check(!isReleased) { "frame was already released" }
+
+    /**
+     * Start building outgoing frame. Headers are appended with [putHeader] and
+     * the frame is completed by reserving body with [body].
+     */
+    fun begin(contentId: Int, seq: Int = 0): Frame = apply {
+        checkLive()
+        buf.clear()
+        buf.put(ZitiProtocol.VERSION)
+        buf.putInt(contentId)
+        buf.putInt(seq)
+        buf.putInt(0)
+        buf.putInt(0)
+        this.contentId = contentId
+        this.seq = seq
+        headersLength = 0
+        bodyLength = 0
+        headers.clear()
+    }
+
+    fun putHeader(id: Int, v: ByteArray) = putHeader(id, v, 0, v.size)
+
+    fun putHeader(id: Int, v: ByteArray, off: Int, len: Int): Frame = apply {
+        ensureCapacity(buf.position() + 8 + len)
+        buf.putInt(id)
+        buf.putInt(len)
+        headers.put(id, buf.position(), len)
+        buf.put(v, off, len)
+    }
+
+    fun putHeader(id: Int, v: Int): Frame = apply {
+        ensureCapacity(buf.position() + 12)
+        buf.putInt(id)
+        buf.putInt(4)
+        headers.put(id, buf.position(), 4)
+        buf.putInt(v)
+    }
+
+    fun putHeader(id: Int, v: Boolean): Frame = apply {
+        ensureCapacity(buf.position() + 9)
+        buf.putInt(id)
+        buf.putInt(1)
+        headers.put(id, buf.position(), 1)
+        buf.put(if (v) 1 else 0)
+    }
+
+    /**
+     * Overwrite the value of an int header that is already in the frame.
+     */
+    fun updateHeader(id: Int, v: Int): Frame = apply {
+        val h = findHeader(id)
+        require(h != -1L && lengthOf(h) == 4) { "no int header[$id]" }
+        buf.putInt(offsetOf(h), v)
+    }
+
+    /**
+     * Completes frame headers and reserves [len] bytes for the body.
+     * @return writable view of the body slot
+     */
+    fun body(len: Int): ByteBuffer {
+        prefix(len)
+        ensureCapacity(size)
+        buf.limit(size).position(0)
+        return buf.slice(bodyOffset, bodyLength)
+    }
+
+    /**
+     * Completes frame headers for the body of [len] bytes that is supplied separately (gathering write).
+     * @return view of the frame prefix and headers
+     */
+    fun prefix(len: Int): ByteBuffer {
+        checkLive()
+        require(len >= 0)
+        headersLength = buf.position() - HEADER_LENGTH
+        bodyLength = len
+        buf.putInt(HEADERS_LEN_OFFSET, headersLength)
+        buf.putInt(BODY_LEN_OFFSET, bodyLength)
+        return buf.slice(0, bodyOffset)
+    }
+
+    /**
+     * @return view of the frame body, valid until frame is released
+     */
+    fun body(): ByteBuffer {
+        checkLive()
+        return buf.slice(bodyOffset, bodyLength)
+    }
+
+    fun bodyArray(): ByteArray {
+        checkLive()
+        return ByteArray(bodyLength).also { buf.get(bodyOffset, it) }
+    }
+
+    /**
+     * @return complete wire representation of the frame
+     */
+    fun wire(): ByteBuffer {
+        checkLive()
+        return buf.slice(0, size)
+    }
+
+    internal suspend fun writeTo(t: Transport) {
+        t.write(wire())
+    }
+
+    /**
+     * @return position of the header value in the backing buffer and its length
+     * packed as `(offset shl 32) or length`, or `-1` if header is not present
+     */
+    fun findHeader(id: Int): Long {
+        checkLive()
+        return headers[id]
+    }
+
+    fun hasHeader(id: Int) = findHeader(id) != -1L
+
+    fun header(id: Int): ByteBuffer? {
+        val h = findHeader(id)
+        if (h == -1L) return null
+        return buf.slice(offsetOf(h), lengthOf(h))
+    }
+
+    fun headerArray(id: Int): ByteArray? {
+        val h = findHeader(id)
+        if (h == -1L) return null
+        return ByteArray(lengthOf(h)).also { buf.get(offsetOf(h), it) }
+    }
+
+    fun intHeader(id: Int, defaultValue: Int): Int {
+        val h = findHeader(id)
+        if (h == -1L || lengthOf(h) < 4) return defaultValue
+        return buf.getInt(offsetOf(h))
+    }
+
+    fun boolHeader(id: Int): Boolean {
+        val h = findHeader(id)
+        if (h == -1L || lengthOf(h) < 1) return false
+        return buf.get(offsetOf(h)).toInt() != 0
+    }
+
+    fun stringHeader(id: Int): String? {
+        val h = findHeader(id)
+        if (h == -1L) return null
+        return String(buf.array(), buf.arrayOffset() + offsetOf(h), lengthOf(h), StandardCharsets.UTF_8)
+    }
+
+    fun headerMap(): MutableMap<Int, ByteArray> {
+        checkLive()
+        val res = mutableMapOf<Int, ByteArray>()
+        var pos = HEADER_LENGTH
+        val end = bodyOffset
+        while (pos + 8 <= end) {
+            val key = buf.getInt(pos)
+            val len = buf.getInt(pos + 4)
+            res[key] = ByteArray(len).also { buf.get(pos + 8, it) }
+            pos += 8 + len
+        }
+        return res
+    }
+
+    private suspend fun readFrom(t: Transport) {
+        val b = buf
+        b.clear().limit(HEADER_LENGTH)
+        if (t.read(b) == -1) throw Message.EOF
+        check(!b.hasRemaining()) { "could not read complete message header, read=${b.position()} expected=$HEADER_LENGTH" }
+
+        for (i in ZitiProtocol.VERSION.indices) {
+            if (b.get(i) != ZitiProtocol.VERSION[i]) throw IllegalStateException("message prefix mismatch")
+        }
+
+        contentId = b.getInt(CONTENT_OFFSET)
+        seq = b.getInt(SEQ_OFFSET)
+        headersLength = b.getInt(HEADERS_LEN_OFFSET)
+        bodyLength = b.getInt(BODY_LEN_OFFSET)
+        check(headersLength >= 0 && bodyLength >= 0 &&
+                HEADER_LENGTH.toLong() + headersLength + bodyLength <= MAX_FRAME_SIZE) {
+            "invalid frame lengths headers=$headersLength body=$bodyLength"
+        }
+
+        ensureCapacity(size)
+        buf.limit(size).position(HEADER_LENGTH)
+        if (buf.hasRemaining()) {
+            t.read(buf)
+            check(!buf.hasRemaining()) { "failed to read frame data" }
+        }
+        buf.position(0)
+        check(index()) { "header parse failed" }
+    }
+
+    /**
+     * (Re)build header index from the headers block of the backing buffer.
+     * @return false if headers block is malformed
+     */
+    internal fun index(): Boolean {
+        headers.clear()
+        var pos = HEADER_LENGTH
+        val end = bodyOffset
+        while (pos + 8 <= end) {
+            val key = buf.getInt(pos)
+            val len = buf.getInt(pos + 4)
+            if (len < 0 || pos + 8 + len > end) return false
+            headers.put(key, pos + 8, len)
+            pos += 8 + len
+        }
+        return pos == end
+    }
+
+    private fun ensureCapacity(cap: Int) {
+        if (cap <= buf.capacity()) return
+
+        val pos = buf.position()
+        val bigger = ByteBuffer.allocate(maxOf(cap, buf.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN)
+        buf.flip()
+        bigger.put(buf)
+        bigger.position(pos)
+        buf = bigger
+    }
+
+    override fun toString() = "Frame[ct=$contentId seq=$seq headers=$headersLength body=$bodyLength]"
+
+    companion object {
+        const val CONTENT_OFFSET = 4
+        const val SEQ_OFFSET = 8
+        const val HEADERS_LEN_OFFSET = 12
+        const val BODY_LEN_OFFSET = 16
+
+        const val MAX_FRAME_SIZE = 64L * 1024 * 1024
+
+        fun offsetOf(h: Long) = h.ushr(32).toInt()
+        fun lengthOf(h: Long) = h.toInt()
+
+        internal suspend fun read(t: Transport, pool: FramePool = FramePool.Default): Frame {
+            val f = pool.acquire()
+            try {
+                f.readFrom(t)
+                return f
+            } catch (ex: Throwable) {
+                f.release()
+                throw ex
+            }
+        }
+    }
+}
+
+/**
+ * Compact open-addressing table mapping header id to location of its value in the frame buffer.
+ * Locations are packed as `(offset shl 32) or length`; offset is never zero, so zero marks an empty slot.
+ */
+internal class HeaderTable(initialCapacity: Int = 16) {
+    private var keys: IntArray
+    private var slots: LongArray
+    private var mask: Int
+
+    var size: Int = 0
+        private set
+
+    init {
+        require(initialCapacity > 0 && initialCapacity and (initialCapacity - 1) == 0) {
+            "capacity must be a power of two"
+        }
+        keys = IntArray(initialCapacity)
+        slots = LongArray(initialCapacity)
+        mask = initialCapacity - 1
+    }
+
+    fun clear() {
+        if (size > 0) {
+            slots.fill(0L)
+            size = 0
+        }
+    }
+
+    fun put(key: Int, offset: Int, len: Int) {
+        require(offset > 0)
+        if ((size + 1) * 2 > slots.size) grow()
+        insert(key, offset.toLong().shl(32) or len.toLong())
+    }
+
+    /**
+     * @return packed location of the header value or `-1` if not present
+     */
+    operator fun get(key: Int): Long {
+        var i = hash(key) and mask
+        while (true) {
+            val s = slots[i]
+            if (s == 0L) return -1L
+            if (keys[i] == key) return s
+            i = (i + 1) and mask
+        }
+    }
+
+    private fun insert(key: Int, loc: Long) {
+        var i = hash(key) and mask
+        while (slots[i] != 0L) {
+            if (keys[i] == key) { // later header replaces earlier one
+                slots[i] = loc
+                return
+            }
+            i = (i + 1) and mask
+        }
+        keys[i] = key
+        slots[i] = loc
+        size++
+    }
+
+    private fun grow() {
+        val oldKeys = keys
+        val oldSlots = slots
+        keys = IntArray(oldKeys.size * 2)
+        slots = LongArray(oldSlots.size * 2)
+        mask = slots.size - 1
+        size = 0
+        for (i in oldSlots.indices) {
+            if (oldSlots[i] != 0L) insert(oldKeys[i], oldSlots[i])
+        }
+    }
+
+    private fun hash(key: Int): Int {
+        val h = key * -0x61c88647
+        return h xor h.ushr(16)
+    }
+}
+
+/**
+ * Pool of [Frame]s with backing buffers of [frameSize] bytes.
+ * Never blocks: frames are allocated if pool is empty, and dropped if pool is full or
+ * frame has outgrown standard size.
+ */
+internal class FramePool(capacity: Int, val frameSize: Int) {
+    private val frames = Channel<Frame>(capacity)
+
+    init {
+        require(capacity > 0)
+        require(frameSize >= HEADER_LENGTH)
+    }
+
+    fun acquire(): Frame {
+        val f = frames.tryReceive().getOrNull() ?: Frame(this, frameSize)
+        return f.reset()
+    }
+
+    internal fun recycle(f: Frame) {
+        if (f.buf.capacity() == frameSize) {
+            frames.trySend(f)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_FRAME_SIZE = 64 * 1024 + 512
+        const val DEFAULT_CAPACITY = 256
+
+        val Default = FramePool(DEFAULT_CAPACITY, DEFAULT_FRAME_SIZE)
+    }
+}
@@ -38,9 +38,37 @@ interface InputChannel<A : InputChannel<A>>: Logged, CoroutineScope {
     }
     val inputSupport: InputSupport
 
-    class InputSupport(val queue: ReceiveChannel<ByteArray>) {
+    /**
+     * Read state over a queue of received data chunks, either plain arrays ([ofArrays])
+     * or [OwnedBuffer]s ([ofBuffers]).
+     */
+    class InputSupport private constructor(
+        private val arrays: ReceiveChannel<ByteArray>?,
+        private val buffers: ReceiveChannel<OwnedBuffer>?,
+    ) {
+        @Deprecated("use InputSupport.ofArrays()", ReplaceWith("InputSupport.ofArrays(queue)"))
+        constructor(queue: ReceiveChannel<ByteArray>): this(queue, null)
+
+        /**
+         * received data chunks.
+         * @throws UnsupportedOperationException if this input was created with [ofBuffers]
+         */
+        val queue: ReceiveChannel<ByteArray>
+            get() = arrays ?: throw UnsupportedOperationException("input receives owned buffers")
+
         val mut = Mutex()
-        var leftover: ByteBuffer? = null
+
+        // partially consumed chunk, owned by this input
+        private var pending: OwnedBuffer? = null
+
+        var leftover: ByteBuffer?
+            get() = pending?.buffer
+            set(value) {
+                if (value === pending?.buffer) return
+                releaseLeftover()
+                pending = value?.let { OwnedBuffer(it, null) }
+            }
+
         var readOp: Job? = null
 
         fun cancelRead() {
@@ -49,6 +77,42 @@ interface InputChannel<A : InputChannel<A>>: Logged, CoroutineScope {
             mut.unlock()
             op?.cancel("read cancelled")
         }
+
+        internal fun keepLeftover(b: OwnedBuffer) {
+            releaseLeftover()
+            pending = b
+        }
+
+        // hand over ownership of leftover data
+        internal fun takeLeftover(): OwnedBuffer? {
+            val b = pending
+            pending = null
+            return b
+        }
+
+        internal fun releaseLeftover() {
+            takeLeftover()?.release()
+        }
+
+        internal fun cancel(cause: CancellationException) {
+            arrays?.cancel(cause)
+            buffers?.cancel(cause)
+        }
+
+        internal suspend fun receive(): OwnedBuffer =
+            buffers?.receive() ?: OwnedBuffer.wrap(arrays!!.receive())
+
+        internal fun tryReceive(): OwnedBuffer? =
+            if (buffers != null) buffers.tryReceive().getOrNull()
+            else arrays!!.tryReceive().getOrNull()?.let { OwnedBuffer.wrap(it) }
+
+        companion object {
+            @JvmStatic
+            fun ofArrays(queue: ReceiveChannel<ByteArray>) = InputSupport(queue, null)
+
+            @JvmStatic
+            fun ofBuffers(queue: ReceiveChannel<OwnedBuffer>) = InputSupport(null, queue)
+        }
     }
 
     fun isClosed(): Boolean
@@ -56,14 +120,14 @@ interface InputChannel<A : InputChannel<A>>: Logged, CoroutineScope {
 
     fun shutdownInput(): A {
         isConnected() || throw NotYetConnectedException()
-        inputSupport.leftover = null
-        inputSupport.queue.cancel(SHUTDOWN)
+        inputSupport.releaseLeftover()
+        inputSupport.cancel(SHUTDOWN)
         return this as A
     }
 
     fun close() {
-        inputSupport.leftover = null
-        inputSupport.queue.cancel(CLOSE)
+        inputSupport.releaseLeftover()
+        inputSupport.cancel(CLOSE)
     }
 
     fun <A : Any?> read(dst: ByteBuffer, timeout: Long, unit: TimeUnit,
@@ -103,20 +167,14 @@ interface InputChannel<A : InputChannel<A>>: Logged, CoroutineScope {
         inputSupport.leftover?.let {
             copied = it.transferTo(slice)
             if (!it.hasRemaining()) { // no more leftover
-                inputSupport.leftover = null
+                inputSupport.releaseLeftover()
             }
         }
 
         // see if we can read more without blocking
         while(inputSupport.leftover == null) {
-            val data = inputSupport.queue.tryReceive().getOrNull() ?: break
-
-            val dataBuf = ByteBuffer.wrap(data)
-            copied += dataBuf.transferTo(slice)
-            if (dataBuf.hasRemaining()) {
-                t { "saving ${dataBuf.remaining()} for later" }
-                inputSupport.leftover = dataBuf
-            }
+            val data = inputSupport.tryReceive() ?: break
+            copied += consume(data, slice)
         }
 
         if (copied > 0) {
@@ -127,16 +185,11 @@ interface InputChannel<A : InputChannel<A>>: Logged, CoroutineScope {
 
         val rop = async {
             var count = 0L
-            var data: ByteArray? = if (to > 0) withTimeout(unit.toMillis(to)) {inputSupport.queue.receive()} else inputSupport.queue.receive()
+            var data: OwnedBuffer? = if (to > 0) withTimeout(unit.toMillis(to)) {inputSupport.receive()} else inputSupport.receive()
             while (data != null) {
-                val dataBuf = ByteBuffer.wrap(data)
-                count += dataBuf.transferTo(slice)
-                if (dataBuf.hasRemaining()) {
-                    t { "saving ${dataBuf.remaining()} for later" }
-                    inputSupport.leftover = dataBuf
-                    break
-                }
-                data = inputSupport.queue.tryReceive().getOrNull()
+                count += consume(data, slice)
+                if (inputSupport.leftover != null) break
+                data = inputSupport.tryReceive()
             }
 
             t { "transferred $count" }
@@ -170,4 +223,52 @@ interface InputChannel<A : InputChannel<A>>: Logged, CoroutineScope {
             }
         }
     }
-}
\ No newline at end of file
+
+    // copy received chunk into dsts; keep whatever does not fit as leftover, release the rest
+    private fun consume(data: OwnedBuffer, dsts: Array<out ByteBuffer>): Long {
+        val copied = data.buffer.transferTo(dsts)
+        if (data.buffer.hasRemaining()) {
+            t { "saving ${data.buffer.remaining()} for later" }
+            inputSupport.keepLeftover(data)
+        } else {
+            data.release()
+        }
+        return copied
+    }
+
+    /**
+     * Zero-copy read: take the next received chunk as is.
+     * The caller owns the returned buffer and must [release][OwnedBuffer.release] it when done.
+     *
+     * @return next chunk of data, or `null` at the end of stream
+     */
+    suspend fun readOwned(): OwnedBuffer? {
+        !isClosed() || throw ClosedChannelException()
+        isConnected() || throw NotYetConnectedException()
+        inputSupport.mut.tryLock() || throw ReadPendingException()
+
+        try {
+            return inputSupport.takeLeftover() ?: inputSupport.receive()
+        } catch (ex: ClosedReceiveChannelException) {
+            return null
+        } catch (ex: SHUTDOWN) {
+            return null
+        } catch (ex: CLOSE) {
+            throw AsynchronousCloseException()
+        } finally {
+            inputSupport.mut.unlock()
+        }
+    }
+
+    /**
+     * Zero-copy read with completion handler, see [readOwned].
+     * Completes with `null` at the end of stream.
+     */
+    fun <A : Any?> readOwned(att: A, handler: CompletionHandler<OwnedBuffer?, in A>) {
+        launch {
+            runCatching { readOwned() }
+                .onSuccess { handler.completed(it, att) }
+                .onFailure { handler.failed(it, att) }
+        }
+    }
+}
@@ -21,14 +21,54 @@ import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.nio.charset.StandardCharsets
 
-class Message(
+/**
+ * Edge protocol message.
+ *
+ * Received messages are thin adapters over a pooled [Frame]: header and body accessors read
+ * directly from the frame, and [body]/[headers] are only copied out on first access.
+ * The receiver that is done with the message can [release] it to return the frame to the pool.
+ */
+class Message internal constructor(
     val content: ContentType,
-    val body: ByteArray = ByteArray(0),
-    val headers: MutableMap<Int, ByteArray> = mutableMapOf()
+    private var frame: Frame?,
+    private var _body: ByteArray?,
+    private var _headers: MutableMap<Int, ByteArray>?,
 ) {
     var seqNo: Int = -1
     var repTo: Int = -1
 
+    constructor(
+        content: ContentType,
+        body: ByteArray = ByteArray(0),
+        headers: MutableMap<Int, ByteArray> = mutableMapOf()
+    ) : this(content, null, body, headers)
+
+    internal constructor(content: ContentType, frame: Frame) : this(content, frame, null, null) {
+        seqNo = frame.seq
+        repTo = frame.intHeader(ZitiProtocol.Header.ReplyFor, -1)
+    }
+
+    val body: ByteArray
+        get() = _body ?: liveFrame().bodyArray().also { _body = it }
+
+    val headers: MutableMap<Int, ByteArray>
+        get() = _headers ?: liveFrame().headerMap().also { _headers = it }
+
+    internal val bodySize: Int
+        get() = _body?.size ?: liveFrame().bodyLength
+
+    private fun liveFrame(): Frame = checkNotNull(frame) { "message frame was released" }
+
+    /**
+     * Return backing frame to the pool. Only [body] and [headers] that were accessed before release remain valid.
+     */
+    internal fun release() {
+        frame?.let {
+            frame = null
+            it.release()
+        }
+    }
+
     companion object {
         val EOF = Exception("transport EOF")
 
@@ -37,44 +77,12 @@ class Message(
         }
 
         internal suspend
-        fun readMessage(input: Transport) = runCatching {
-            val header = ByteBuffer.allocate(ZitiProtocol.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
-
-            val read = input.read(header)
-            if (read == -1)
-                throw EOF
-            check(!header.hasRemaining()) { "could not read complete message header, read=${header.position()} expected=${header.capacity()}" }
-            header.flip()
-
-            ByteArray(ZitiProtocol.VERSION.size).apply {
-                header.get(this)
-                if (!ZitiProtocol.VERSION.contentEquals(this)) {
-                    throw IllegalStateException("message prefix mismatch")
-                }
-            }
-
-            val ct = ContentType.fromInt(header.int)
-            val seq = header.int
-            val headersLen = header.int
-            val bodyLen = header.int
-
-            val headersBuf = ByteBuffer.allocate(headersLen).order(ByteOrder.LITTLE_ENDIAN)
-            input.read(headersBuf)
-            check(!headersBuf.hasRemaining()) { "failed to read headers data" }
-            headersBuf.flip()
-            val headers = parseHeaders(headersBuf)
-
-            val body = ByteArray(bodyLen)
-            if (bodyLen > 0) {
-                input.read(ByteBuffer.wrap(body))
-            }
-
+        fun readMessage(input: Transport, pool: FramePool = FramePool.Default) = runCatching {
             // make sure we consume whole message from the wire
             // even if content type is not supported
-            Message(ct.getOrThrow(), body, headers).apply {
-                seqNo = seq
-                repTo = getIntHeader(ZitiProtocol.Header.ReplyFor) ?: -1
-            }
+            val frame = Frame.read(input, pool)
+            val ct = ContentType.fromInt(frame.contentId).onFailure { frame.release() }
+            Message(ct.getOrThrow(), frame)
         }
 
         fun parseHeaders(buf: ByteBuffer) = mutableMapOf<Int, ByteArray>().apply {
@@ -88,30 +96,85 @@ class Message(
         }
     }
 
-    internal suspend fun write(t: Transport) {
-        val headersLength = headers.map { (_, v) -> v.size + 8 }.fold(0) { l, r -> l + r }
-        val size = ZitiProtocol.HEADER_LENGTH + body.size + headersLength
+    internal suspend fun write(t: Transport, pool: FramePool = FramePool.Default) {
+        val f = frame
+        if (f != null && _headers == null) {
+            f.seq = seqNo
+            f.writeTo(t)
+            return
+        }
+
+        val b = body
+        val out = pool.acquire()
+        try {
+            out.begin(content.id, seqNo)
+            headers.forEach { (k, v) -> out.putHeader(k, v) }
+
+            // small bodies are copied into the frame, large ones are written straight from the array
+            if (b.size <= pool.frameSize - out.buf.position()) {
+                out.body(b.size).put(b)
+                out.writeTo(t)
+            } else {
+                t.write(arrayOf(out.prefix(b.size), ByteBuffer.wrap(b)))
+            }
+        } finally {
+            out.release()
+        }
+    }
+
+    /**
+     * @return complete wire image of the message if it can be written as-is, i.e. it is backed by a frame
+     * and its headers were not modified
+     */
+    internal fun frameWire(): ByteBuffer? {
+        val f = frame ?: return null
+        if (_headers != null) return null
+        f.seq = seqNo
+        return f.wire()
+    }
+
+    /**
+     * @return number of bytes the message takes on the wire
+     */
+    internal fun wireSize(): Int {
+        frame?.let { f -> if (_headers == null) return f.size }
+        return headerBlockSize() + bodySize
+    }
 
-        val out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+    /**
+     * Hand the body over without copying; it stays valid after this message is released.
+     */
+    internal fun retainBody(): OwnedBuffer {
+        val f = frame
+        return if (f != null && _body == null) OwnedBuffer(f.retain().body(), f) else OwnedBuffer.wrap(body)
+    }
+
+    internal fun bodyBuffer(): ByteBuffer = _body?.let { ByteBuffer.wrap(it) } ?: liveFrame().body()
+
+    internal fun headerBlockSize(): Int =
+        ZitiProtocol.HEADER_LENGTH + headers.values.sumOf { it.size + 8 }
+
+    /**
+     * Write message prefix and headers for the body of [bodyLen] bytes into [out]
+     */
+    internal fun encodeHeader(out: ByteBuffer, bodyLen: Int) {
+        val hdrs = headers
         out.put(ZitiProtocol.VERSION)
         out.putInt(content.id)
         out.putInt(seqNo)
-        out.putInt(headersLength)
-        out.putInt(body.size)
-        headers.forEach {
-            out.putInt(it.key)
-            out.putInt(it.value.size)
-            out.put(it.value)
+        out.putInt(hdrs.values.sumOf { it.size + 8 })
+        out.putInt(bodyLen)
+        hdrs.forEach { (k, v) ->
+            out.putInt(k)
+            out.putInt(v.size)
+            out.put(v)
         }
-        out.put(body)
-        out.flip()
-
-        t.write(out)
     }
 
     override fun toString(): String {
+        val connId = if (_headers != null || frame != null) getIntHeader(ZitiProtocol.Header.ConnId) else null
         return "ct: %s, seq: %d, repTo: %d, connId: %d, body %d bytes"
-            .format(content, seqNo, repTo, getIntHeader(ZitiProtocol.Header.ConnId), body.size)
+            .format(content, seqNo, repTo, connId, _body?.size ?: frame?.bodyLength ?: -1)
     }
 
     fun setHeader(headerId: Int, v: String) = this.apply {
@@ -124,6 +187,12 @@ class Message(
         headers.put(headerId, b)
     }
 
+    fun setHeader(headerId: Int, v: Long): Message = this.apply {
+        val b = ByteArray(8)
+        ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).putLong(v)
+        headers.put(headerId, b)
+    }
+
     fun setHeader(headerId: Int, b: ByteArray) = this.apply {
         headers.put(headerId, b)
     }
@@ -134,18 +203,48 @@ class Message(
     }
 
     fun getStringHeader(headerId: Int): String? {
-        return headers[headerId]?.toString(StandardCharsets.UTF_8)
+        _headers?.let { return it[headerId]?.toString(StandardCharsets.UTF_8) }
+        return liveFrame().stringHeader(headerId)
     }
 
     fun getIntHeader(headerId: Int): Int? {
-        return headers[headerId]?.let {
-            ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).int
+        _headers?.let { h ->
+            return h[headerId]?.let {
+                ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).int
+            }
         }
+        val f = liveFrame()
+        val h = f.findHeader(headerId)
+        if (h == -1L || Frame.lengthOf(h) < 4) return null
+        return f.buf.getInt(Frame.offsetOf(h))
+    }
+
+    /**
+     * Allocation free variant of [getIntHeader]
+     * @return header value or [defaultValue] if header is not present
+     */
+    fun getIntHeader(headerId: Int, defaultValue: Int): Int {
+        _headers?.let { h ->
+            return h[headerId]?.let {
+                ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).int
+            } ?: defaultValue
+        }
+        return liveFrame().intHeader(headerId, defaultValue)
+    }
+
+    fun getLongHeader(headerId: Int): Long? = getHeader(headerId)?.takeIf { it.size >= 8 }?.let {
+        ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).long
     }
 
     fun getBoolHeader(headerId: Int): Boolean {
-        return headers[headerId]?.let { it[0].toInt() != 0 } ?: false
+        _headers?.let { h ->
+            return h[headerId]?.let { it[0].toInt() != 0 } ?: false
+        }
+        return liveFrame().boolHeader(headerId)
     }
 
-    fun getHeader(headerId: Int): ByteArray? = headers[headerId]
-}
\ No newline at end of file
+    fun getHeader(headerId: Int): ByteArray? {
+        _headers?.let { return it[headerId] }
+        return liveFrame().headerArray(headerId)
+    }
+}
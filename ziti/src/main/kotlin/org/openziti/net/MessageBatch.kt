@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Gather buffer for outgoing messages.
+ *
+ * Message prefixes, headers and small bodies are packed into a reusable scratch buffer,
+ * large bodies and complete frames are referenced in place, so that the whole batch is handed
+ * to the [Transport] as a single gathering write (one TLS write instead of one per message).
+ */
+internal class MessageBatch(val maxBytes: Int, val maxMessages: Int) {
+
+    private val scratch = ByteBuffer.allocate(maxBytes + COPY_THRESHOLD).order(ByteOrder.LITTLE_ENDIAN)
+    private var segmentStart = 0
+    private val segments = ArrayList<ByteBuffer>()
+
+    val messages = ArrayList<Message>()
+
+    var bytes: Long = 0
+        private set
+
+    val count: Int
+        get() = messages.size
+
+    fun isEmpty() = messages.isEmpty()
+    fun isFull() = messages.size >= maxMessages || bytes >= maxBytes
+
+    fun add(m: Message) {
+        messages.add(m)
+
+        m.frameWire()?.let {
+            bytes += it.remaining()
+            append(it)
+            return
+        }
+
+        val body = m.bodyBuffer()
+        val headerSize = m.headerBlockSize()
+        if (headerSize > scratch.remaining()) {
+            cutSegment()
+            segments.add(ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN).apply {
+                m.encodeHeader(this, body.remaining())
+                flip()
+            })
+        } else {
+            m.encodeHeader(scratch, body.remaining())
+        }
+        bytes += headerSize + body.remaining()
+        append(body)
+    }
+
+    private fun append(b: ByteBuffer) {
+        if (!b.hasRemaining()) return
+
+        if (b.remaining() <= COPY_THRESHOLD && b.remaining() <= scratch.remaining()) {
+            scratch.put(b)
+        } else {
+            cutSegment()
+            segments.add(b)
+        }
+    }
+
+    private fun cutSegment() {
+        val pos = scratch.position()
+        if (pos > segmentStart) {
+            segments.add(scratch.slice(segmentStart, pos - segmentStart))
+            segmentStart = pos
+        }
+    }
+
+    suspend fun write(t: Transport) {
+        cutSegment()
+        when (segments.size) {
+            0 -> {}
+            1 -> t.write(segments[0])
+            else -> t.write(segments.toTypedArray())
+        }
+    }
+
+    /**
+     * Reset the batch, releasing pooled frames of written messages
+     */
+    fun clear() {
+        messages.forEach { it.release() }
+        messages.clear()
+        segments.clear()
+        scratch.clear()
+        segmentStart = 0
+        bytes = 0
+    }
+
+    companion object {
+        /** bodies up to this size are copied into the gather buffer instead of being written in place */
+        const val COPY_THRESHOLD = 4 * 1024
+    }
+}
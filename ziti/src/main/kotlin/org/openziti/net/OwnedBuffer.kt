@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Chunk of received data handed over without copying.
+ *
+ * [buffer] usually is a view into a pooled frame; it is only valid until [release] is called,
+ * after which the memory is reused for other messages. Releasing is idempotent.
+ */
+class OwnedBuffer internal constructor(buffer: ByteBuffer, private val frame: Frame?) : AutoCloseable {
+
+    val buffer: ByteBuffer = buffer
+
+    private val released = AtomicBoolean(false)
+
+    private val releaseHook = AtomicReference<(() -> Unit)?>()
+
+    fun release() {
+        if (released.compareAndSet(false, true)) {
+            frame?.release()
+            releaseHook.getAndSet(null)?.invoke()
+        }
+    }
+
+    /**
+     * Register action to run when the buffer is released (used for buffer accounting).
+     * Only one action is supported.
+     */
+    internal fun onRelease(action: () -> Unit) {
+        releaseHook.set(action)
+        if (released.get()) {
+            releaseHook.getAndSet(null)?.invoke()
+        }
+    }
+
+    override fun close() = release()
+
+    override fun toString() = "OwnedBuffer[${buffer.remaining()} bytes]"
+
+    companion object {
+        fun wrap(data: ByteArray) = OwnedBuffer(ByteBuffer.wrap(data), null)
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Received data waiting to be read by the application, limited by bytes rather than chunks.
+ *
+ * Bytes are accounted from [send] until the chunk is released by the reader
+ * (fully consumed by `read()`, or released by the owner of `readOwned()` result).
+ * The producer suspends while the connection is over [budget]; a single chunk is always admitted
+ * into an empty buffer. Within budget [send] is a plain counter check, readers only signal
+ * the producer while it is actually waiting.
+ *
+ * Single producer: the connection's receive path.
+ */
+internal class ReceiveBuffer(budget: Int, private val parent: AtomicLong? = null) {
+
+    @Volatile
+    private var limit = budget
+    private val buffered = AtomicLong()
+    private val queue = Channel<OwnedBuffer>(Channel.UNLIMITED) { it.release() }
+
+    // slow path: producer waits for a change (release or budget update) while over budget
+    @Volatile
+    private var waiting = false
+    private val changes = MutableStateFlow(0L)
+
+    var budget: Int
+        get() = limit
+        set(value) {
+            require(value > 0) { "receive buffer size must be positive" }
+            limit = value
+            changes.update { it + 1 }
+        }
+
+    val channel: ReceiveChannel<OwnedBuffer>
+        get() = queue
+
+    /** bytes currently buffered by this connection */
+    val bufferedBytes: Long
+        get() = buffered.get()
+
+    suspend fun send(data: OwnedBuffer) {
+        val size = data.buffer.remaining().toLong()
+        if (!admits(size)) awaitRoom(size)
+
+        account(size)
+        data.onRelease {
+            account(-size)
+            if (waiting) changes.update { it + 1 }
+        }
+        queue.send(data)
+    }
+
+    private fun admits(size: Long): Boolean {
+        val b = buffered.get()
+        return b == 0L || b + size <= limit
+    }
+
+    private suspend fun awaitRoom(size: Long) {
+        waiting = true
+        try {
+            while (true) {
+                // read the version before re-checking, so a release in between is not missed
+                val v = changes.value
+                if (admits(size)) return
+                changes.first { it != v }
+            }
+        } finally {
+            waiting = false
+        }
+    }
+
+    private fun account(delta: Long) {
+        buffered.addAndGet(delta)
+        parent?.addAndGet(delta)
+        totalBuffered.addAndGet(delta)
+    }
+
+    fun close(cause: Throwable? = null) {
+        queue.close(cause)
+    }
+
+    companion object {
+        private val totalBuffered = AtomicLong()
+
+        /** bytes buffered by all connections in this process */
+        val totalBufferedBytes: Long
+            get() = totalBuffered.get()
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import org.openziti.util.Logged
+import org.openziti.util.ZitiLog
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Per-connection delivery stage between the channel read loop and a [Channel.MessageReceiver].
+ *
+ * [offer] never suspends: messages are queued and delivered in order by a drain coroutine
+ * that only runs while the inbox is not empty, so slow receivers (decryption, full application buffers)
+ * only hold up their own connection.
+ *
+ * The channel read loop is shared by all connections of the channel, so it is never held up here.
+ * Backpressure is applied per connection instead: flow-controlled connections only get window credit back
+ * once the application has consumed the data, which keeps their backlog within the window.
+ * Connections without flow control have nothing to slow the sender down; once their backlog goes over [limit]
+ * the connection is reset (the receiver gets an [IOException]) rather than buffering without bound.
+ */
+internal class ReceiverInbox(
+    val id: Int,
+    val receiver: Channel.MessageReceiver,
+    private val scope: CoroutineScope,
+    val limit: Long
+): Logged by ZitiLog("inbox[$id]") {
+
+    private val queue = ConcurrentLinkedQueue<Result<Message>>()
+    private val pending = AtomicInteger()
+    private val bytes = AtomicLong()
+    @Volatile private var closed = false
+    private val failed = AtomicBoolean(false)
+
+    val queuedBytes: Long
+        get() = bytes.get()
+
+    val queuedMessages: Int
+        get() = pending.get()
+
+    /**
+     * @return `false` if the message was not accepted: inbox is closed, or the backlog went over [limit]
+     */
+    fun offer(m: Message): Boolean {
+        if (closed) {
+            m.release()
+            return false
+        }
+
+        if (receiver.receiveNow(m)) {
+            m.release()
+            return true
+        }
+
+        val backlog = bytes.get() + m.bodySize
+        if (backlog > limit) {
+            w{"receive backlog[$backlog] is over limit[$limit], resetting connection"}
+            m.release()
+            fail(IOException("receive backlog is over limit[$limit]"))
+            return false
+        }
+
+        bytes.addAndGet(m.bodySize.toLong())
+        enqueue(Result.success(m))
+        return true
+    }
+
+    /**
+     * Stop delivering messages; queued messages are dropped.
+     */
+    fun close() {
+        closed = true
+    }
+
+    /**
+     * Drop queued messages and deliver [err] to the receiver (only the first failure is delivered).
+     */
+    fun fail(err: Throwable) {
+        closed = true
+        if (failed.compareAndSet(false, true)) {
+            enqueue(Result.failure(err))
+        }
+    }
+
+    private fun enqueue(r: Result<Message>) {
+        queue.add(r)
+        if (pending.getAndIncrement() == 0) {
+            scope.launch { drain() }
+        }
+    }
+
+    private suspend fun drain() {
+        do {
+            val r = checkNotNull(queue.poll())
+            r.onSuccess { m ->
+                bytes.addAndGet(-m.bodySize.toLong())
+
+                if (closed) {
+                    m.release()
+                } else {
+                    runCatching { receiver.receive(r) }.onFailure {
+                        w{"failed to dispatch: ${it.localizedMessage}"}
+                    }
+                }
+            }.onFailure {
+                runCatching { receiver.receive(r) }
+            }
+        } while (pending.decrementAndGet() > 0)
+    }
+}
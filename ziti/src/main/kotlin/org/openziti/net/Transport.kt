@@ -51,6 +51,11 @@ internal interface Transport : Closeable {
     suspend fun connect(timeout: Long)
 
     suspend fun write(buf: ByteBuffer)
+
+    /**
+     * gathering write: all buffers are written completely, in order
+     */
+    suspend fun write(bufs: Array<ByteBuffer>)
     suspend fun read(buf: ByteBuffer, full: Boolean = true): Int
 
     class TLS(host: String, port: Int, val sslContext: SSLContext) : Transport {
@@ -77,6 +82,10 @@ internal interface Transport : Closeable {
             socket.writeCompletely(buf)
         }
 
+        override suspend fun write(bufs: Array<ByteBuffer>) {
+            socket.writeCompletely(bufs)
+        }
+
         override suspend fun read(buf: ByteBuffer, full: Boolean): Int {
             var res = socket.readSuspend(buf)
             if (res == -1) return res
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import com.codahale.metrics.Timer
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.Header
+import java.util.concurrent.TimeUnit
+
+/**
+ * Transmit queue shared by all connections multiplexed over a channel.
+ *
+ * Control messages go into a priority lane that is always drained first.
+ * Data messages are queued per connection and dequeued round-robin across connections,
+ * so a single bulk sender cannot starve the others. The data lane is limited by [maxBytes]:
+ * senders suspend while it is full (a single message larger than the budget is admitted into an empty lane).
+ *
+ * A control message for a connection that still has data queued is put behind that data,
+ * so that e.g. `StateClosed` never overtakes the last bytes of the connection.
+ *
+ * Single consumer: [receive]/[tryReceive] must be called from one coroutine at a time.
+ */
+internal class TxQueue(val maxBytes: Long) {
+    enum class Lane {
+        Control,
+        Data,
+    }
+
+    private class Entry(val msg: Message, val lane: Lane, val size: Int, val queuedAt: Long)
+
+    private val lock = Any()
+    private val control = ArrayDeque<Entry>()
+    private val data = LinkedHashMap<Int, ArrayDeque<Entry>>()
+    private var dataCount = 0
+    private val dataBytes = MutableStateFlow(0L)
+    private val readable = Channel<Unit>(Channel.CONFLATED)
+
+    /** time messages spend in the queue, per lane */
+    val controlWait = Timer()
+    val dataWait = Timer()
+
+    val controlDepth: Int
+        get() = synchronized(lock) { control.size }
+
+    val dataDepth: Int
+        get() = synchronized(lock) { dataCount }
+
+    val queuedBytes: Long
+        get() = dataBytes.value
+
+    /**
+     * number of connections with data waiting to be sent
+     */
+    val activeConnections: Int
+        get() = synchronized(lock) { data.size }
+
+    suspend fun send(m: Message) {
+        val connId = m.getIntHeader(Header.ConnId, NO_CONN)
+
+        if (m.content != ContentType.Data) {
+            synchronized(lock) {
+                val connQueue = if (connId == NO_CONN) null else data[connId]
+                if (connQueue != null) {
+                    connQueue.addLast(Entry(m, Lane.Data, 0, System.nanoTime()))
+                    dataCount++
+                } else {
+                    control.addLast(Entry(m, Lane.Control, 0, System.nanoTime()))
+                }
+            }
+        } else {
+            val size = m.wireSize()
+            reserve(size)
+            synchronized(lock) {
+                data.getOrPut(connId) { ArrayDeque() }.addLast(Entry(m, Lane.Data, size, System.nanoTime()))
+                dataCount++
+            }
+        }
+        readable.trySend(Unit)
+    }
+
+    private suspend fun reserve(size: Int) {
+        while (true) {
+            val current = dataBytes.value
+            if (current == 0L || current + size <= maxBytes) {
+                if (dataBytes.compareAndSet(current, current + size)) return
+            } else {
+                dataBytes.first { it == 0L || it + size <= maxBytes }
+            }
+        }
+    }
+
+    fun tryReceive(): Message? {
+        val e = synchronized(lock) {
+            control.removeFirstOrNull() ?: pollData()
+        } ?: return null
+
+        val waited = System.nanoTime() - e.queuedAt
+        when (e.lane) {
+            Lane.Control -> controlWait.update(waited, TimeUnit.NANOSECONDS)
+            Lane.Data -> dataWait.update(waited, TimeUnit.NANOSECONDS)
+        }
+        if (e.size > 0) dataBytes.update { it - e.size }
+        return e.msg
+    }
+
+    suspend fun receive(): Message {
+        while (true) {
+            tryReceive()?.let { return it }
+            readable.receive()
+        }
+    }
+
+    // round-robin: take the head of the first connection queue and move that connection to the back
+    private fun pollData(): Entry? {
+        val it = data.entries.iterator()
+        if (!it.hasNext()) return null
+
+        val (connId, q) = it.next()
+        val e = q.removeFirst()
+        it.remove()
+        if (q.isNotEmpty()) data[connId] = q
+        dataCount--
+        return e
+    }
+
+    /**
+     * drop all queued messages.
+     * Only bytes of the dropped messages are given back: concurrent senders that reserved their budget
+     * but have not enqueued yet (and a receiver that has not accounted its message yet) stay consistent.
+     * @return number of dropped messages
+     */
+    fun clear(): Int {
+        val dropped = synchronized(lock) {
+            val entries = ArrayList<Entry>(control.size + dataCount)
+            entries.addAll(control)
+            data.values.forEach { entries.addAll(it) }
+            control.clear()
+            data.clear()
+            dataCount = 0
+            dataBytes.update { it - entries.sumOf { e -> e.size.toLong() } }
+            entries
+        }
+        dropped.forEach { it.msg.release() }
+        return dropped.size
+    }
+
+    override fun toString() =
+        "TxQueue[control=$controlDepth data=$dataDepth bytes=$queuedBytes/$maxBytes]"
+
+    companion object {
+        private const val NO_CONN = Int.MIN_VALUE
+    }
+}
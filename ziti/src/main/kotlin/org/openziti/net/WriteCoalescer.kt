@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import java.nio.ByteBuffer
+
+/**
+ * Coalesces small writes of a single connection.
+ *
+ * Writers copy into a pending buffer and return; a flusher coroutine hands the accumulated bytes to [emit]
+ * one chunk (up to [chunkSize] bytes) at a time. While a chunk is being emitted (encrypted and queued),
+ * subsequent writes accumulate, so back-to-back small writes turn into a single chunk without adding
+ * latency to an idle connection.
+ *
+ * Writers are expected to be serialized by the caller; [emit] is only called from the flusher.
+ */
+internal class WriteCoalescer(
+    private val scope: CoroutineScope,
+    private val chunkSize: Int,
+    private val emit: suspend (ByteBuffer) -> Unit,
+) {
+    private data class Progress(val swaps: Long, val flushed: Long, val error: Throwable?)
+
+    private val lock = Any()
+    private var pending = ByteBuffer.allocate(chunkSize)
+    private var spare = ByteBuffer.allocate(chunkSize)
+    private var flushing = false
+    private var accepted = 0L
+    private val progress = MutableStateFlow(Progress(0, 0, null))
+
+    /**
+     * Copy all remaining bytes of [srcs], suspending while the pending buffer is full.
+     * @return number of bytes accepted
+     * @throws Throwable error of a previous [emit]
+     */
+    suspend fun write(srcs: List<ByteBuffer>): Long {
+        var total = 0L
+        while (srcs.any { it.hasRemaining() }) {
+            progress.value.error?.let { throw it }
+
+            var start = false
+            val swaps = progress.value.swaps
+            val n = synchronized(lock) {
+                val before = pending.position()
+                gather(srcs, pending)
+                val n = pending.position() - before
+                accepted += n
+                if (n > 0 && !flushing) {
+                    flushing = true
+                    start = true
+                }
+                n
+            }
+            total += n
+
+            if (start) scope.launch { flushLoop() }
+            if (n == 0) {
+                // pending buffer is full: wait for the flusher to take it
+                progress.first { it.swaps != swaps || it.error != null }
+            }
+        }
+        return total
+    }
+
+    /**
+     * Wait until everything written so far has been emitted.
+     */
+    suspend fun flush() {
+        val target = synchronized(lock) { accepted }
+        val p = progress.first { it.flushed >= target || it.error != null }
+        p.error?.let { throw it }
+    }
+
+    private suspend fun flushLoop() {
+        while (true) {
+            val chunk = synchronized(lock) {
+                if (pending.position() == 0) {
+                    flushing = false
+                    return
+                }
+                val full = pending
+                pending = spare.clear()
+                spare = full
+                full.flip()
+            }
+            progress.update { it.copy(swaps = it.swaps + 1) }
+
+            val len = chunk.remaining()
+            try {
+                emit(chunk)
+            } catch (ex: Throwable) {
+                synchronized(lock) {
+                    pending.clear()
+                    flushing = false
+                }
+                progress.update { it.copy(swaps = it.swaps + 1, error = ex) }
+                return
+            }
+            progress.update { it.copy(flushed = it.flushed + len) }
+        }
+    }
+
+    companion object {
+        /**
+         * fill [dst] from [srcs] in order, advancing their positions
+         */
+        fun gather(srcs: List<ByteBuffer>, dst: ByteBuffer) {
+            for (b in srcs) {
+                if (!dst.hasRemaining()) break
+                val n = minOf(b.remaining(), dst.remaining())
+                if (n == 0) continue
+                dst.put(b.slice(b.position(), n))
+                b.position(b.position() + n)
+            }
+        }
+    }
+}
@@ -16,6 +16,9 @@
 
 package org.openziti.net
 
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
 /**
  *
  */
@@ -59,9 +62,12 @@ object ZitiProtocol {
 
         class UnknownContent(val id: Int): Exception("unknown content type: $id")
         companion object {
+            private val byId = entries.sortedBy { it.id }.toTypedArray()
+            private val ids = IntArray(byId.size) { byId[it].id }
+
             fun fromInt(i: Int): Result<ContentType> {
-                val v = ContentType.entries.find { it.id == i }
-                return v?.let { Result.success(it) } ?: Result.failure(UnknownContent(i))
+                val idx = ids.binarySearch(i)
+                return if (idx >= 0) Result.success(byId[idx]) else Result.failure(UnknownContent(i))
             }
         }
     }
@@ -104,15 +110,31 @@ object ZitiProtocol {
         const val SupportsInspectHeader = 1023
         const val SupportsBindSuccessHeader = 1024
         const val ConnectionMarkerHeader = 1025
+
+        // SDK flow control (see FlowControl)
+        const val FlowControlWindowHeader = 1200
+        const val WindowAckHeader = 1201
     }
 
     object CryptoMethod {
         const val Libsodium = 0
         const val AES256_GCM = 1
+
+        /**
+         * crypto method advertised in [Header.CryptoMethodHeader], `null` if not present
+         */
+        internal fun of(m: Message): Int? = m.getHeader(Header.CryptoMethodHeader)?.let {
+            when (it.size) {
+                1 -> it[0].toInt()
+                4 -> ByteBuffer.wrap(it).order(ByteOrder.LITTLE_ENDIAN).int
+                else -> null
+            }
+        }
     }
 
     object EdgeFlags {
         const val FIN = 0x1
+        const val WINDOW_UPDATE = 0x100
     }
 
 }
\ No newline at end of file
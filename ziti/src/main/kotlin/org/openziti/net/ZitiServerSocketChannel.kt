@@ -31,6 +31,8 @@ import org.openziti.impl.ZitiContextImpl
 import org.openziti.net.ZitiProtocol.Header
 import org.openziti.net.nio.FutureHandler
 import org.openziti.util.Logged
+import org.openziti.util.Settings
+import org.openziti.util.TrafficCounter
 import org.openziti.util.ZitiLog
 import java.io.IOException
 import java.lang.Math.min
@@ -141,6 +143,7 @@ internal class ZitiServerSocketChannel(val ctx: ZitiContextImpl): AsynchronousSe
                 }
                 keyPair?.let {
                     setHeader(Header.PublicKeyHeader, it.publicKey.asBytes)
+                    setHeader(Header.CryptoMethodHeader, Settings.cryptoMethod)
                 }
             }
 
@@ -189,6 +192,8 @@ internal class ZitiServerSocketChannel(val ctx: ZitiContextImpl): AsynchronousSe
                 val ch = channel!!
 
                 val child = ZitiSocketChannel(ctx)
+                child.meters = ctx.metrics?.service(localAddr.service)
+                child.traffic = TrafficCounter(ctx.serviceTraffic(localAddr.service), Settings.statsWindow)
                 d{"accepting child conn[${child.connId}] on parent[$connId]"}
                 val connIdBuf = ByteArray(4)
                 ByteBuffer.wrap(connIdBuf).order(ByteOrder.LITTLE_ENDIAN).putInt(child.connId)
@@ -197,17 +202,28 @@ internal class ZitiServerSocketChannel(val ctx: ZitiContextImpl): AsynchronousSe
                 dialSuccess.setHeader(Header.ConnId, connId)
                 dialSuccess.setHeader(Header.ReplyFor, req.seqNo)
 
+                // dialer offered flow control: accept it, and start limiting sends once the dialer acknowledges data
+                req.getIntHeader(Header.FlowControlWindowHeader)?.takeIf { Settings.flowControl }?.let {
+                    dialSuccess.setHeader(Header.FlowControlWindowHeader, Settings.flowControlWindow)
+                    child.flow = FlowControl(it, Settings.flowControlWindow, txEnabled = false)
+                }
+
                 keyPair?.let { kp ->
                     val sessKeys = req.getHeader(Header.PublicKeyHeader)?.let {
                         Crypto.kx(kp, Key.fromBytes(it), true)
                     }
-                    child.setupCrypto(sessKeys)
+                    // use the dialer's method if we prefer it too, and tell the dialer
+                    val method = ZitiProtocol.CryptoMethod.of(req)?.takeIf { it == Settings.cryptoMethod }
+                        ?: ZitiProtocol.CryptoMethod.Libsodium
+                    if (sessKeys != null) dialSuccess.setHeader(Header.CryptoMethodHeader, method)
+                    child.setupCrypto(sessKeys, method)
                 } ?: child.setupCrypto(null)
 
                 val startMsg = ch.SendAndWait(dialSuccess)
 
                 if (startMsg.content == ZitiProtocol.ContentType.StateConnected) {
                     child.state.set(ZitiSocketChannel.State.connected)
+                    ctx.accepted(child)
                     ch.registerReceiver(child.connId, child)
                     child.channel.complete(ch)
                     child.startCrypto(ch)
@@ -23,13 +23,17 @@ import com.goterl.lazysodium.utils.SessionPair
 import kotlinx.coroutines.*
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import org.openziti.Errors
 import org.openziti.ZitiAddress
 import org.openziti.ZitiConnection
+import org.openziti.ZitiContext.DialStage
 import org.openziti.ZitiException
 import org.openziti.api.Session
 import org.openziti.api.SessionType
 import org.openziti.crypto.Crypto
+import org.openziti.impl.ContextMetrics
+import org.openziti.impl.DialTiming
 import org.openziti.impl.ZitiContextImpl
 import org.openziti.net.ZitiProtocol.CryptoMethod
 import org.openziti.net.ZitiProtocol.Header
@@ -37,6 +41,9 @@ import org.openziti.net.nio.FutureHandler
 import org.openziti.net.nio.readSuspend
 import org.openziti.net.nio.writeCompletely
 import org.openziti.util.Logged
+import org.openziti.util.NetworkStats
+import org.openziti.util.Settings
+import org.openziti.util.TrafficCounter
 import org.openziti.util.ZitiLog
 import java.io.ByteArrayOutputStream
 import java.io.Externalizable
@@ -46,6 +53,7 @@ import java.net.ConnectException
 import java.net.InetSocketAddress
 import java.net.SocketAddress
 import java.net.SocketOption
+import java.net.StandardSocketOptions
 import java.nio.ByteBuffer
 import java.nio.channels.*
 import java.nio.channels.CompletionHandler
@@ -55,7 +63,6 @@ import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.text.Charsets.UTF_8
-import kotlinx.coroutines.channels.Channel as Chan
 
 internal class ZitiSocketChannel private constructor(internal val ctx: ZitiContextImpl, val connId: Int):
     AsynchronousSocketChannel(Provider),
@@ -83,6 +90,14 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
 
     }
 
+    internal companion object {
+        /**
+         * Dial failures that count against the edge router: transport errors and invalid replies.
+         * Service rejections ([ConnectException]) and end-to-end crypto errors are not the router's fault.
+         */
+        fun isRouterFailure(ex: Throwable) = ex is IOException && ex !is ConnectException
+    }
+
     internal enum class State {
         initial,
         connecting,
@@ -97,20 +112,62 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
     val channel = CompletableDeferred<Channel>()
 
     val seq = AtomicInteger(1)
+    // sequenced messages must reach the channel in seq order
+    private val seqLock = Mutex()
     lateinit var serviceName: String
     var remote: SocketAddress? = null
     var local: ZitiAddress? = null
-    val receiveQueue = Chan<ByteArray>(16)
-    override val inputSupport = InputChannel.InputSupport(receiveQueue)
+    val receiveBuffer = ReceiveBuffer(ctx.receiveBufferSize, ctx.bufferedBytes)
+    override val inputSupport = InputChannel.InputSupport.ofBuffers(receiveBuffer.channel)
     val crypto = CompletableDeferred<Crypto.SecretStream?>()
 
+    @Volatile
+    internal var flow: FlowControl? = null
+
+    // per-service metrics, only when metrics are enabled
+    internal var meters: ContextMetrics.ServiceMeters? = null
+
+    // created once the service is known, counts into the service and context totals
+    @Volatile
+    internal var traffic: TrafficCounter? = null
+
+    override fun getNetworkStats(): NetworkStats = traffic?.stats() ?: NetworkStats(0.0, 0.0)
+
+    /**
+     * flow control statistics, `null` if flow control is not used on this connection
+     */
+    val flowControlStats: FlowControl.Stats?
+        get() = flow?.stats
+
     override fun getLocalAddress(): SocketAddress? = local
 
     override fun getRemoteAddress(): SocketAddress? = remote
 
-    override fun supportedOptions(): MutableSet<SocketOption<*>> = mutableSetOf()
-    override fun <T : Any> getOption(name: SocketOption<T>?): T? = null
-    override fun <T : Any?> setOption(name: SocketOption<T>?, value: T): AsynchronousSocketChannel = this
+    /**
+     * received bytes buffered by this connection and not yet read by the application
+     */
+    val bufferedBytes: Long
+        get() = receiveBuffer.bufferedBytes
+
+    override fun supportedOptions(): MutableSet<SocketOption<*>> = mutableSetOf(StandardSocketOptions.SO_RCVBUF)
+
+    @Suppress("UNCHECKED_CAST")
+    override fun <T : Any> getOption(name: SocketOption<T>?): T? = when (name) {
+        StandardSocketOptions.SO_RCVBUF -> receiveBuffer.budget as T
+        else -> null
+    }
+
+    override fun <T : Any?> setOption(name: SocketOption<T>?, value: T): AsynchronousSocketChannel {
+        when (name) {
+            StandardSocketOptions.SO_RCVBUF -> {
+                val size = value as? Int ?: throw IllegalArgumentException("invalid value for $name")
+                if (size <= 0) throw IllegalArgumentException("invalid value for $name: $size")
+                receiveBuffer.budget = size
+            }
+            else -> {}
+        }
+        return this
+    }
 
     override fun isClosed() = !isOpen
     override fun isConnected() = isOpen && state.get() != State.initial
@@ -122,12 +179,17 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
     internal suspend fun <A: Any?> connectInternal(addr: ZitiAddress.Dial, attachment: A, handler: CompletionHandler<Void, in A>) {
         d{"connecting to $serviceName"}
 
+        val timing = DialTiming(serviceName, connId)
         val (service,ns) = ctx.runCatching {
             val service = getService(serviceName) ?: throw ZitiException(Errors.ServiceNotAvailable)
+            timing.mark(DialStage.Service)
             val ns = getNetworkSession(service, SessionType.DIAL)
+            timing.mark(DialStage.Session)
             service to ns
         }.getOrElse {
             w{"failed to connect: $it"}
+            timing.markFailed()
+            ctx.dialTracing.completed(timing, it)
             channel.completeExceptionally(it)
             close()
             handler.failed(it, attachment)
@@ -137,11 +199,15 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
         d{"using session[${ns.id}]"}
         val ch = ctx.runCatching { getChannel(ns) }.getOrElse {
             w{"failed to connect: $it"}
+            timing.markFailed()
+            ctx.dialTracing.completed(timing, it)
             channel.completeExceptionally(it)
             close()
             handler.failed(it, attachment)
             return
         }
+        timing.mark(DialStage.Channel)
+        timing.router = ch.name
 
         d{"using ch[$ch]"}
         channel.complete(ch)
@@ -153,10 +219,15 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
                 handler.failed(AsynchronousCloseException(), attachment)
             } else {
                 w{"failed to connect: $it"}
+                timing.markFailed()
+                ctx.dialTracing.completed(timing, it)
+                if (isRouterFailure(it)) ctx.dialFailed(ch)
                 close()
                 handler.failed(it, attachment)
             }
         }.onSuccess {
+            timing.mark(DialStage.Handshake)
+            ctx.dialTracing.completed(timing, null)
             handler.completed(null, attachment)
         }
     }
@@ -187,7 +258,10 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
 
         serviceName = addr.service
 
-        val conOp = ctx.launch { connectInternal(addr, attachment, handler) }
+        meters = ctx.metrics?.service(serviceName)
+        traffic = TrafficCounter(ctx.serviceTraffic(serviceName), Settings.statsWindow)
+        val h = ctx.metrics?.timeDial(serviceName, handler) ?: handler
+        val conOp = ctx.launch { connectInternal(addr, attachment, h) }
         conOp.invokeOnCompletion { ex ->
             if (ex != null)
                 e{" failed to connect: $ex"}
@@ -238,16 +312,16 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
 
     override fun shutdownOutput(): AsynchronousSocketChannel {
         if (state.get() == State.connected && sentFin.compareAndSet(false, true)) {
-            val finMsg = Message(ZitiProtocol.ContentType.Data).apply {
-                setHeader(Header.ConnId, connId)
-                setHeader(Header.FlagsHeader, ZitiProtocol.EdgeFlags.FIN)
-                setHeader(Header.SeqHeader, seq.getAndIncrement())
-            }
             d("sending FIN")
 
             ctx.async {
+                flushWrites()
+                val finMsg = Message(ZitiProtocol.ContentType.Data).apply {
+                    setHeader(Header.ConnId, connId)
+                    setHeader(Header.FlagsHeader, ZitiProtocol.EdgeFlags.FIN)
+                }
                 val ch = channel.getCompleted()
-                ch.SendSynch(finMsg)
+                seqLock.withLock { ch.SendSynch(finMsg.setHeader(Header.SeqHeader, seq.getAndIncrement())) }
             }.invokeOnCompletion { ex ->
                 ex.takeIf { it !is CancellationException }?.let { e ->
                     w{ "failed to send FIN message: $e" }
@@ -268,6 +342,7 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
                     }
                     d("closing conn = ${this.connId}")
                     ctx.async {
+                        flushWrites()
                         val ch = channel.getCompleted()
                         ch.SendSynch(closeMsg)
                     }.invokeOnCompletion {
@@ -332,23 +407,12 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
         val srcs = _srcs.slice(offset until offset + length)
 
         val wop = ctx.async {
-            var sent = 0L
-            for (b in srcs) {
-                var data = ByteArray(b.remaining())
-                b.get(data)
-
-                crypto.getCompleted()?.let {
-                    data = it.encrypt(data)
-                }
-
-                val dataMessage = Message(ZitiProtocol.ContentType.Data, data)
-                dataMessage.setHeader(Header.ConnId, connId)
-                dataMessage.setHeader(Header.SeqHeader, seq.getAndIncrement())
-                sent += data.size
-                v("sending $dataMessage")
-                channel.await().Send(dataMessage)
+            val crypt = crypto.getCompleted()
+            if (crypt != null && Settings.coalesceWrites) {
+                coalescer(crypt).write(srcs)
+            } else {
+                writeDirect(srcs, crypt)
             }
-            sent
         }
         writeOp = wop
 
@@ -369,48 +433,171 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
         }
     }
 
+    // source buffers are packed into as few messages as the max payload allows,
+    // large buffers are sent as a stream of bounded messages
+    private suspend fun writeDirect(srcs: List<ByteBuffer>, crypt: Crypto.SecretStream?): Long {
+        var sent = 0L
+        val maxPayload = Settings.maxWritePayload.toLong()
+        var remaining = srcs.sumOf { it.remaining().toLong() }
+
+        while (remaining > 0) {
+            val len = minOf(remaining, maxPayload).toInt()
+            val frame = dataFrame()
+            if (crypt == null) {
+                WriteCoalescer.gather(srcs, frame.body(len))
+            } else {
+                // plaintext is staged, cipher text is written into the frame body slot
+                val plain = plainBuffer(len)
+                WriteCoalescer.gather(srcs, plain)
+                crypt.encrypt(plain.flip(), frame.body(crypt.encryptedSize(len)))
+            }
+            remaining -= len
+            sent += len
+            sendData(frame)
+        }
+        return sent
+    }
+
+    @Volatile
+    private var writeCoalescer: WriteCoalescer? = null
+
+    // only called while holding writeMutex
+    private fun coalescer(crypt: Crypto.SecretStream): WriteCoalescer =
+        writeCoalescer ?: WriteCoalescer(ctx, Settings.maxWritePayload) { chunk ->
+            val frame = dataFrame()
+            crypt.encrypt(chunk, frame.body(crypt.encryptedSize(chunk.remaining())))
+            sendData(frame)
+        }.also { writeCoalescer = it }
+
+    /**
+     * wait for coalesced writes to be sent, before FIN or close
+     */
+    private suspend fun flushWrites() {
+        writeCoalescer?.runCatching { flush() }?.onFailure {
+            d{"failed to flush pending writes: $it"}
+        }
+    }
+
+    private fun dataFrame(): Frame = FramePool.Default.acquire()
+        .begin(ZitiProtocol.ContentType.Data.id)
+        .putHeader(Header.ConnId, connId)
+        .putHeader(Header.SeqHeader, 0) // assigned in sendData()
+
+    private suspend fun sendData(frame: Frame) {
+        val dataMessage = Message(ZitiProtocol.ContentType.Data, frame)
+        flow?.acquire(dataMessage.bodySize)
+        meters?.sent(dataMessage.bodySize)
+        traffic?.sent(dataMessage.bodySize)
+        v("sending $dataMessage")
+        sendSequenced {
+            frame.updateHeader(Header.SeqHeader, it)
+            dataMessage
+        }
+    }
+
+    // sequence number is taken only when the message is queued, i.e. after waiting for flow control window
+    private suspend fun sendSequenced(msg: (Int) -> Message) {
+        val ch = channel.await()
+        seqLock.withLock { ch.Send(msg(seq.getAndIncrement())) }
+    }
+
+    // plaintext staging buffer for encrypted writes, only used while holding writeMutex
+    private var plainBuf: ByteBuffer? = null
+
+    private fun plainBuffer(len: Int): ByteBuffer {
+        val b = plainBuf?.takeIf { it.capacity() >= len } ?: ByteBuffer.allocate(len).also { plainBuf = it }
+        return b.clear().limit(len)
+    }
+
     override suspend fun receive(msg: Result<Message>) {
         msg.onSuccess {
-            receiveMsg(it)
+            try {
+                receiveMsg(it)
+            } catch (ce: CancellationException) {
+                throw ce
+            } catch (ex: Exception) {
+                // e.g. crypto mismatch or corrupted data: connection can't recover, let the reader know
+                w{"failed to process $it: $ex"}
+                receiveBuffer.close(ex as? IOException ?: IOException(ex.message, ex))
+                close()
+            } finally {
+                it.release()
+            }
         }.onFailure {
+            // e.g. reset for going over the receive backlog, let the reader see why
+            if (it is IOException) receiveBuffer.close(it)
             close()
         }
     }
 
+    override fun receiveNow(msg: Message): Boolean {
+        if (msg.content != ZitiProtocol.ContentType.Data) return false
+
+        val flags = msg.getIntHeader(Header.FlagsHeader, 0)
+        if (flags and ZitiProtocol.EdgeFlags.WINDOW_UPDATE == 0) return false
+
+        val f = flow
+        if (f == null) {
+            d{"unexpected window update"}
+        } else {
+            val n = msg.getIntHeader(Header.WindowAckHeader, 0)
+            t{"window update: $n bytes acknowledged"}
+            f.ack(n)
+        }
+        return true
+    }
+
+    private suspend fun sendWindowUpdate(n: Int) {
+        val update = Message(ZitiProtocol.ContentType.Data)
+            .setHeader(Header.ConnId, connId)
+            .setHeader(Header.FlagsHeader, ZitiProtocol.EdgeFlags.WINDOW_UPDATE)
+            .setHeader(Header.WindowAckHeader, n)
+        sendSequenced { update.setHeader(Header.SeqHeader, it) }
+    }
+
     private suspend fun receiveMsg(msg: Message) {
         v{"conn[$connId] received message[${msg.content}] with seq[${msg.getIntHeader(Header.SeqHeader)}]"}
         when (msg.content) {
             ZitiProtocol.ContentType.StateClosed -> {
                 t{"signaling EOF"}
-                receiveQueue.close()
+                receiveBuffer.close()
                 deregister()
                 close()
             }
             ZitiProtocol.ContentType.Data -> {
-                t{"received data(${msg.body.size} bytes) for conn[$connId]"}
-                if (msg.body.size > 0) {
+                t{"received data(${msg.bodySize} bytes) for conn[$connId]"}
+                meters?.received(msg.bodySize)
+                traffic?.received(msg.bodySize)
+                if (msg.bodySize > 0) {
                     val crypt = crypto.await()
-                    if (crypt != null) {
-                        if (crypt.initialized()) {
-                            receiveQueue.send(crypt.decrypt(msg.body))
-                        } else {
-                            crypt.init(msg.body)
-                            d { "crypto init finished conn[$connId]" }
+                    if (crypt != null && !crypt.initialized()) {
+                        runCatching { crypt.init(msg.body) }.onFailure {
+                            throw IOException("end-to-end crypto setup failed: ${it.message}", it)
                         }
+                        d { "crypto init finished conn[$connId]" }
                     } else {
-                        receiveQueue.send(msg.body)
+                        // frame body is handed to the reader as is, or decrypted into a pooled frame
+                        val data = if (crypt == null) msg.retainBody() else {
+                            val cipher = msg.bodyBuffer()
+                            val frame = FramePool.Default.acquire().begin(ZitiProtocol.ContentType.Data.id)
+                            val plain = frame.body(crypt.decryptedSize(cipher.remaining()))
+                            runCatching { crypt.decrypt(cipher, plain) }.onFailure { frame.release() }.getOrThrow()
+                            OwnedBuffer(plain.flip(), frame)
+                        }
+                        receiveBuffer.send(data)
+                        flow?.consumed(msg.bodySize)?.takeIf { it > 0 }?.let { sendWindowUpdate(it) }
                     }
                 }
                 msg.getIntHeader(Header.FlagsHeader)?.let {
                     if (it and ZitiProtocol.EdgeFlags.FIN != 0 ) {
                         d("received FIN")
-                        receiveQueue.close()
+                        receiveBuffer.close()
                     }
                 }
             }
             else -> {
                 e{"unexpected message type[${msg.content}] for conn[$connId]"}
-                receiveQueue.close(IllegalStateException())
+                receiveBuffer.close(IllegalStateException())
                 deregister()
                 close()
             }
@@ -438,7 +625,10 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
             setHeader(Header.SeqHeader, 0)
             kp?.let {
                 setHeader(Header.PublicKeyHeader, it.publicKey.asBytes)
-                setHeader(Header.CryptoMethodHeader, CryptoMethod.Libsodium)
+                setHeader(Header.CryptoMethodHeader, Settings.cryptoMethod)
+            }
+            if (Settings.flowControl) {
+                setHeader(Header.FlowControlWindowHeader, Settings.flowControlWindow)
             }
 
             remote.identity?.let {
@@ -474,10 +664,18 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
                 if (kp == null || peerPk == null) {
                     crypto.complete(null)
                 } else {
-                    setupCrypto(Crypto.kx(kp, Key.fromBytes(peerPk), false))
+                    // hosting side confirms the method it accepted; older peers don't, use libsodium then
+                    val method = CryptoMethod.of(reply)?.takeIf { it == Settings.cryptoMethod } ?: CryptoMethod.Libsodium
+                    setupCrypto(Crypto.kx(kp, Key.fromBytes(peerPk), false), method)
                     startCrypto(ch)
                 }
 
+                // peer echoed flow control window: it will send window updates
+                reply.getIntHeader(Header.FlowControlWindowHeader)?.takeIf { Settings.flowControl }?.let {
+                    d{"flow control enabled: peer window[$it]"}
+                    flow = FlowControl(it, Settings.flowControlWindow, txEnabled = true)
+                }
+
                 local = ZitiAddress.Session(ns.id, serviceName, null, null)
                 d("network connection established ${ns.id}/$connId")
                 state.set(State.connected)
@@ -493,8 +691,11 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
         }
     }
 
-    internal fun setupCrypto(keys: SessionPair?) {
-        crypto.complete(keys?.let { Crypto.newStream(it) })
+    internal fun setupCrypto(keys: SessionPair?, method: Int = CryptoMethod.Libsodium) {
+        crypto.complete(keys?.let {
+            val stream = Crypto.newStream(it, method)
+            ctx.metrics?.timed(stream) ?: stream
+        })
     }
 
     internal suspend fun startCrypto(ch: Channel) {
@@ -515,6 +716,8 @@ internal class ZitiSocketChannel private constructor(internal val ctx: ZitiConte
             State.connected -> s.append("($local -> $remote)")
             else -> {}
         }
+        s.append(" buffered=${receiveBuffer.bufferedBytes}/${receiveBuffer.budget}")
+        flow?.let { s.append(" ").append(it) }
         return s.toString()
     }
 }
\ No newline at end of file
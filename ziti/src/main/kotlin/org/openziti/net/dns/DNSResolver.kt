@@ -20,8 +20,38 @@ import java.io.Writer
 import java.net.InetAddress
 
 interface DNSResolver {
+
+    /**
+     * Utilization of the address pool backing Ziti host names.
+     *
+     * @property capacity number of assignable addresses
+     * @property hosts addresses assigned to service host names
+     * @property wildcards addresses assigned to host names in wildcard domains
+     * @property wildcardLimit max number of [wildcards] before least recently used ones are recycled
+     * @property recycled released addresses waiting to be reused
+     * @property evictions wildcard addresses recycled because the pool was full
+     * @property expirations wildcard addresses recycled after being unused for too long
+     */
+    data class PoolStats(
+        val capacity: Int,
+        val hosts: Int,
+        val wildcards: Int,
+        val wildcardLimit: Int,
+        val recycled: Int,
+        val evictions: Long,
+        val expirations: Long,
+    ) {
+        val utilization: Double
+            get() = if (capacity == 0) 0.0 else (hosts + wildcards).toDouble() / capacity
+    }
+
     fun resolve(hostname: String): InetAddress?
     fun lookup(addr: InetAddress): String?
 
+    /**
+     * Address pool statistics; resolvers without an address pool report an empty one.
+     */
+    fun getPoolStats(): PoolStats = PoolStats(0, 0, 0, 0, 0, 0, 0)
+
     fun dump(writer: Writer)
 }
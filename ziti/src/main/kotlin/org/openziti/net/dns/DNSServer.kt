@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net.dns
+
+import com.codahale.metrics.Meter
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+import com.codahale.metrics.Timer
+import org.openziti.Ziti
+import org.openziti.net.dns.DnsMessage.Companion.setU16
+import org.openziti.net.dns.DnsMessage.Companion.setU32
+import org.openziti.net.dns.DnsMessage.Companion.u16
+import org.openziti.util.Logged
+import org.openziti.util.ZitiLog
+import java.io.Closeable
+import java.io.IOException
+import java.net.Inet4Address
+import java.net.Inet6Address
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.net.StandardProtocolFamily
+import java.nio.ByteBuffer
+import java.nio.channels.*
+import java.security.SecureRandom
+import java.util.concurrent.TimeUnit
+
+/**
+ * Lightweight DNS server answering A, AAAA and PTR queries for Ziti host names from [resolver],
+ * so that processes not using the SDK resolver (and the platform resolver) can reach Ziti services.
+ *
+ * Other names are forwarded to [upstream] (refused if there is none) and the responses cached for their TTL.
+ * Queries are forwarded over the transport they were received on, so that clients retrying truncated answers
+ * over TCP get complete ones; TCP queries share a single pipelined upstream connection.
+ * UDP and TCP are served on the same port by a single non-blocking selector thread.
+ *
+ * Metrics (see [org.openziti.ZitiMetrics.getRegistry]): `ziti.dns.server.queries`,
+ * query latency timers `.local`, `.cached` and `.upstream`, `.failures` (upstream timeouts and errors).
+ */
+class DNSServer internal constructor(
+    private val bindAddress: InetSocketAddress,
+    private val upstream: InetSocketAddress?,
+    private val resolver: DNSResolver,
+    internal val registry: MetricRegistry,
+) : Closeable {
+
+    @JvmOverloads
+    constructor(
+        bindAddress: InetSocketAddress,
+        upstream: InetSocketAddress? = null,
+        resolver: DNSResolver = Ziti.getDNSResolver(),
+    ) : this(bindAddress, upstream, resolver, MetricRegistry())
+
+    /** TTL (seconds) of answers for Ziti names */
+    var answerTtl = 60
+
+    /** how long to wait for upstream response (ms) */
+    var upstreamTimeout = 2_000L
+
+    /** max number of cached upstream responses */
+    var cacheSize = 1024
+
+    /** max time (seconds) an upstream response is cached regardless of its TTL */
+    var cacheMaxTtl = 300
+
+    private val queries: Meter = registry.meter(name(PREFIX, "queries"))
+    private val localTime: Timer = registry.timer(name(PREFIX, "local"))
+    private val cachedTime: Timer = registry.timer(name(PREFIX, "cached"))
+    private val upstreamTime: Timer = registry.timer(name(PREFIX, "upstream"))
+    private val failures: Meter = registry.meter(name(PREFIX, "failures"))
+
+    private val selector = Selector.open()
+    private lateinit var udp: DatagramChannel
+    private lateinit var tcp: ServerSocketChannel
+    private var upstreamCh: DatagramChannel? = null
+    private var upstreamTcp: UpstreamTcp? = null
+    private var thread: Thread? = null
+
+    @Volatile
+    private var running = false
+
+    // everything below is only touched by the selector thread
+
+    private val pending = HashMap<Int, Pending>()
+    private val cache = object : LinkedHashMap<DnsMessage.Question, CacheEntry>(64, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<DnsMessage.Question, CacheEntry>?) =
+            size > cacheSize
+    }
+    private val tcpConns = mutableSetOf<TcpConn>()
+    private val rand = SecureRandom()
+    private val rxBuf = ByteBuffer.allocate(0xFFFF)
+
+    private interface Client {
+        fun reply(msg: ByteArray)
+    }
+
+    private inner class UdpClient(val addr: SocketAddress) : Client {
+        override fun reply(msg: ByteArray) {
+            udp.send(ByteBuffer.wrap(msg), addr)
+        }
+    }
+
+    private class Pending(val query: DnsMessage, val client: Client, val start: Long, val deadline: Long)
+
+    private class CacheEntry(val response: DnsMessage, val stored: Long, val expires: Long) {
+        fun reply(id: Int, now: Long): ByteArray {
+            val msg = response.raw.copyOf()
+            msg.setU16(0, id)
+            // age the TTLs
+            val age = TimeUnit.NANOSECONDS.toSeconds(now - stored).toInt()
+            for (r in response.answers + response.extra) {
+                if (r.type != DnsMessage.TYPE_OPT) msg.setU32(r.ttlOffset, maxOf(0, r.ttl - age))
+            }
+            return msg
+        }
+    }
+
+    val localAddress: InetSocketAddress
+        get() = udp.localAddress as InetSocketAddress
+
+    fun start(): DNSServer {
+        check(thread == null) { "already started" }
+        udp = DatagramChannel.open(family(bindAddress)).bind(bindAddress)
+        udp.configureBlocking(false)
+        udp.register(selector, SelectionKey.OP_READ)
+
+        // same port for TCP, matters when binding to an ephemeral port
+        tcp = ServerSocketChannel.open().bind(InetSocketAddress(bindAddress.address, localAddress.port))
+        tcp.configureBlocking(false)
+        tcp.register(selector, SelectionKey.OP_ACCEPT)
+
+        upstream?.let {
+            val ch = DatagramChannel.open(family(it)).connect(it)
+            ch.configureBlocking(false)
+            ch.register(selector, SelectionKey.OP_READ)
+            upstreamCh = ch
+        }
+
+        running = true
+        thread = Thread(::run, "ziti-dns-server").apply {
+            isDaemon = true
+            start()
+        }
+        i { "listening on $localAddress, upstream[${upstream ?: "none"}]" }
+        return this
+    }
+
+    /**
+     * Stop the server and wait for the selector thread to release its sockets.
+     */
+    override fun close() {
+        running = false
+        val t = thread
+        if (t == null) {
+            shutdown()
+            return
+        }
+        selector.wakeup()
+        if (t !== Thread.currentThread()) t.join()
+    }
+
+    // on the selector thread once it stops, or on the caller if it never started
+    private fun shutdown() {
+        runCatching { udp.close() }
+        runCatching { tcp.close() }
+        runCatching { upstreamCh?.close() }
+        tcpConns.toList().forEach { it.close() }
+        upstreamTcp = null
+        pending.clear()
+        cache.clear()
+        runCatching { selector.close() }
+    }
+
+    private fun run() {
+        try {
+            loop()
+        } finally {
+            shutdown()
+        }
+        d { "stopped" }
+    }
+
+    private fun loop() {
+        while (running) {
+            try {
+                selector.select(TICK)
+                val keys = selector.selectedKeys().iterator()
+                while (keys.hasNext()) {
+                    val k = keys.next()
+                    keys.remove()
+                    if (!k.isValid) continue
+                    when (k.channel()) {
+                        udp -> receiveQueries()
+                        tcp -> accept()
+                        upstreamCh -> receiveUpstream()
+                        else -> (k.attachment() as TcpConn).process(k)
+                    }
+                }
+                expire(System.nanoTime())
+            } catch (ex: ClosedSelectorException) {
+                break
+            } catch (ex: Exception) {
+                w { "unexpected error: $ex" }
+            }
+        }
+    }
+
+    private fun receive(ch: DatagramChannel): Pair<SocketAddress, ByteArray>? {
+        rxBuf.clear()
+        val from = ch.receive(rxBuf) ?: return null
+        rxBuf.flip()
+        return from to ByteArray(rxBuf.remaining()).also { rxBuf.get(it) }
+    }
+
+    private fun receiveQueries() {
+        while (true) {
+            val (from, msg) = receive(udp) ?: return
+            query(msg, UdpClient(from))
+        }
+    }
+
+    private fun receiveUpstream() {
+        val ch = upstreamCh ?: return
+        while (true) {
+            val (_, msg) = try {
+                receive(ch) ?: return
+            } catch (ex: IOException) {
+                // e.g. ICMP port unreachable, pending queries will time out
+                d { "upstream error: $ex" }
+                return
+            }
+            upstreamResponse(msg)
+        }
+    }
+
+    private fun query(msg: ByteArray, client: Client) {
+        val start = System.nanoTime()
+        val q = DnsMessage.parse(msg)
+        if (q == null || q.isResponse || q.question == null) {
+            if (q?.isResponse != true) DnsMessage.error(msg, DnsMessage.RCODE_FORMERR)?.let { client.reply(it) }
+            return
+        }
+        queries.mark()
+
+        if (q.opcode != 0) {
+            client.reply(q.reply(DnsMessage.RCODE_NOTIMP, false, upstream != null))
+            return
+        }
+
+        answerLocal(q)?.let {
+            client.reply(it)
+            localTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS)
+            return
+        }
+
+        forward(q, client, start)
+    }
+
+    private fun answerLocal(q: DnsMessage): ByteArray? {
+        val question = q.question!!
+        if (question.qclass != DnsMessage.CLASS_IN && question.qclass != DnsMessage.CLASS_ANY) return null
+
+        if (question.type == DnsMessage.TYPE_PTR) {
+            val addr = DnsMessage.reverseAddress(question.name) ?: return null
+            val host = resolver.lookup(addr) ?: return null
+            return q.reply(DnsMessage.RCODE_OK, true, upstream != null,
+                listOf(DnsMessage.Answer(DnsMessage.TYPE_PTR, answerTtl, DnsMessage.encodeName(host))))
+        }
+
+        val addr = resolver.resolve(question.name) ?: return null
+        val type = when (addr) {
+            is Inet4Address -> DnsMessage.TYPE_A
+            is Inet6Address -> DnsMessage.TYPE_AAAA
+            else -> return null
+        }
+        // Ziti name without an address of the requested type: no data, but don't let upstream answer it either
+        val answers =
+            if (question.type == type || question.type == DnsMessage.TYPE_ANY)
+                listOf(DnsMessage.Answer(type, answerTtl, addr.address))
+            else emptyList()
+        return q.reply(DnsMessage.RCODE_OK, true, upstream != null, answers)
+    }
+
+    private fun forward(q: DnsMessage, client: Client, start: Long) {
+        val question = q.question!!
+        val key = cacheKey(question)
+        cache[key]?.let {
+            if (it.expires - start > 0) {
+                client.reply(it.reply(q.id, start))
+                cachedTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS)
+                return
+            }
+            cache.remove(key)
+        }
+
+        val up = upstreamCh
+        if (up == null) {
+            client.reply(q.reply(DnsMessage.RCODE_REFUSED, false, false))
+            return
+        }
+
+        if (pending.size >= MAX_PENDING) {
+            failures.mark()
+            client.reply(q.reply(DnsMessage.RCODE_SERVFAIL, false, true))
+            return
+        }
+
+        var id: Int
+        do { id = rand.nextInt(0x10000) } while (pending.containsKey(id))
+
+        val msg = q.raw.copyOf()
+        msg.setU16(0, id)
+        pending[id] = Pending(q, client, start, start + TimeUnit.MILLISECONDS.toNanos(upstreamTimeout))
+        try {
+            if (client is TcpClient) upstreamTcp().send(msg)
+            else up.write(ByteBuffer.wrap(msg))
+        } catch (ex: IOException) {
+            d { "failed to forward ${question.name}: $ex" }
+            pending.remove(id)
+            failures.mark()
+            client.reply(q.reply(DnsMessage.RCODE_SERVFAIL, false, true))
+        }
+    }
+
+    private fun upstreamResponse(msg: ByteArray) {
+        if (msg.size < DnsMessage.HEADER_SIZE) return
+        val id = msg.u16(0)
+        val p = pending[id] ?: return
+        val resp = DnsMessage.parse(msg) ?: return
+        val question = p.query.question!!
+        // ignore anything that does not answer the forwarded question
+        if (!resp.isResponse || resp.question?.matches(question) != true) return
+
+        pending.remove(id)
+        msg.setU16(0, p.query.id)
+        p.client.reply(msg)
+        val now = System.nanoTime()
+        upstreamTime.update(now - p.start, TimeUnit.NANOSECONDS)
+
+        if (resp.truncated || (resp.rcode != DnsMessage.RCODE_OK && resp.rcode != DnsMessage.RCODE_NXDOMAIN)) return
+        // responses received over TCP may be too large for UDP clients
+        if (msg.size > DnsMessage.MAX_UDP_SIZE) return
+        val ttl = (resp.answers + resp.extra).filter { it.type != DnsMessage.TYPE_OPT }
+            .minOfOrNull { it.ttl } ?: NEGATIVE_TTL
+        val keep = minOf(ttl, cacheMaxTtl)
+        if (keep > 0) {
+            cache[cacheKey(question)] = CacheEntry(resp, now, now + TimeUnit.SECONDS.toNanos(keep.toLong()))
+        }
+    }
+
+    private fun expire(now: Long) {
+        if (pending.isNotEmpty()) {
+            val expired = pending.filterValues { now - it.deadline > 0 }
+            for ((id, p) in expired) {
+                pending.remove(id)
+                failures.mark()
+                d { "upstream timeout for ${p.query.question?.name}" }
+                p.client.reply(p.query.reply(DnsMessage.RCODE_SERVFAIL, false, true))
+            }
+        }
+
+        tcpConns.filter { now - it.lastActive > TCP_IDLE }.forEach { it.close() }
+    }
+
+    private fun accept() {
+        while (true) {
+            val ch = tcp.accept() ?: return
+            ch.configureBlocking(false)
+            val client = TcpClient(ch)
+            ch.register(selector, SelectionKey.OP_READ, client)
+            tcpConns.add(client)
+        }
+    }
+
+    private fun upstreamTcp(): UpstreamTcp = upstreamTcp?.takeIf { it.ch.isOpen } ?: run {
+        val ch = SocketChannel.open()
+        val connected = try {
+            ch.configureBlocking(false)
+            ch.connect(upstream!!)
+        } catch (ex: IOException) {
+            ch.close()
+            throw ex
+        }
+        UpstreamTcp(ch).also {
+            ch.register(selector, if (connected) SelectionKey.OP_READ else SelectionKey.OP_CONNECT, it)
+            tcpConns.add(it)
+            upstreamTcp = it
+        }
+    }
+
+    /**
+     * TCP connection, messages are prefixed with 2-byte length (RFC 1035 4.2.2)
+     */
+    private abstract inner class TcpConn(val ch: SocketChannel) {
+        var lastActive = System.nanoTime()
+        private var rx = ByteBuffer.allocate(DnsMessage.MAX_UDP_SIZE + 2)
+        private val tx = ArrayDeque<ByteBuffer>()
+
+        abstract fun received(msg: ByteArray)
+
+        fun process(k: SelectionKey) {
+            lastActive = System.nanoTime()
+            if (k.isConnectable && !finishConnect()) return
+            if (k.isReadable) read()
+            if (k.isValid && k.isWritable) flush()
+        }
+
+        private fun finishConnect(): Boolean = try {
+            ch.finishConnect()
+            flush()
+            true
+        } catch (ex: IOException) {
+            d { "failed to connect to upstream: $ex" }
+            close()
+            false
+        }
+
+        private fun read() {
+            val n = try { ch.read(rx) } catch (ex: IOException) { -1 }
+            if (n < 0) {
+                close()
+                return
+            }
+
+            rx.flip()
+            while (rx.remaining() >= 2) {
+                val len = rx.getShort(rx.position()).toInt() and 0xFFFF
+                if (rx.remaining() < len + 2) {
+                    if (rx.capacity() < len + 2) {
+                        rx = ByteBuffer.allocate(len + 2).put(rx)
+                        rx.flip()
+                    }
+                    break
+                }
+                rx.position(rx.position() + 2)
+                val msg = ByteArray(len).also { rx.get(it) }
+                received(msg)
+            }
+            rx.compact()
+        }
+
+        fun send(msg: ByteArray) {
+            if (!ch.isOpen) return
+            tx.addLast(ByteBuffer.allocate(msg.size + 2).putShort(msg.size.toShort()).put(msg).flip() as ByteBuffer)
+            flush()
+        }
+
+        private fun flush() {
+            // queued until connected
+            if (!ch.isConnected) return
+            try {
+                while (tx.isNotEmpty()) {
+                    ch.write(tx.first())
+                    if (tx.first().hasRemaining()) break
+                    tx.removeFirst()
+                }
+            } catch (ex: IOException) {
+                close()
+                return
+            }
+            ch.keyFor(selector)?.interestOps(
+                if (tx.isEmpty()) SelectionKey.OP_READ else SelectionKey.OP_READ or SelectionKey.OP_WRITE)
+        }
+
+        fun close() {
+            tcpConns.remove(this)
+            runCatching { ch.close() }
+        }
+    }
+
+    private inner class TcpClient(ch: SocketChannel) : TcpConn(ch), Client {
+        override fun received(msg: ByteArray) = query(msg, this)
+        override fun reply(msg: ByteArray) = send(msg)
+    }
+
+    // queries still pending when the connection is lost time out
+    private inner class UpstreamTcp(ch: SocketChannel) : TcpConn(ch) {
+        override fun received(msg: ByteArray) = upstreamResponse(msg)
+    }
+
+    companion object: Logged by ZitiLog() {
+        private const val PREFIX = "ziti.dns.server"
+        private const val TICK = 100L
+        private const val MAX_PENDING = 4096
+        private const val NEGATIVE_TTL = 30
+        private val TCP_IDLE = TimeUnit.SECONDS.toNanos(10)
+
+        private fun cacheKey(q: DnsMessage.Question) = q.copy(name = q.name.lowercase())
+
+        private fun family(addr: InetSocketAddress) =
+            if (addr.address is Inet6Address) StandardProtocolFamily.INET6 else StandardProtocolFamily.INET
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net.dns
+
+import java.io.ByteArrayOutputStream
+import java.net.Inet4Address
+import java.net.Inet6Address
+import java.net.InetAddress
+
+/**
+ * Minimal DNS wire format (RFC 1035) support: enough to answer simple queries and to relay and cache upstream responses.
+ */
+internal class DnsMessage private constructor(
+    val raw: ByteArray,
+    val id: Int,
+    val flags: Int,
+    val questions: List<Question>,
+    val answers: List<Record>,
+    // authority and additional records
+    val extra: List<Record>,
+    private val questionEnd: Int,
+) {
+    data class Question(val name: String, val type: Int, val qclass: Int) {
+        fun matches(other: Question) =
+            type == other.type && qclass == other.qclass && name.equals(other.name, ignoreCase = true)
+    }
+
+    /**
+     * @param ttlOffset position of the TTL field in the message
+     */
+    class Record(val name: String, val type: Int, val rclass: Int, val ttl: Int, val ttlOffset: Int, val data: ByteArray)
+
+    class Answer(val type: Int, val ttl: Int, val data: ByteArray)
+
+    val isResponse: Boolean
+        get() = flags and FLAG_QR != 0
+
+    val opcode: Int
+        get() = (flags shr 11) and 0xF
+
+    val rcode: Int
+        get() = flags and 0xF
+
+    val truncated: Boolean
+        get() = flags and FLAG_TC != 0
+
+    val question: Question?
+        get() = questions.singleOrNull()
+
+    /**
+     * Build response to this query, echoing its (single) question.
+     */
+    fun reply(rcode: Int, authoritative: Boolean, recursionAvailable: Boolean,
+              answers: List<Answer> = emptyList()): ByteArray {
+        val out = ByteArrayOutputStream(questionEnd + answers.sumOf { 16 + it.data.size })
+        var f = FLAG_QR or (flags and (OPCODE_MASK or FLAG_RD)) or (rcode and 0xF)
+        if (authoritative) f = f or FLAG_AA
+        if (recursionAvailable) f = f or FLAG_RA
+        out.u16(id).u16(f).u16(1).u16(answers.size).u16(0).u16(0)
+        out.write(raw, HEADER_SIZE, questionEnd - HEADER_SIZE)
+        for (a in answers) {
+            out.u16(0xC000 or HEADER_SIZE) // pointer to the question name
+            out.u16(a.type).u16(CLASS_IN).u32(a.ttl).u16(a.data.size)
+            out.write(a.data)
+        }
+        return out.toByteArray()
+    }
+
+    companion object {
+        const val HEADER_SIZE = 12
+        const val MAX_UDP_SIZE = 512
+
+        const val TYPE_A = 1
+        const val TYPE_PTR = 12
+        const val TYPE_AAAA = 28
+        const val TYPE_OPT = 41
+        const val TYPE_ANY = 255
+
+        const val CLASS_IN = 1
+        const val CLASS_ANY = 255
+
+        const val RCODE_OK = 0
+        const val RCODE_FORMERR = 1
+        const val RCODE_SERVFAIL = 2
+        const val RCODE_NXDOMAIN = 3
+        const val RCODE_NOTIMP = 4
+        const val RCODE_REFUSED = 5
+
+        private const val FLAG_QR = 0x8000
+        private const val OPCODE_MASK = 0x7800
+        private const val FLAG_AA = 0x0400
+        private const val FLAG_TC = 0x0200
+        private const val FLAG_RD = 0x0100
+        private const val FLAG_RA = 0x0080
+
+        /**
+         * @return parsed message or `null` if it is malformed
+         */
+        fun parse(msg: ByteArray): DnsMessage? = try {
+            parseInternal(msg)
+        } catch (ex: IndexOutOfBoundsException) {
+            null
+        } catch (ex: IllegalArgumentException) {
+            null
+        }
+
+        private fun parseInternal(msg: ByteArray): DnsMessage {
+            require(msg.size >= HEADER_SIZE)
+            val qdCount = msg.u16(4)
+            val anCount = msg.u16(6)
+            val otherCount = msg.u16(8) + msg.u16(10)
+
+            var pos = HEADER_SIZE
+            val questions = List(qdCount) {
+                val (name, end) = readName(msg, pos)
+                pos = end + 4
+                Question(name, msg.u16(end), msg.u16(end + 2))
+            }
+            val questionEnd = pos
+
+            val records = List(anCount + otherCount) {
+                val (name, end) = readName(msg, pos)
+                val len = msg.u16(end + 8)
+                val data = msg.copyOfRange(end + 10, end + 10 + len)
+                pos = end + 10 + len
+                Record(name, msg.u16(end), msg.u16(end + 2), msg.u32(end + 4), end + 4, data)
+            }
+
+            return DnsMessage(msg, msg.u16(0), msg.u16(2), questions,
+                records.subList(0, anCount), records.subList(anCount, records.size), questionEnd)
+        }
+
+        /**
+         * Header-only error response to a query that could not be parsed.
+         * @return `null` if [msg] is not a query
+         */
+        fun error(msg: ByteArray, rcode: Int): ByteArray? {
+            if (msg.size < HEADER_SIZE || msg.u16(2) and FLAG_QR != 0) return null
+            val f = FLAG_QR or (msg.u16(2) and (OPCODE_MASK or FLAG_RD)) or rcode
+            return ByteArrayOutputStream(HEADER_SIZE)
+                .u16(msg.u16(0)).u16(f).u16(0).u16(0).u16(0).u16(0)
+                .toByteArray()
+        }
+
+        fun query(id: Int, name: String, type: Int, recursion: Boolean = true): ByteArray =
+            ByteArrayOutputStream(HEADER_SIZE + name.length + 6).apply {
+                u16(id).u16(if (recursion) FLAG_RD else 0).u16(1).u16(0).u16(0).u16(0)
+                write(encodeName(name))
+                u16(type).u16(CLASS_IN)
+            }.toByteArray()
+
+        fun encodeName(name: String): ByteArray {
+            val out = ByteArrayOutputStream(name.length + 2)
+            for (label in name.trimEnd('.').split('.')) {
+                if (label.isEmpty()) continue
+                val b = label.toByteArray(Charsets.US_ASCII)
+                require(b.size <= 63) { "label too long: $label" }
+                out.write(b.size)
+                out.write(b)
+            }
+            out.write(0)
+            require(out.size() <= 255) { "name too long: $name" }
+            return out.toByteArray()
+        }
+
+        /**
+         * @return (name, offset after the name at [start])
+         */
+        fun readName(msg: ByteArray, start: Int): Pair<String, Int> {
+            val sb = StringBuilder()
+            var pos = start
+            var end = -1
+            var jumps = 0
+            while (true) {
+                val len = msg[pos].toInt() and 0xFF
+                when {
+                    len == 0 -> {
+                        pos++
+                        break
+                    }
+                    len and 0xC0 == 0xC0 -> {
+                        require(++jumps <= 32) { "compression loop" }
+                        if (end < 0) end = pos + 2
+                        pos = ((len and 0x3F) shl 8) or (msg[pos + 1].toInt() and 0xFF)
+                    }
+                    len and 0xC0 != 0 -> throw IllegalArgumentException("invalid label type")
+                    else -> {
+                        if (sb.isNotEmpty()) sb.append('.')
+                        for (i in 1..len) sb.append((msg[pos + i].toInt() and 0xFF).toChar())
+                        pos += len + 1
+                    }
+                }
+            }
+            return sb.toString() to (if (end < 0) pos else end)
+        }
+
+        /**
+         * @return address encoded in `in-addr.arpa` or `ip6.arpa` name, `null` if [name] is not a reverse lookup name
+         */
+        fun reverseAddress(name: String): InetAddress? {
+            val n = name.lowercase().trimEnd('.')
+            val labels = when {
+                n.endsWith(".in-addr.arpa") -> n.removeSuffix(".in-addr.arpa").split('.').takeIf { it.size == 4 }
+                n.endsWith(".ip6.arpa") -> n.removeSuffix(".ip6.arpa").split('.').takeIf { it.size == 32 }
+                else -> null
+            } ?: return null
+
+            val bytes = if (labels.size == 4) {
+                labels.asReversed().map { l -> l.toIntOrNull()?.takeIf { it in 0..255 } ?: return null }
+                    .map { it.toByte() }
+            } else {
+                labels.asReversed().map { l -> l.toIntOrNull(16)?.takeIf { l.length == 1 } ?: return null }
+                    .chunked(2) { (hi, lo) -> (hi shl 4 or lo).toByte() }
+            }
+            return InetAddress.getByAddress(bytes.toByteArray())
+        }
+
+        fun reverseName(addr: InetAddress): String = when (addr) {
+            is Inet4Address -> addr.address.reversed().joinToString(".", postfix = ".in-addr.arpa") {
+                (it.toInt() and 0xFF).toString()
+            }
+            is Inet6Address -> addr.address.reversed().joinToString(".", postfix = ".ip6.arpa") {
+                val b = it.toInt() and 0xFF
+                "%x.%x".format(b and 0xF, b shr 4)
+            }
+            else -> throw IllegalArgumentException("unsupported address $addr")
+        }
+
+        internal fun ByteArray.u16(off: Int) = (this[off].toInt() and 0xFF shl 8) or (this[off + 1].toInt() and 0xFF)
+
+        internal fun ByteArray.u32(off: Int) = (u16(off) shl 16) or u16(off + 2)
+
+        internal fun ByteArray.setU16(off: Int, v: Int) {
+            this[off] = (v shr 8).toByte()
+            this[off + 1] = v.toByte()
+        }
+
+        internal fun ByteArray.setU32(off: Int, v: Int) {
+            setU16(off, v ushr 16)
+            setU16(off + 2, v)
+        }
+
+        private fun ByteArrayOutputStream.u16(v: Int) = apply {
+            write(v shr 8)
+            write(v)
+        }
+
+        private fun ByteArrayOutputStream.u32(v: Int) = u16(v ushr 16).u16(v)
+    }
+}
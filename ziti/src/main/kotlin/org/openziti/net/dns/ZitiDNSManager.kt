@@ -18,18 +18,39 @@ package org.openziti.net.dns
 
 import org.openziti.util.IPUtil
 import org.openziti.util.Logged
+import org.openziti.util.Settings
 import org.openziti.util.ZitiLog
 import java.io.Writer
 import java.net.Inet4Address
 import java.net.Inet6Address
 import java.net.InetAddress
-import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.ConcurrentHashMap
 
-internal object ZitiDNSManager : DNSResolver, Logged by ZitiLog() {
+/**
+ * Process wide host name table, sized by `ziti.dns.wildcardPoolSize` and `ziti.dns.wildcardTtl`.
+ */
+internal object ZitiDNSManager : ZitiDNSTable(Settings.dnsWildcardPoolSize, Settings.dnsWildcardTtl)
+
+/**
+ * Assigns addresses from 100.64.0.0/16 to Ziti host names.
+ *
+ * Lookups ([resolve] of a known name, [lookup]) of service host names are lock free; registrations and
+ * address assignment are serialized. Host names in wildcard domains are assigned on first [resolve] from
+ * a bounded pool kept in least recently used order: the oldest entries are recycled when the pool holds
+ * [wildcardLimit] names, and idle ones after [wildcardTtl] (millis).
+ */
+internal open class ZitiDNSTable(
+    val wildcardLimit: Int,
+    val wildcardTtl: Long,
+    private val clock: () -> Long = System::currentTimeMillis,
+) : DNSResolver, Logged by ZitiLog() {
 
     internal data class Domain(val name: String)
 
     internal data class Entry(val name: String, val addr: InetAddress, val domain: Domain? = null) {
+        // guarded by the wildcard LRU lock
+        var lastUsed: Long = 0
+
         private val repr by lazy {
             domain?.let { "$addr [${it.name}]" } ?: addr.toString()
         }
@@ -37,14 +58,28 @@ internal object ZitiDNSManager : DNSResolver, Logged by ZitiLog() {
         override fun toString() = repr
     }
 
-    internal val PREFIX = byteArrayOf(100.toByte(), 64.toByte())
+    companion object {
+        internal val PREFIX = byteArrayOf(100.toByte(), 64.toByte())
+
+        const val startPostfix = 0x0101 // start with 1.1 postfix
+        private const val maxPostfix = 0xFFFF
+        private val capacity = (startPostfix + 1..maxPostfix).count { it and 0xFF != 0 }
+    }
 
-    const val startPostfix = 0x0101
-    internal val postfix = AtomicInteger(startPostfix) // start with 1.1 postfix
+    internal val host2Ip = ConcurrentHashMap<String, Entry>()
+    internal val ip2host = ConcurrentHashMap<InetAddress, Entry>()
+    internal val domains = ConcurrentHashMap<String, Domain>()
 
-    internal val host2Ip = mutableMapOf<String, Entry>()
-    internal val ip2host = mutableMapOf<InetAddress, Entry>()
-    internal val domains = mutableMapOf<String, Domain>()
+    // wildcard entries, least recently used first; has its own lock so that lookups do not take [lock]
+    private val wildcards = LinkedHashMap<String, Entry>(16, 0.75f, true)
+
+    // address pool state, guarded by lock
+    private val lock = Any()
+    private var postfix = startPostfix
+    private val recycled = ArrayDeque<Int>()
+    private var evictions = 0L
+    private var expirations = 0L
+    private var nextExpiry = 0L
 
     internal fun registerHostname(hostname: String): InetAddress {
         val ip = when {
@@ -52,10 +87,20 @@ internal object ZitiDNSManager : DNSResolver, Logged by ZitiLog() {
             IPUtil.isValidIPv6(hostname) -> Inet6Address.getByName(hostname)
             else -> {
                 val dnsName = hostname.lowercase()
-                val entry = host2Ip.getOrPut(dnsName) {
-                    val e = nextAddr(dnsName)
-                    ip2host[e.addr] = e
-                    e
+                val entry = synchronized(lock) {
+                    val existing = host2Ip[dnsName]
+                    when {
+                        existing == null -> {
+                            val e = nextAddr(dnsName) ?: throw IllegalStateException("DNS address pool exhausted")
+                            add(e)
+                        }
+                        existing.domain != null -> {
+                            // service host name takes over address assigned from a wildcard domain
+                            synchronized(wildcards) { wildcards.remove(dnsName) }
+                            add(Entry(dnsName, existing.addr))
+                        }
+                        else -> existing
+                    }
                 }
                 i{ "registered: ${hostname} => ${entry}" }
                 entry.addr
@@ -65,19 +110,16 @@ internal object ZitiDNSManager : DNSResolver, Logged by ZitiLog() {
     }
 
     internal fun unregisterHostname(hostname: String) {
-        val e = host2Ip.remove(hostname.lowercase())
-        e?.let {
-            i{ "removed entry=$it" }
-            ip2host.remove(e.addr)
+        synchronized(lock) {
+            host2Ip[hostname.lowercase()]?.let {
+                release(it)
+                i{ "removed entry=$it" }
+            }
         }
     }
 
     internal fun registerDomain(domainName: String) {
-        val key = when {
-            domainName.startsWith("*.") -> domainName.substring(2)
-            domainName.startsWith(".") -> domainName.substring(1)
-            else -> domainName
-        }.lowercase()
+        val key = domainKey(domainName)
 
         val domain = Domain("*.$key")
         if (domains.putIfAbsent(key, domain)== null) {
@@ -86,53 +128,144 @@ internal object ZitiDNSManager : DNSResolver, Logged by ZitiLog() {
     }
 
     internal fun unregisterDomain(domainName: String) {
-        val key = when {
-            domainName.startsWith("*.") -> domainName.substring(2)
-            domainName.startsWith(".") -> domainName.substring(1)
-            else -> domainName
-        }.lowercase()
-
-        val domain = domains.remove(key)
-
-        if (domain != null) {
-            val entries = host2Ip.values.filter { it.domain === domain }
-            entries.forEach {
-                unregisterHostname(it.name)
-            }
+        val key = domainKey(domainName)
+
+        synchronized(lock) {
+            val domain = domains.remove(key) ?: return
+
+            host2Ip.values.filter { it.domain === domain }.forEach { release(it) }
 
             i{ "domain[${domain.name}] removed" }
         }
     }
 
-    override fun resolve(hostname: String): InetAddress? = resolveOrAssign(hostname.lowercase())
+    override fun resolve(hostname: String): InetAddress? {
+        val name = hostname.lowercase()
+        host2Ip[name]?.let {
+            touch(it)
+            return it.addr
+        }
 
-    private fun resolveOrAssign(hostname: String): InetAddress? {
-        var name = hostname.lowercase()
-        host2Ip[name]?.let { return it.addr }
+        findDomain(name) ?: return null
 
-        do {
-            domains[name]?.let {
-                // found matching
-                val entry = nextAddr(hostname, it)
-                ip2host[entry.addr] = entry
-                host2Ip[hostname] = entry
-                return entry.addr
-            }
+        return synchronized(lock) {
+            // re-check, another thread may have assigned it or removed the domain
+            host2Ip[name]?.addr ?: findDomain(name)?.let { assignWildcard(name, it)?.addr }
+        }
+    }
+
+    override fun lookup(addr: InetAddress): String? = ip2host[addr]?.let {
+        touch(it)
+        it.name
+    }
 
+    override fun getPoolStats(): DNSResolver.PoolStats = synchronized(lock) {
+        val wildcardCount = synchronized(wildcards) { wildcards.size }
+        DNSResolver.PoolStats(
+            capacity = capacity,
+            hosts = host2Ip.size - wildcardCount,
+            wildcards = wildcardCount,
+            wildcardLimit = wildcardLimit,
+            recycled = recycled.size,
+            evictions = evictions,
+            expirations = expirations
+        )
+    }
+
+    private fun domainKey(domainName: String) = when {
+        domainName.startsWith("*.") -> domainName.substring(2)
+        domainName.startsWith(".") -> domainName.substring(1)
+        else -> domainName
+    }.lowercase()
+
+    private fun findDomain(hostname: String): Domain? {
+        var name = hostname
+        do {
+            domains[name]?.let { return it }
             name = name.substringAfter('.', "")
         } while (name.isNotEmpty())
-
         return null
     }
 
-    override fun lookup(addr: InetAddress): String?  = ip2host[addr]?.name
+    // moves wildcard entry to the most recently used end
+    private fun touch(e: Entry) {
+        if (e.domain == null) return
+        synchronized(wildcards) {
+            if (wildcards[e.name] === e) e.lastUsed = clock()
+        }
+    }
+
+    private fun assignWildcard(hostname: String, domain: Domain): Entry? {
+        val now = clock()
+        if (now >= nextExpiry) {
+            expire(now)
+            nextExpiry = now + wildcardTtl / 2
+        }
+
+        while (wildcardCount() >= wildcardLimit && evictLru()) evictions++
+
+        val entry = nextAddr(hostname, domain) ?: run {
+            w { "DNS address pool exhausted, cannot assign $hostname" }
+            return null
+        }
+        return add(entry)
+    }
 
-    private fun nextAddr(dnsname: String, domain: Domain? = null): Entry {
-        var nextPostfix = postfix.incrementAndGet()
+    private fun wildcardCount() = synchronized(wildcards) { wildcards.size }
 
-        if ((nextPostfix and 0xFF) == 0) {
-            nextPostfix = postfix.incrementAndGet()
+    private fun add(e: Entry): Entry {
+        if (e.domain != null) synchronized(wildcards) {
+            e.lastUsed = clock()
+            wildcards[e.name] = e
         }
+        host2Ip[e.name] = e
+        ip2host[e.addr] = e
+        return e
+    }
+
+    private fun release(e: Entry) {
+        host2Ip.remove(e.name, e) || return
+        ip2host.remove(e.addr, e)
+        if (e.domain != null) synchronized(wildcards) { wildcards.remove(e.name, e) }
+        val b = e.addr.address
+        recycled.addLast(b[2].toInt().and(0xFF).shl(8) or b[3].toInt().and(0xFF))
+    }
+
+    // idle entries are at the least recently used end
+    private fun expire(now: Long) {
+        while (true) {
+            val eldest = synchronized(wildcards) {
+                wildcards.values.firstOrNull()?.takeIf { now - it.lastUsed > wildcardTtl }
+            } ?: break
+            d { "expired $eldest" }
+            release(eldest)
+            expirations++
+        }
+    }
+
+    private fun evictLru(): Boolean {
+        val lru = synchronized(wildcards) { wildcards.values.firstOrNull() } ?: return false
+        d { "evicted $lru" }
+        release(lru)
+        return true
+    }
+
+    // fresh addresses first so that recycled ones stay unused as long as possible
+    private fun allocate(): Int? {
+        while (postfix < maxPostfix) {
+            val p = ++postfix
+            if ((p and 0xFF) != 0) return p
+        }
+        recycled.removeFirstOrNull()?.let { return it }
+        if (evictLru()) {
+            evictions++
+            return recycled.removeFirstOrNull()
+        }
+        return null
+    }
+
+    private fun nextAddr(dnsname: String, domain: Domain? = null): Entry? {
+        val nextPostfix = allocate() ?: return null
 
         val ip = PREFIX + byteArrayOf(nextPostfix.shr(8).and(0xff).toByte(), (nextPostfix and 0xFF).toByte())
         val addr = InetAddress.getByAddress(dnsname, ip)
@@ -141,12 +274,6 @@ internal object ZitiDNSManager : DNSResolver, Logged by ZitiLog() {
         return Entry(dnsname, addr, domain)
     }
 
-    internal fun reset() {
-        host2Ip.clear()
-        ip2host.clear()
-        postfix.set(startPostfix)
-    }
-
     override fun dump(writer: Writer) {
         for ((h,ip) in host2Ip) {
             writer.appendLine("$h -> $ip")
@@ -156,5 +283,12 @@ internal object ZitiDNSManager : DNSResolver, Logged by ZitiLog() {
         domains.forEach { _, domain ->
             writer.appendLine(domain.name)
         }
+        writer.appendLine()
+        writer.appendLine("== Address Pool ==")
+        with(getPoolStats()) {
+            writer.appendLine("capacity[$capacity] hosts[$hosts] wildcards[$wildcards/$wildcardLimit] " +
+                    "recycled[$recycled] evictions[$evictions] expirations[$expirations] " +
+                    "utilization[${"%.1f".format(utilization * 100)}%]")
+        }
     }
-}
\ No newline at end of file
+}
@@ -20,6 +20,7 @@ import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import tlschannel.async.AsynchronousTlsChannel
 import java.net.SocketAddress
 import java.net.SocketTimeoutException
 import java.nio.ByteBuffer
@@ -99,4 +100,16 @@ suspend fun AsynchronousByteChannel.writeCompletely(b: ByteBuffer): Int {
         res += this.writeSuspend(b)
     }
     return res
-}
\ No newline at end of file
+}
+
+suspend fun AsynchronousTlsChannel.writeSuspend(bufs: Array<ByteBuffer>) = suspendCoroutine<Long> {
+    this.write(bufs, 0, bufs.size, 0, TimeUnit.MILLISECONDS, it, ContinuationHandler())
+}
+
+suspend fun AsynchronousTlsChannel.writeCompletely(bufs: Array<ByteBuffer>): Long {
+    var res = 0L
+    while (bufs.any { it.hasRemaining() }) {
+        res += this.writeSuspend(bufs)
+    }
+    return res
+}
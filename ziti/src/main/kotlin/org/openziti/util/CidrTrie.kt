@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openziti.util
+
+/**
+ * Path-compressed binary (Patricia) trie of IP prefixes, IPv4 and IPv6 kept apart.
+ *
+ * Lookups return the most specific prefix first and cost O(prefix length) regardless of the number of prefixes.
+ */
+internal class CidrTrie<T> {
+
+    class Match<T>(val value: T, val bits: Int)
+
+    private class Node<T>(val prefix: ByteArray, val bits: Int) {
+        val children = arrayOfNulls<Node<T>>(2)
+        var values: MutableList<T>? = null
+
+        fun add(v: T) {
+            (values ?: mutableListOf<T>().also { values = it }).add(v)
+        }
+    }
+
+    private val v4 = Node<T>(ByteArray(4), 0)
+    private val v6 = Node<T>(ByteArray(16), 0)
+
+    var size: Int = 0
+        private set
+
+    private fun root(len: Int) = when (len) {
+        4 -> v4
+        16 -> v6
+        else -> throw IllegalArgumentException("invalid address length[$len]")
+    }
+
+    fun add(prefix: ByteArray, bits: Int, value: T) {
+        require(bits in 0..prefix.size * 8) { "invalid prefix length[$bits]" }
+        val key = masked(prefix, bits)
+        var n = root(key.size)
+        size++
+        while (true) {
+            if (n.bits == bits) {
+                n.add(value)
+                return
+            }
+
+            val b = bit(key, n.bits)
+            val c = n.children[b]
+            if (c == null) {
+                n.children[b] = Node<T>(key, bits).also { it.add(value) }
+                return
+            }
+
+            val common = commonPrefix(c.prefix, key, minOf(c.bits, bits))
+            if (common == c.bits) {
+                n = c
+                continue
+            }
+
+            // split edge to c
+            val split = if (common == bits) Node<T>(key, bits).also { it.add(value) }
+                        else Node(masked(key, common), common)
+            split.children[bit(c.prefix, common)] = c
+            if (common != bits) {
+                split.children[bit(key, common)] = Node<T>(key, bits).also { it.add(value) }
+            }
+            n.children[b] = split
+            return
+        }
+    }
+
+    /**
+     * remove one occurrence of [value] stored under [prefix]/[bits].
+     * Emptied nodes are kept, they are reused if the prefix is added again.
+     * @return `true` if it was found
+     */
+    fun remove(prefix: ByteArray, bits: Int, value: T): Boolean {
+        if (bits !in 0..prefix.size * 8) return false
+        val key = masked(prefix, bits)
+        var n: Node<T>? = root(key.size)
+        while (n != null && n.bits < bits) {
+            n = n.children[bit(key, n.bits)]
+        }
+        if (n == null || n.bits != bits || !n.prefix.contentEquals(key)) return false
+
+        val values = n.values ?: return false
+        values.remove(value) || return false
+        if (values.isEmpty()) n.values = null
+        size--
+        return true
+    }
+
+    private fun path(addr: ByteArray): List<Node<T>> {
+        if (addr.size != 4 && addr.size != 16) return emptyList()
+        val path = ArrayList<Node<T>>(4)
+        var n: Node<T>? = root(addr.size)
+        while (n != null && commonPrefix(n.prefix, addr, n.bits) == n.bits) {
+            if (n.values != null) path.add(n)
+            if (n.bits == addr.size * 8) break
+            n = n.children[bit(addr, n.bits)]
+        }
+        return path
+    }
+
+    /**
+     * @return values of all prefixes containing [addr], most specific first
+     */
+    fun matches(addr: ByteArray): List<T> = path(addr).asReversed().flatMap { it.values!! }
+
+    /**
+     * @return most specific prefix containing [addr] with a value satisfying [accept]
+     */
+    fun longestMatch(addr: ByteArray, accept: (T) -> Boolean = { true }): Match<T>? {
+        for (n in path(addr).asReversed()) {
+            n.values!!.firstOrNull(accept)?.let { return Match(it, n.bits) }
+        }
+        return null
+    }
+
+    companion object {
+        private fun bit(b: ByteArray, i: Int) = (b[i ushr 3].toInt() shr (7 - (i and 7))) and 1
+
+        private fun masked(b: ByteArray, bits: Int): ByteArray {
+            val r = b.copyOf()
+            for (i in r.indices) {
+                val keep = (bits - i * 8).coerceIn(0, 8)
+                r[i] = (r[i].toInt() and (0xff00 ushr keep)).toByte()
+            }
+            return r
+        }
+
+        /**
+         * length of common prefix of [a] and [b], up to [limit] bits
+         */
+        private fun commonPrefix(a: ByteArray, b: ByteArray, limit: Int): Int {
+            var i = 0
+            while (i < limit) {
+                val x = (a[i ushr 3].toInt() xor b[i ushr 3].toInt()) and 0xff
+                if (x == 0) {
+                    i += 8
+                    continue
+                }
+                return minOf(i + Integer.numberOfLeadingZeros(x) - 24, limit)
+            }
+            return limit
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.util
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Lock-free map with primitive `Int` keys.
+ *
+ * Keys are spread over a fixed array of stripes; each stripe holds an immutable chain
+ * that is replaced with CAS on update. Lookups are a volatile read plus a short chain walk,
+ * with no boxing and no locking. Intended for lookup-heavy tables with moderate churn,
+ * like connection id -> receiver dispatch.
+ */
+internal class ConcurrentIntMap<V : Any>(stripes: Int = DEFAULT_STRIPES) {
+
+    private class Node<V>(val key: Int, val value: V, val next: Node<V>?)
+
+    private val bits = 32 - Integer.numberOfLeadingZeros(maxOf(stripes, 2) - 1)
+    private val table = AtomicReferenceArray<Node<V>?>(1 shl bits)
+    private val count = AtomicInteger()
+
+    val size: Int
+        get() = count.get()
+
+    fun isEmpty() = size == 0
+
+    operator fun get(key: Int): V? {
+        var n = table.get(index(key))
+        while (n != null) {
+            if (n.key == key) return n.value
+            n = n.next
+        }
+        return null
+    }
+
+    fun containsKey(key: Int) = get(key) != null
+
+    operator fun set(key: Int, value: V) {
+        put(key, value)
+    }
+
+    /**
+     * @return previous value associated with the key
+     */
+    fun put(key: Int, value: V): V? {
+        val i = index(key)
+        while (true) {
+            val head = table.get(i)
+            val prev = find(head, key)
+            val rest = if (prev == null) head else without(head, key)
+            if (table.compareAndSet(i, head, Node(key, value, rest))) {
+                if (prev == null) count.incrementAndGet()
+                return prev?.value
+            }
+        }
+    }
+
+    /**
+     * @return removed value, or `null` if key was not present
+     */
+    fun remove(key: Int): V? {
+        val i = index(key)
+        while (true) {
+            val head = table.get(i)
+            val prev = find(head, key) ?: return null
+            if (table.compareAndSet(i, head, without(head, key))) {
+                count.decrementAndGet()
+                return prev.value
+            }
+        }
+    }
+
+    /**
+     * Remove the entry only if the key is currently mapped to [value] (identity).
+     * @return `true` if the entry was removed
+     */
+    fun remove(key: Int, value: V): Boolean {
+        val i = index(key)
+        while (true) {
+            val head = table.get(i)
+            val current = find(head, key)
+            if (current == null || current.value !== value) return false
+            if (table.compareAndSet(i, head, without(head, key))) {
+                count.decrementAndGet()
+                return true
+            }
+        }
+    }
+
+    /**
+     * Weakly consistent iteration: sees a snapshot of each stripe at the time it is visited.
+     */
+    fun forEach(action: (Int, V) -> Unit) {
+        for (i in 0 until table.length()) {
+            var n = table.get(i)
+            while (n != null) {
+                action(n.key, n.value)
+                n = n.next
+            }
+        }
+    }
+
+    /**
+     * Atomically (per stripe) remove all entries.
+     * @return removed values
+     */
+    fun drain(): List<V> {
+        val removed = mutableListOf<V>()
+        for (i in 0 until table.length()) {
+            var n = table.getAndSet(i, null)
+            while (n != null) {
+                count.decrementAndGet()
+                removed.add(n.value)
+                n = n.next
+            }
+        }
+        return removed
+    }
+
+    fun clear() {
+        drain()
+    }
+
+    // fibonacci hashing: keeps sequential ids (the common case) spread across stripes
+    private fun index(key: Int): Int = (key * -0x61c88647) ushr (32 - bits)
+
+    private fun find(head: Node<V>?, key: Int): Node<V>? {
+        var n = head
+        while (n != null) {
+            if (n.key == key) return n
+            n = n.next
+        }
+        return null
+    }
+
+    // copy of the chain without the key; the tail after the removed node is shared
+    private fun without(head: Node<V>?, key: Int): Node<V>? {
+        if (head == null) return null
+        if (head.key == key) return head.next
+        return Node(head.key, head.value, without(head.next, key))
+    }
+
+    companion object {
+        const val DEFAULT_STRIPES = 4096
+    }
+}
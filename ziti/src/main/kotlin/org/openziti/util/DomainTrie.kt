@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openziti.util
+
+/**
+ * Wildcard domains stored in a trie of reversed labels (`com` -> `example` -> ...).
+ * Lookup cost is proportional to the number of labels in the host name.
+ */
+internal class DomainTrie<T> {
+
+    class Match<T>(val value: T, val labels: Int)
+
+    private class Node<T>(val labels: Int) {
+        val children = HashMap<String, Node<T>>(2)
+        var values: MutableList<T>? = null
+    }
+
+    private val root = Node<T>(0)
+
+    var size: Int = 0
+        private set
+
+    /**
+     * @param domain parent domain, e.g. `example.com` for `*.example.com`
+     */
+    fun add(domain: String, value: T) {
+        var n = root
+        for (label in domain.lowercase().trimEnd('.').split('.').asReversed()) {
+            val depth = n.labels + 1
+            n = n.children.getOrPut(label) { Node(depth) }
+        }
+        (n.values ?: mutableListOf<T>().also { n.values = it }).add(value)
+        size++
+    }
+
+    /**
+     * remove one occurrence of [value] stored under [domain]
+     * @return `true` if it was found
+     */
+    fun remove(domain: String, value: T): Boolean {
+        var n = root
+        for (label in domain.lowercase().trimEnd('.').split('.').asReversed()) {
+            n = n.children[label] ?: return false
+        }
+        val values = n.values ?: return false
+        values.remove(value) || return false
+        if (values.isEmpty()) n.values = null
+        size--
+        return true
+    }
+
+    private fun path(host: String): List<Node<T>> {
+        val h = host.lowercase().trimEnd('.')
+        var path: MutableList<Node<T>>? = null
+        var n = root
+        var end = h.length
+        while (end > 0) {
+            val start = h.lastIndexOf('.', end - 1)
+            n = n.children[h.substring(start + 1, end)] ?: break
+            // host must have at least one more label to match the wildcard
+            if (start >= 0 && n.values != null) {
+                (path ?: mutableListOf<Node<T>>().also { path = it }).add(n)
+            }
+            end = start
+        }
+        return path ?: emptyList()
+    }
+
+    /**
+     * @return values of all domains [host] is a subdomain of, most specific first
+     */
+    fun matches(host: String): List<T> = path(host).asReversed().flatMap { it.values!! }
+
+    /**
+     * @return most specific domain of [host] with a value satisfying [accept]
+     */
+    fun longestMatch(host: String, accept: (T) -> Boolean = { true }): Match<T>? {
+        for (n in path(host).asReversed()) {
+            n.values!!.firstOrNull(accept)?.let { return Match(it, n.labels) }
+        }
+        return null
+    }
+}
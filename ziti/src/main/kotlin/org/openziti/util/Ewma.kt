@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.util
+
+import kotlin.math.pow
+
+/**
+ * Exponentially weighted moving average.
+ * [value] is `NaN` until the first sample.
+ */
+internal class Ewma(val alpha: Double) {
+    init {
+        require(alpha > 0.0 && alpha <= 1.0) { "alpha must be in (0, 1]" }
+    }
+
+    @Volatile
+    var value: Double = Double.NaN
+        private set
+
+    @Synchronized
+    fun update(sample: Double): Double {
+        val v = value
+        value = if (v.isNaN()) sample else v + alpha * (sample - v)
+        return value
+    }
+
+    @Synchronized
+    fun reset() {
+        value = Double.NaN
+    }
+
+    override fun toString() = "%.2f".format(value)
+}
+
+/**
+ * Event counter that decays exponentially over time, i.e. recent events weigh more.
+ */
+internal class DecayingCounter(val halfLifeMillis: Long, private val clock: () -> Long = System::currentTimeMillis) {
+    private var count = 0.0
+    private var updated = clock()
+
+    @Synchronized
+    fun increment() {
+        count = decayed(clock()) + 1.0
+        updated = clock()
+    }
+
+    val value: Double
+        @Synchronized get() = decayed(clock())
+
+    private fun decayed(now: Long): Double =
+        if (count == 0.0) 0.0 else count * 0.5.pow((now - updated).toDouble() / halfLifeMillis)
+
+    override fun toString() = "%.2f".format(value)
+}
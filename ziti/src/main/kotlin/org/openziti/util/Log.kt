@@ -61,16 +61,28 @@ internal class SLF4JLoggedImpl(val name: String) : Logged {
 
     override fun e(msg: LogMsg) = e(null, msg)
 
-    override fun e(ex: Throwable?, msg: LogMsg) = logger.error(msg(), ex)
+    override fun e(ex: Throwable?, msg: LogMsg) {
+        if (logger.isErrorEnabled) logger.error(msg(), ex)
+    }
 
-    override fun w(msg: LogMsg) = logger.warn(msg())
+    override fun w(msg: LogMsg) {
+        if (logger.isWarnEnabled) logger.warn(msg())
+    }
 
-    override fun i(msg: LogMsg) = logger.info(msg())
+    override fun i(msg: LogMsg) {
+        if (logger.isInfoEnabled) logger.info(msg())
+    }
 
-    override fun d(msg: LogMsg) = logger.debug(msg())
+    override fun d(msg: LogMsg) {
+        if (logger.isDebugEnabled) logger.debug(msg())
+    }
 
-    override fun v(msg: LogMsg) = logger.trace(msg())
+    override fun v(msg: LogMsg) {
+        if (logger.isTraceEnabled) logger.trace(msg())
+    }
 
-    override fun t(msg: LogMsg) = logger.trace(TRACE, msg())
+    override fun t(msg: LogMsg) {
+        if (logger.isTraceEnabled(TRACE)) logger.trace(TRACE, msg())
+    }
 }
 
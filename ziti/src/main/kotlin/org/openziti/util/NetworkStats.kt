@@ -16,4 +16,73 @@
 
 package org.openziti.util
 
-data class NetworkStats(val upRate: Double, val downRate: Double)
\ No newline at end of file
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Network throughput.
+ * @param upRate bytes per second sent, averaged over the stats window
+ * @param downRate bytes per second received, averaged over the stats window
+ */
+data class NetworkStats(val upRate: Double, val downRate: Double)
+
+/**
+ * Byte counters with moving-window rates.
+ *
+ * Counting is lock-free (striped [LongAdder]s) and is propagated to [parent] (e.g. connection -> service -> context).
+ * Rates are computed from periodic [sample]s over the last [windowSize] sample intervals.
+ */
+internal class TrafficCounter(val parent: TrafficCounter?, val windowSize: Int) {
+    init {
+        require(windowSize > 0) { "window must have at least one interval" }
+    }
+
+    private val up = LongAdder()
+    private val down = LongAdder()
+
+    // ring of samples: time(nanos), sent, received
+    private val times = LongArray(windowSize + 1)
+    private val ups = LongArray(windowSize + 1)
+    private val downs = LongArray(windowSize + 1)
+    private var head = 0
+    private var samples = 0
+
+    val sent: Long
+        get() = up.sum()
+
+    val received: Long
+        get() = down.sum()
+
+    fun sent(n: Int) {
+        up.add(n.toLong())
+        parent?.sent(n)
+    }
+
+    fun received(n: Int) {
+        down.add(n.toLong())
+        parent?.received(n)
+    }
+
+    @Synchronized
+    fun sample(now: Long = System.nanoTime()) {
+        head = (head + 1) % times.size
+        times[head] = now
+        ups[head] = up.sum()
+        downs[head] = down.sum()
+        if (samples < times.size) samples++
+    }
+
+    @Synchronized
+    fun stats(): NetworkStats {
+        if (samples < 2) return NetworkStats(0.0, 0.0)
+
+        val oldest = (head - samples + 1 + times.size) % times.size
+        val seconds = (times[head] - times[oldest]).toDouble() / TimeUnit.SECONDS.toNanos(1)
+        if (seconds <= 0.0) return NetworkStats(0.0, 0.0)
+
+        return NetworkStats(
+            upRate = (ups[head] - ups[oldest]) / seconds,
+            downRate = (downs[head] - downs[oldest]) / seconds,
+        )
+    }
+}
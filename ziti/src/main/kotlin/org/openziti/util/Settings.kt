@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.util
+
+import org.openziti.impl.RouterChannels
+import org.openziti.impl.RouterSelectionStrategy
+import org.openziti.net.ZitiProtocol
+import java.net.InetSocketAddress
+
+/**
+ * SDK tuning knobs.
+ *
+ * Values are read from system properties (e.g. `-Dziti.channel.txBatchBytes=131072`) the first time
+ * they are needed; invalid or missing values fall back to defaults.
+ */
+internal object Settings : Logged by ZitiLog() {
+
+    /** max number of bytes coalesced into a single transport write */
+    val txBatchBytes: Int by lazy { int("ziti.channel.txBatchBytes", 64 * 1024, min = 1) }
+
+    /** max number of messages coalesced into a single transport write */
+    val txBatchMessages: Int by lazy { int("ziti.channel.txBatchMessages", 128, min = 1) }
+
+    /** max number of data bytes queued for transmission on a channel before senders are suspended */
+    val txQueueBytes: Long by lazy { long("ziti.channel.txQueueBytes", 1024L * 1024, min = 1) }
+
+    /** collect SDK metrics (see [org.openziti.ZitiMetrics]) from context start */
+    val metrics: Boolean by lazy { bool("ziti.metrics.enabled", false) }
+
+    /** network stats sampling interval (ms) */
+    val statsInterval: Long by lazy { long("ziti.stats.interval", 1_000, min = 10) }
+
+    /** network rates are averaged over this many sampling intervals */
+    val statsWindow: Int by lazy { int("ziti.stats.window", 10, min = 1) }
+
+    /** number of parallel channels (TLS connections) opened to each edge router */
+    val channelsPerRouter: Int by lazy { int("ziti.channel.perRouter", 1, min = 1) }
+
+    /** how new connections are spread across channels to the same router: `load` or `round-robin` */
+    val channelStriping: RouterChannels.Striping by lazy {
+        when (val s = string("ziti.channel.striping", "load").lowercase()) {
+            "load" -> RouterChannels.Striping.Load
+            "round-robin", "roundrobin" -> RouterChannels.Striping.RoundRobin
+            else -> {
+                w { "unknown channel striping[$s], using load" }
+                RouterChannels.Striping.Load
+            }
+        }
+    }
+
+    /** interval between latency probes on a connected channel (ms) */
+    val latencyProbeInterval: Long by lazy { long("ziti.channel.latencyProbeInterval", 60_000, min = 100) }
+
+    /** interval between latency probes right after (re)connect or a latency shift (ms) */
+    val latencyFastProbeInterval: Long by lazy { long("ziti.channel.latencyFastProbeInterval", 5_000, min = 100) }
+
+    /** number of probes sent at [latencyFastProbeInterval] before going back to [latencyProbeInterval] */
+    val latencyFastProbes: Int by lazy { int("ziti.channel.latencyFastProbes", 6, min = 0) }
+
+    /** edge router selection strategy: `lowest-latency`, `power-of-two-choices` or `weighted-random` */
+    val routerSelection: RouterSelectionStrategy by lazy {
+        val s = string("ziti.router.selection", "lowest-latency")
+        RouterSelectionStrategy.of(s) ?: RouterSelectionStrategy.LowestLatency.also {
+            w { "unknown router selection strategy[$s], using $it" }
+        }
+    }
+
+    /**
+     * received bytes queued for a single connection before it is reset;
+     * flow-controlled connections stay within their window and never get there
+     */
+    val rxBacklogBytes: Long by lazy { long("ziti.conn.rxBacklogBytes", 4L * 1024 * 1024, min = 1) }
+
+    /** default number of received bytes a connection buffers for the application before it stops reading */
+    val rxBufferBytes: Int by lazy { int("ziti.conn.rxBufferBytes", 256 * 1024, min = 1024) }
+
+    /** offer credit-based flow control on new connections (used only if the peer accepts it) */
+    val flowControl: Boolean by lazy { bool("ziti.conn.flowControl", false) }
+
+    /** receive window advertised to the peer when flow control is enabled */
+    val flowControlWindow: Int by lazy { int("ziti.conn.flowControlWindow", 256 * 1024, min = 1024) }
+
+    /** max application payload carried by a single Data message; larger writes are split */
+    val maxWritePayload: Int by lazy { int("ziti.conn.maxWritePayload", 64 * 1024, min = 1024) }
+
+    /**
+     * coalesce back-to-back writes on encrypted connections into fewer (larger) encrypted messages.
+     *
+     * Opt-in: a write then completes once its bytes are buffered, before they are encrypted and queued,
+     * and a send failure is reported by a later write (or shutdown/close) instead of the write itself.
+     */
+    val coalesceWrites: Boolean by lazy { bool("ziti.conn.coalesceWrites", false) }
+
+    /** preferred end-to-end encryption method: `libsodium` or `aes256-gcm` */
+    val cryptoMethod: Int by lazy {
+        when (val m = string("ziti.conn.cryptoMethod", "libsodium").lowercase()) {
+            "libsodium" -> ZitiProtocol.CryptoMethod.Libsodium
+            "aes256-gcm", "aes-gcm" -> ZitiProtocol.CryptoMethod.AES256_GCM
+            else -> {
+                w { "unknown crypto method[$m], using libsodium" }
+                ZitiProtocol.CryptoMethod.Libsodium
+            }
+        }
+    }
+
+    /** max number of addresses assigned to host names in wildcard domains, least recently used are recycled */
+    val dnsWildcardPoolSize: Int by lazy { int("ziti.dns.wildcardPoolSize", 4096, min = 1) }
+
+    /** wildcard domain host names unused for this long (ms) give their address back to the pool */
+    val dnsWildcardTtl: Long by lazy { long("ziti.dns.wildcardTtl", 30 * 60_000L, min = 1_000) }
+
+    /** local address (`host:port`) of the embedded DNS server, disabled if not set (see [org.openziti.net.dns.DNSServer]) */
+    val dnsServer: InetSocketAddress? by lazy { address("ziti.dns.server") }
+
+    /** DNS server queried by the embedded DNS server for non-Ziti names */
+    val dnsUpstream: InetSocketAddress? by lazy { address("ziti.dns.upstream") }
+
+    internal fun int(name: String, default: Int, min: Int = Int.MIN_VALUE): Int =
+        prop(name, default) { it.toInt().takeIf { v -> v >= min } }
+
+    internal fun long(name: String, default: Long, min: Long = Long.MIN_VALUE): Long =
+        prop(name, default) { it.toLong().takeIf { v -> v >= min } }
+
+    internal fun bool(name: String, default: Boolean): Boolean =
+        prop(name, default) { it.toBooleanStrictOrNull() }
+
+    internal fun string(name: String, default: String): String = prop(name, default) { it }
+
+    // `host:port` or `[ipv6]:port`, port defaults to 53
+    internal fun address(name: String): InetSocketAddress? = prop<InetSocketAddress?>(name, null) {
+        val bracketed = it.startsWith("[")
+        val host = if (bracketed) it.substringAfter('[').substringBefore(']') else it.substringBefore(':')
+        val port = if (bracketed) it.substringAfter("]").removePrefix(":") else it.substringAfter(':', "")
+        InetSocketAddress(host, port.ifEmpty { "53" }.toInt()).takeIf { a -> !a.isUnresolved }
+    }
+
+    private fun <T> prop(name: String, default: T, parse: (String) -> T?): T {
+        val str = System.getProperty(name) ?: return default
+        val v = runCatching { parse(str.trim()) }.getOrNull()
+        if (v == null) {
+            w { "invalid value '$str' for $name, using default[$default]" }
+            return default
+        }
+        d { "$name = $v" }
+        return v
+    }
+}
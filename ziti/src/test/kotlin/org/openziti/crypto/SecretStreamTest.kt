@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.crypto
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.ZitiProtocol.CryptoMethod
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class SecretStreamTest {
+
+    private fun streams(
+        clientMethod: Int = CryptoMethod.Libsodium,
+        serverMethod: Int = CryptoMethod.Libsodium
+    ): Pair<Crypto.SecretStream, Crypto.SecretStream> {
+        val clientKeys = Crypto.newKeyPair()
+        val serverKeys = Crypto.newKeyPair()
+        val client = Crypto.newStream(Crypto.kx(clientKeys, serverKeys.publicKey, false), clientMethod)
+        val server = Crypto.newStream(Crypto.kx(serverKeys, clientKeys.publicKey, true), serverMethod)
+        server.init(client.header())
+        client.init(server.header())
+        return client to server
+    }
+
+    @Test
+    fun testBufferRoundTrip() {
+        bufferRoundTrip(CryptoMethod.Libsodium)
+        bufferRoundTrip(CryptoMethod.AES256_GCM)
+    }
+
+    private fun bufferRoundTrip(method: Int) {
+        val (client, server) = streams(method, method)
+
+        for (size in listOf(0, 1, 1024, 70_000)) {
+            val plain = Random.nextBytes(size)
+
+            // source at non-zero offset, output into a slot inside a larger (direct) buffer
+            val src = ByteBuffer.allocate(size + 10).position(10).put(plain).position(10)
+            val frame = ByteBuffer.allocateDirect(client.encryptedSize(size) + 32)
+            val slot = frame.slice(32, client.encryptedSize(size))
+            client.encrypt(src, slot)
+            assertFalse(src.hasRemaining())
+            assertFalse(slot.hasRemaining())
+
+            val out = ByteBuffer.allocate(size + 5).position(5)
+            server.decrypt(slot.flip(), out)
+            assertEquals(size + 5, out.position())
+            assertArrayEquals(plain, out.array().copyOfRange(5, size + 5))
+        }
+    }
+
+    @Test
+    fun testMixedApis() {
+        val (client, server) = streams()
+        val plain = Random.nextBytes(500)
+
+        val cipher = ByteBuffer.allocate(client.encryptedSize(plain.size))
+        client.encrypt(ByteBuffer.wrap(plain), cipher)
+        assertArrayEquals(plain, server.decrypt(cipher.array()))
+
+        val back = server.encrypt(plain)
+        val out = ByteBuffer.allocate(server.decryptedSize(back.size))
+        client.decrypt(ByteBuffer.wrap(back), out)
+        assertArrayEquals(plain, out.array())
+    }
+
+    @Test
+    fun testMismatchedHeaderRejected() {
+        val clientKeys = Crypto.newKeyPair()
+        val serverKeys = Crypto.newKeyPair()
+        val client = Crypto.newStream(Crypto.kx(clientKeys, serverKeys.publicKey, false), CryptoMethod.AES256_GCM)
+        val server = Crypto.newStream(Crypto.kx(serverKeys, clientKeys.publicKey, true), CryptoMethod.Libsodium)
+
+        assertThrows(IllegalArgumentException::class.java) { server.init(client.header()) }
+        assertThrows(IllegalArgumentException::class.java) { client.init(ByteArray(7)) }
+        assertFalse(server.initialized())
+    }
+
+    @Test
+    fun testAesGcmRejectsReorderedMessages() {
+        val (client, server) = streams(CryptoMethod.AES256_GCM, CryptoMethod.AES256_GCM)
+        val first = client.encrypt("first".toByteArray())
+        val second = client.encrypt("second".toByteArray())
+
+        assertThrows(IllegalStateException::class.java) { server.decrypt(second) }
+        assertNotNull(first)
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.openziti.impl
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.channels.Channel as Chan
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.Channel
+import org.openziti.net.Message
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.Header
+import org.openziti.util.Settings
+import java.io.IOException
+
+class ChannelImplTest {
+
+    private class Receiver(val stalled: Boolean) : Channel.MessageReceiver {
+        val gate = CompletableDeferred<Unit>()
+        val received = Chan<Result<Message>>(Chan.UNLIMITED)
+
+        override suspend fun receive(msg: Result<Message>) {
+            if (stalled) gate.await()
+            msg.onSuccess { it.release() }
+            received.send(msg)
+        }
+    }
+
+    private fun data(connId: Int, size: Int) =
+        Message(ContentType.Data, ByteArray(size)).setHeader(Header.ConnId, connId)
+
+    @Test
+    fun testSlowReceiverDoesNotStallOthers() {
+        val ch = ChannelImpl("tls://er:443", TestIdentity, 0) { null }
+        try {
+            val slow = Receiver(stalled = true)
+            val fast = Receiver(stalled = false)
+            ch.registerReceiver(1, slow)
+            ch.registerReceiver(2, fast)
+
+            val chunk = 64 * 1024
+            val count = (Settings.rxBacklogBytes / chunk).toInt() + 2
+            repeat(count) {
+                ch.dispatch(data(1, chunk))
+                ch.dispatch(data(2, chunk))
+            }
+
+            runBlocking {
+                withTimeout(5000) {
+                    repeat(count) { assertTrue(fast.received.receive().isSuccess) }
+
+                    // slow connection went over its backlog and was reset
+                    slow.gate.complete(Unit)
+                    var r = slow.received.receive()
+                    while (r.isSuccess) r = slow.received.receive()
+                    assertTrue(r.exceptionOrNull() is IOException)
+                }
+            }
+            assertEquals(1, ch.connections)
+        } finally {
+            ch.close()
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.crypto.Crypto
+import java.nio.ByteBuffer
+import java.nio.channels.CompletionHandler
+
+class ContextMetricsTest {
+
+    private class PlainStream : Crypto.SecretStream {
+        override fun header() = ByteArray(0)
+        override fun init(peerHeader: ByteArray) {}
+        override fun initialized() = true
+        override fun encrypt(b: ByteArray) = b
+        override fun decrypt(b: ByteArray) = b
+        override fun encryptedSize(plainLen: Int) = plainLen
+        override fun decryptedSize(cipherLen: Int) = cipherLen
+    }
+
+    @Test
+    fun testServiceMeters() {
+        val reg = MetricRegistry()
+        val m = ContextMetrics(reg, "ziti.test")
+        val svc = m.service("echo")
+        assertSame(svc, m.service("echo"))
+
+        svc.sent(100)
+        svc.sent(50)
+        svc.received(10)
+
+        assertEquals(150L, reg.meter("ziti.test.service.echo.bytes.out").count)
+        assertEquals(2L, reg.meter("ziti.test.service.echo.frames.out").count)
+        assertEquals(10L, reg.meter("ziti.test.service.echo.bytes.in").count)
+        assertEquals(1L, reg.meter("ziti.test.service.echo.frames.in").count)
+    }
+
+    @Test
+    fun testDialTiming() {
+        val reg = MetricRegistry()
+        val m = ContextMetrics(reg, "ziti.test")
+
+        var completed = 0
+        var failed = 0
+        val handler = object : CompletionHandler<Void, Unit> {
+            override fun completed(result: Void?, attachment: Unit) { completed++ }
+            override fun failed(exc: Throwable, attachment: Unit) { failed++ }
+        }
+
+        m.timeDial("echo", handler).completed(null, Unit)
+        m.timeDial("echo", handler).failed(Exception(), Unit)
+
+        assertEquals(1, completed)
+        assertEquals(1, failed)
+        assertEquals(1L, m.dialTime.count)
+        assertEquals(1L, m.dialFailures.count)
+        assertEquals(1L, reg.timer("ziti.test.service.echo.dial").count)
+        assertEquals(1L, reg.meter("ziti.test.service.echo.dial.failures").count)
+    }
+
+    @Test
+    fun testCryptoTiming() {
+        val m = ContextMetrics(MetricRegistry(), "ziti.test")
+        val s = m.timed(PlainStream())
+
+        assertArrayEquals(byteArrayOf(1, 2, 3), s.encrypt(byteArrayOf(1, 2, 3)))
+        val dst = ByteBuffer.allocate(3)
+        s.decrypt(ByteBuffer.wrap(byteArrayOf(4, 5, 6)), dst)
+        assertArrayEquals(byteArrayOf(4, 5, 6), dst.array())
+
+        assertEquals(1L, m.encryptTime.count)
+        assertEquals(1L, m.decryptTime.count)
+    }
+
+    @Test
+    fun testChannelGauges() {
+        val reg = MetricRegistry()
+        val m = ContextMetrics(reg, "ziti.test")
+        val ch = connected("tls://er:443", load = 3)
+
+        m.channelAdded(ch)
+        assertEquals(3, reg.gauges["ziti.test.channel.tls://er:443.connections"]?.value)
+
+        m.channelRemoved(ch)
+        assertTrue(reg.names.none { it.contains("channel") })
+
+        m.unbind()
+        assertTrue(reg.names.isEmpty())
+    }
+}
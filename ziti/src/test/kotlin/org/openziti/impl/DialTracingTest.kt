@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.ZitiContext
+import org.openziti.ZitiContext.DialStage
+
+class DialTracingTest {
+
+    @Test
+    fun testSuccessfulDial() {
+        val tracing = DialTracing()
+        val traces = mutableListOf<ZitiContext.DialTrace>()
+        tracing.addListener { traces.add(it) }
+
+        val timing = DialTiming("echo", 7)
+        DialStage.values().forEach { timing.mark(it) }
+        timing.router = "tls://er:443"
+        tracing.completed(timing, null)
+
+        DialStage.values().forEach { assertEquals(1L, tracing.stageTimers[it]!!.count) }
+        assertEquals(1L, tracing.totalTimer.count)
+
+        val t = traces.single()
+        assertEquals("echo", t.service)
+        assertEquals(7, t.connId)
+        assertEquals("tls://er:443", t.router)
+        assertEquals(DialStage.values().toSet(), t.stages.keys)
+        assertEquals(t.totalNanos, t.stages.values.sum())
+        assertNull(t.error)
+    }
+
+    @Test
+    fun testFailedDial() {
+        val tracing = DialTracing()
+        var trace: ZitiContext.DialTrace? = null
+        val listener = ZitiContext.DialTraceListener { trace = it }
+        tracing.addListener(listener)
+
+        val timing = DialTiming("echo", 1)
+        timing.mark(DialStage.Service)
+        timing.markFailed()
+        val err = Exception("no session")
+        tracing.completed(timing, err)
+
+        assertEquals(setOf(DialStage.Service, DialStage.Session), trace!!.stages.keys)
+        assertSame(err, trace!!.error)
+        assertEquals(0L, tracing.stageTimers[DialStage.Channel]!!.count)
+        assertEquals(0L, tracing.totalTimer.count)
+
+        tracing.removeListener(listener)
+        trace = null
+        tracing.completed(DialTiming("echo", 2).apply { markFailed() }, err)
+        assertNull(trace)
+        assertEquals(2L, tracing.stats()[DialStage.Service]!!.count)
+    }
+
+    @Test
+    fun testListenerFailureIsIsolated() {
+        val tracing = DialTracing()
+        var called = false
+        tracing.addListener { throw IllegalStateException() }
+        tracing.addListener { called = true }
+
+        tracing.completed(DialTiming("echo", 1).apply { mark(DialStage.Service) }, null)
+        assertTrue(called)
+    }
+}
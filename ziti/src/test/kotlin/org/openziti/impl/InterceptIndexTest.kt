@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.openziti.impl
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.api.PortRange
+import org.openziti.api.Service
+import org.openziti.api.SessionType
+import org.openziti.net.Protocol
+import java.net.InetAddress
+
+class InterceptIndexTest {
+
+    private fun service(name: String, vararg addresses: String,
+                        ports: List<Pair<Int, Int>> = listOf(80 to 80),
+                        protocols: List<String> = listOf("tcp"),
+                        permissions: List<SessionType> = listOf(SessionType.DIAL)): Service =
+        Service().id(name).name(name).permissions(permissions).config(mapOf(
+            "intercept.v1" to mapOf(
+                "protocols" to protocols,
+                "addresses" to addresses.toList(),
+                "portRanges" to ports.map { mapOf("low" to it.first, "high" to it.second) }
+            )
+        ))
+
+    @Test
+    fun testHostNames() {
+        val idx = InterceptIndex.build(listOf(
+            service("exact", "api.example.com"),
+            service("wild", "*.example.com"),
+            service("deeper", "*.eu.example.com"),
+        ))
+
+        assertEquals("exact", idx.find("API.example.com", 80)?.service?.name)
+        assertEquals("wild", idx.find("www.example.com", 80)?.service?.name)
+        assertEquals("deeper", idx.find("db.eu.example.com", 80)?.service?.name)
+        assertEquals("wild", idx.find("eu.example.com", 80)?.service?.name)
+        assertNull(idx.find("example.com", 80))
+        assertNull(idx.find("notexample.com", 80))
+        assertNull(idx.find("www.example.com", 443))
+    }
+
+    @Test
+    fun testCidr() {
+        val idx = InterceptIndex.build(listOf(
+            service("net", "10.0.0.0/8"),
+            service("subnet", "10.1.0.0/16"),
+            service("host", "10.1.2.3"),
+            service("v6", "fd00::/64"),
+        ))
+
+        assertEquals("host", idx.find(InetAddress.getByName("10.1.2.3"), 80)?.service?.name)
+        assertEquals("subnet", idx.find(InetAddress.getByName("10.1.2.4"), 80)?.service?.name)
+        assertEquals("net", idx.find("10.2.0.1", 80)?.service?.name)
+        assertEquals("v6", idx.find(InetAddress.getByName("fd00::1"), 80)?.service?.name)
+        assertNull(idx.find(InetAddress.getByName("11.0.0.1"), 80))
+        assertNull(idx.find(InetAddress.getByName("fd01::1"), 80))
+    }
+
+    @Test
+    fun testRank() {
+        val idx = InterceptIndex.build(listOf(
+            service("exact", "api.example.com"),
+            service("wild", "*.example.com"),
+            service("deeper", "*.eu.example.com"),
+            service("net", "10.0.0.0/8"),
+            service("subnet", "10.1.0.0/16"),
+        ))
+
+        val exact = idx.find("api.example.com", 80)!!.rank
+        val deeper = idx.find("db.eu.example.com", 80)!!.rank
+        val wild = idx.find("www.example.com", 80)!!.rank
+        assertTrue(exact > deeper)
+        assertTrue(deeper > wild)
+
+        assertEquals(16, idx.find("10.1.0.1", 80)?.rank)
+        assertEquals(8, idx.find("10.2.0.1", 80)?.rank)
+        assertTrue(wild > 16)
+    }
+
+    @Test
+    fun testFilters() {
+        val idx = InterceptIndex.build(listOf(
+            service("bind-only", "*.example.com", permissions = listOf(SessionType.BIND)),
+            service("udp", "*.example.com", protocols = listOf("udp")),
+            service("tcp", "*.example.com"),
+        ))
+
+        assertEquals("tcp", idx.find("a.example.com", 80, Protocol.TCP, SessionType.DIAL)?.service?.name)
+        assertEquals("udp", idx.find("a.example.com", 80, Protocol.UDP, SessionType.DIAL)?.service?.name)
+        assertNull(idx.find("a.example.com", 80, Protocol.UDP, SessionType.BIND))
+    }
+
+    @Test
+    fun testPortSet() {
+        val ports = InterceptIndex.PortSet(listOf(
+            PortRange(8000, 8100), PortRange(22, 22), PortRange(8050, 8200), PortRange(443, 444)))
+
+        listOf(22, 443, 444, 8000, 8150, 8200).forEach { assertTrue("$it", ports.contains(it)) }
+        listOf(21, 23, 442, 445, 7999, 8201).forEach { assertFalse("$it", ports.contains(it)) }
+        assertFalse(InterceptIndex.PortSet(emptyList()).contains(80))
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.Channel
+
+class RouterChannelsTest {
+
+    @Test
+    fun testSelectByLoad() {
+        val chs = listOf(connected("a", 5), connected("b", 1), connected("c", 3))
+        val router = RouterChannels("tls://er:443", chs, RouterChannels.Striping.Load)
+
+        repeat(5) { assertSame(chs[1], router.select()) }
+        chs[1].connections = 10
+        assertSame(chs[2], router.select())
+    }
+
+    @Test
+    fun testSelectRoundRobin() {
+        val chs = listOf(connected("a"), connected("b"), connected("c"))
+        val router = RouterChannels("tls://er:443", chs, RouterChannels.Striping.RoundRobin)
+
+        val picks = List(6) { router.select()!!.name }
+        assertEquals(listOf("a", "b", "c", "a", "b", "c"), picks)
+    }
+
+    @Test
+    fun testSkipUnconnected() {
+        val down = StubChannel("a", Channel.State.Disconnected(null))
+        val up = connected("b", 100, latency = 25)
+        val router = RouterChannels("tls://er:443", listOf(down, up), RouterChannels.Striping.Load)
+
+        repeat(3) { assertSame(up, router.select()) }
+        assertTrue(router.state is Channel.State.Connected)
+        assertEquals(25L, router.latency)
+
+        router.tryConnect()
+        assertEquals(1, down.connectRequests)
+        assertEquals(0, up.connectRequests)
+
+        up.state = Channel.State.Closed
+        assertNull(router.select())
+    }
+}
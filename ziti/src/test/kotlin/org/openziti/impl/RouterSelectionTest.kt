@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.Channel
+import org.openziti.util.DecayingCounter
+import kotlin.random.Random
+
+class RouterSelectionTest {
+
+    private fun router(addr: String, latency: Double, conns: Int = 0): RouterChannels {
+        val ch = connected(addr, load = conns, addr = addr).apply { latencyEwma = latency }
+        return RouterChannels(addr, listOf(ch), RouterChannels.Striping.Load)
+    }
+
+    @Test
+    fun testScoreIncludesLoadAndFailures() {
+        val r = router("tls://a:443", 20.0, conns = 100)
+        val score = r.score()!!
+        assertEquals(20.0, score.latency, 0.001)
+        assertEquals(20.0 + 100 * RouterScore.CONNECTION_COST_MS, score.score, 0.001)
+
+        r.dialFailed()
+        assertTrue(r.score()!!.score > score.score + RouterScore.FAILURE_COST_MS / 2)
+    }
+
+    @Test
+    fun testLowestLatency() {
+        val routers = listOf(router("tls://a:443", 50.0), router("tls://b:443", 10.0), router("tls://c:443", 30.0))
+        val selector = RouterSelector(RouterSelectionStrategy.LowestLatency)
+
+        val sel = selector.select(routers)!!
+        assertEquals("tls://b:443", sel.chosen.router.addr)
+        assertEquals(3, sel.candidates.size)
+        assertEquals(mapOf("tls://b:443" to 1L), selector.selectionCounts)
+        assertSame(sel, selector.lastSelection)
+    }
+
+    @Test
+    fun testFailuresSteerAway() {
+        val a = router("tls://a:443", 10.0)
+        val b = router("tls://b:443", 30.0)
+        val selector = RouterSelector(RouterSelectionStrategy.LowestLatency)
+
+        assertSame(a, selector.select(listOf(a, b))!!.chosen.router)
+        a.dialFailed()
+        assertSame(b, selector.select(listOf(a, b))!!.chosen.router)
+    }
+
+    @Test
+    fun testPowerOfTwoNeverPicksWorst() {
+        val routers = listOf(router("tls://a:443", 10.0), router("tls://b:443", 20.0), router("tls://c:443", 90.0))
+        val selector = RouterSelector(RouterSelectionStrategy.PowerOfTwoChoices(Random(42)))
+
+        repeat(100) {
+            assertNotEquals("tls://c:443", selector.select(routers)!!.chosen.router.addr)
+        }
+    }
+
+    @Test
+    fun testWeightedRandomPrefersBetter() {
+        val routers = listOf(router("tls://a:443", 10.0), router("tls://b:443", 100.0))
+        val selector = RouterSelector(RouterSelectionStrategy.WeightedRandom(Random(7)))
+
+        repeat(1000) { selector.select(routers) }
+        val counts = selector.selectionCounts
+        assertTrue(counts["tls://a:443"]!! > 5 * counts["tls://b:443"]!!)
+    }
+
+    @Test
+    fun testNoConnectedRouters() {
+        val ch = StubChannel("a", Channel.State.Disconnected(null))
+        val r = RouterChannels("tls://a:443", listOf(ch), RouterChannels.Striping.Load)
+        assertNull(r.score())
+        assertNull(RouterSelector(RouterSelectionStrategy.LowestLatency).select(listOf(r)))
+    }
+
+    @Test
+    fun testDecayingCounter() {
+        var now = 0L
+        val c = DecayingCounter(1000) { now }
+        c.increment()
+        c.increment()
+        assertEquals(2.0, c.value, 0.001)
+        now = 1000
+        assertEquals(1.0, c.value, 0.001)
+        now = 3000
+        assertEquals(0.25, c.value, 0.001)
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.api.Service
+import org.openziti.api.SessionType
+import java.net.InetAddress
+
+class ServiceDirectoryTest {
+
+    private fun service(name: String, vararg addresses: String): Service =
+        Service().id(name).name(name).permissions(listOf(SessionType.DIAL)).config(mapOf(
+            "intercept.v1" to mapOf(
+                "protocols" to listOf("tcp"),
+                "addresses" to addresses.toList(),
+                "portRanges" to listOf(mapOf("low" to 80, "high" to 80))
+            )
+        ))
+
+    @Test
+    fun testNames() {
+        val dir = ServiceDirectory<String>()
+        dir.attach("a")
+        dir.attach("b")
+
+        dir.put("b", service("shared"))
+        dir.put("a", service("shared"))
+        dir.put("a", service("only-a"))
+
+        // load order, not update order
+        assertEquals(listOf("a", "b"), dir.contextsFor("shared"))
+        assertEquals(listOf("a"), dir.contextsFor("only-a"))
+        assertEquals(emptyList<String>(), dir.contextsFor("missing"))
+        assertEquals(3, dir.serviceCount)
+
+        dir.remove("a", "shared")
+        assertEquals(listOf("b"), dir.contextsFor("shared"))
+
+        dir.detach("b")
+        assertEquals(emptyList<String>(), dir.contextsFor("shared"))
+        assertEquals(1, dir.serviceCount)
+    }
+
+    @Test
+    fun testAddresses() {
+        val dir = ServiceDirectory<String>()
+        listOf("a", "b", "c").forEach { dir.attach(it) }
+
+        dir.put("a", service("web", "*.example.com", "10.0.0.0/8"))
+        dir.put("b", service("api", "api.example.com", "10.1.0.0/16"))
+        dir.put("c", service("other", "*.other.org"))
+
+        assertEquals(listOf("a", "b"), dir.candidates("API.example.com"))
+        assertEquals(listOf("a"), dir.candidates("www.example.com"))
+        assertEquals(listOf("c"), dir.candidates("x.other.org"))
+        assertEquals(listOf("a", "b"), dir.candidates(InetAddress.getByName("10.1.2.3")))
+        assertEquals(listOf("a"), dir.candidates("10.2.0.1"))
+        assertEquals(listOf("a", "c"), dir.candidates(null, "www.example.com", "x.other.org"))
+        assertEquals(emptyList<String>(), dir.candidates("example.net"))
+    }
+
+    @Test
+    fun testConfigChange() {
+        val dir = ServiceDirectory<String>()
+        dir.attach("a")
+
+        dir.put("a", service("web", "*.example.com"))
+        dir.put("a", service("web", "web.example.org"))
+
+        assertEquals(emptyList<String>(), dir.candidates("www.example.com"))
+        assertEquals(listOf("a"), dir.candidates("web.example.org"))
+
+        dir.remove("a", "web")
+        assertEquals(emptyList<String>(), dir.candidates("web.example.org"))
+        assertEquals(0, dir.serviceCount)
+    }
+
+    @Test
+    fun testSync() {
+        val dir = ServiceDirectory<String>()
+        dir.attach("a")
+        dir.sync("a", listOf(service("web", "*.example.com"), service("db", "10.0.0.0/8")))
+        assertEquals(listOf("a"), dir.contextsFor("web"))
+        assertEquals(listOf("a"), dir.candidates("10.1.2.3"))
+
+        dir.sync("a", listOf(service("web", "web.example.org")))
+        assertEquals(emptyList<String>(), dir.contextsFor("db"))
+        assertEquals(emptyList<String>(), dir.candidates("10.1.2.3"))
+        assertEquals(emptyList<String>(), dir.candidates("www.example.com"))
+        assertEquals(listOf("a"), dir.candidates("web.example.org"))
+        assertEquals(1, dir.serviceCount)
+
+        dir.detach("a")
+        dir.sync("a", listOf(service("web", "web.example.org")))
+        assertEquals(0, dir.serviceCount)
+    }
+
+    @Test
+    fun testDetached() {
+        val dir = ServiceDirectory<String>()
+        dir.put("a", service("web", "*.example.com"))
+        assertEquals(emptyList<String>(), dir.contextsFor("web"))
+        assertEquals(emptyList<String>(), dir.candidates("www.example.com"))
+    }
+}
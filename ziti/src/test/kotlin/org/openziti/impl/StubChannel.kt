@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.impl
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Deferred
+import org.openziti.net.Channel
+import org.openziti.net.Message
+
+internal class StubChannel(override val name: String, override var state: Channel.State,
+                          override var connections: Int = 0,
+                          override val addr: String = "tls://er:443") : Channel {
+    var connectRequests = 0
+    var reply: ((Message) -> Message)? = null
+    override var latencyEwma = Double.NaN
+
+    override val stats: Channel.Stats
+        get() = Channel.Stats(name, state, connections, 0, 0, 0, 0, 0)
+
+    override fun tryConnect() { connectRequests++ }
+    override fun connectAsync(): Deferred<Channel.State> = CompletableDeferred(state)
+    override fun deregisterReceiver(id: Int) {}
+    override fun registerReceiver(id: Int, rec: Channel.MessageReceiver) {}
+    override suspend fun Send(msg: Message) {}
+    override suspend fun SendSynch(msg: Message) {}
+    override suspend fun SendAndWait(msg: Message): Message = reply?.invoke(msg) ?: TODO()
+    override fun getCurrentLatency() = (state as? Channel.State.Connected)?.latency ?: Long.MAX_VALUE
+    override fun close() {}
+}
+
+internal fun connected(name: String, load: Int = 0, latency: Long = 10, addr: String = "tls://er:443") =
+    StubChannel(name, Channel.State.Connected(latency), load, addr)
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.openziti.impl
+
+import org.openziti.identity.Identity
+import javax.net.ssl.SSLContext
+import javax.net.ssl.X509TrustManager
+
+/**
+ * Identity of a controller that is not there: contexts using it fail to log in and stay offline.
+ */
+internal object TestIdentity : Identity {
+    override fun controller() = "https://127.0.0.1:1"
+    override fun name() = "test"
+    override fun sslContext(): SSLContext = SSLContext.getDefault()
+    override fun trustManager(): X509TrustManager = TODO()
+}
+
+/**
+ * Offline context for exercising connections without a Ziti network.
+ */
+internal fun testContext() = ZitiContextImpl(TestIdentity, false)
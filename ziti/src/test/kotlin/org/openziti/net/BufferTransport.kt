@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2018-2022 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import org.openziti.util.transferTo
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * In-memory [Transport]: everything written can be read back after [flip].
+ */
+internal class BufferTransport : Transport {
+    private val out = ByteArrayOutputStream()
+    private var input: ByteBuffer = ByteBuffer.allocate(0)
+    var writeCount = 0
+
+    fun flip() = apply {
+        input = ByteBuffer.wrap(out.toByteArray())
+        out.reset()
+    }
+
+    override fun isClosed() = false
+    override suspend fun connect(timeout: Long) {}
+
+    override suspend fun write(buf: ByteBuffer) {
+        writeCount++
+        val b = ByteArray(buf.remaining())
+        buf.get(b)
+        out.write(b)
+    }
+
+    override suspend fun write(bufs: Array<ByteBuffer>) {
+        writeCount++
+        for (buf in bufs) {
+            val b = ByteArray(buf.remaining())
+            buf.get(b)
+            out.write(b)
+        }
+    }
+
+    override suspend fun read(buf: ByteBuffer, full: Boolean): Int {
+        if (!input.hasRemaining()) return -1
+        return input.transferTo(buf)
+    }
+
+    override fun close() {}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+
+class FlowControlTest {
+
+    @Test
+    fun testWindowLimitsSender() {
+        runBlocking {
+            val fc = FlowControl(txWindow = 1000, rxWindow = 1000, txEnabled = true)
+            fc.acquire(600)
+            fc.acquire(400)
+
+            val blocked = async { fc.acquire(100) }
+            delay(100)
+            assertFalse(blocked.isCompleted)
+            assertEquals(1.0, fc.stats.utilization, 0.001)
+
+            fc.ack(500)
+            withTimeout(1000) { blocked.await() }
+
+            val stats = fc.stats
+            assertEquals(600, stats.inFlight)
+            assertEquals(1000, stats.maxInFlight)
+            assertEquals(1100, stats.bytesSent)
+            assertEquals(500, stats.bytesAcked)
+            assertEquals(1, stats.stalls)
+            assertEquals(1, stats.updatesReceived)
+        }
+    }
+
+    @Test
+    fun testOversizedMessage() {
+        runBlocking {
+            val fc = FlowControl(txWindow = 1000, rxWindow = 1000, txEnabled = true)
+            withTimeout(1000) { fc.acquire(5000) }
+            assertEquals(5000, fc.stats.inFlight)
+        }
+    }
+
+    @Test
+    fun testNotLimitedUntilPeerAcks() {
+        runBlocking {
+            val fc = FlowControl(txWindow = 1000, rxWindow = 1000, txEnabled = false)
+            withTimeout(1000) {
+                repeat(10) { fc.acquire(500) }
+            }
+            assertFalse(fc.txEnabled)
+
+            fc.ack(4000)
+            assertTrue(fc.txEnabled)
+            assertEquals(1000, fc.stats.inFlight)
+
+            val blocked = async { fc.acquire(100) }
+            delay(100)
+            assertFalse(blocked.isCompleted)
+            fc.ack(1000)
+            withTimeout(1000) { blocked.await() }
+        }
+    }
+
+    @Test
+    fun testReceiverUpdates() {
+        val fc = FlowControl(txWindow = 1000, rxWindow = 1000, txEnabled = true)
+        assertEquals(0, fc.consumed(200))
+        assertEquals(0, fc.consumed(200))
+        assertEquals(500, fc.consumed(100))
+        assertEquals(0, fc.consumed(10))
+        assertEquals(1, fc.stats.updatesSent)
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018-2022 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.Header
+import kotlin.random.Random
+
+class MessageBatchTest {
+
+    @Test
+    fun testSingleWrite() {
+        runBlocking {
+            val t = BufferTransport()
+            val batch = MessageBatch(64 * 1024, 100)
+            val bodies = List(20) { Random.nextBytes(if (it == 10) 20_000 else Random.nextInt(0, 200)) }
+
+            bodies.forEachIndexed { i, b ->
+                val m = Message(ContentType.Data, b).setHeader(Header.ConnId, i)
+                m.seqNo = i
+                batch.add(m)
+            }
+            assertEquals(20, batch.count)
+            assertFalse(batch.isFull())
+            batch.write(t)
+            batch.clear()
+            assertTrue(batch.isEmpty())
+            assertEquals(1, t.writeCount)
+
+            t.flip()
+            bodies.forEachIndexed { i, b ->
+                val m = Message.readMessage(t).getOrThrow()
+                assertEquals(i, m.seqNo)
+                assertEquals(i, m.getIntHeader(Header.ConnId))
+                assertArrayEquals(b, m.body)
+            }
+            assertSame(Message.EOF, Message.readMessage(t).exceptionOrNull())
+        }
+    }
+
+    @Test
+    fun testFrameMessages() {
+        runBlocking {
+            val src = BufferTransport()
+            Message(ContentType.Data, "frame".toByteArray()).setHeader(Header.ConnId, 1).write(src)
+            val received = Message.readMessage(src.flip()).getOrThrow()
+            received.seqNo = 99
+
+            val t = BufferTransport()
+            val batch = MessageBatch(1024, 100)
+            batch.add(received)
+            batch.add(Message(ContentType.StateClosed).setHeader(Header.ConnId, 1))
+            batch.write(t)
+            batch.clear()
+
+            t.flip()
+            val m1 = Message.readMessage(t).getOrThrow()
+            assertEquals(99, m1.seqNo)
+            assertEquals("frame", m1.body.toString(Charsets.UTF_8))
+            assertEquals(ContentType.StateClosed, Message.readMessage(t).getOrThrow().content)
+        }
+    }
+
+    @Test
+    fun testLimits() {
+        val batch = MessageBatch(1000, 3)
+        batch.add(Message(ContentType.Data, ByteArray(10)))
+        batch.add(Message(ContentType.Data, ByteArray(10)))
+        assertFalse(batch.isFull())
+        batch.add(Message(ContentType.Data, ByteArray(10)))
+        assertTrue(batch.isFull())
+
+        batch.clear()
+        batch.add(Message(ContentType.Data, ByteArray(2000)))
+        assertTrue(batch.isFull())
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2018-2022 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.Header
+import kotlin.random.Random
+
+class MessageTest {
+
+    @Test
+    fun testRoundTrip() {
+        runBlocking {
+            val t = BufferTransport()
+            val body = Random.nextBytes(100)
+            val m = Message(ContentType.Data, body)
+                .setHeader(Header.ConnId, 42)
+                .setHeader(Header.CallerIdHeader, "caller")
+                .setHeader(Header.ResultSuccess, true)
+            m.seqNo = 7
+            m.write(t)
+
+            val r = Message.readMessage(t.flip()).getOrThrow()
+            assertEquals(ContentType.Data, r.content)
+            assertEquals(7, r.seqNo)
+            assertEquals(-1, r.repTo)
+            assertEquals(42, r.getIntHeader(Header.ConnId))
+            assertNull(r.getIntHeader(Header.SeqHeader))
+            assertEquals("caller", r.getStringHeader(Header.CallerIdHeader))
+            assertTrue(r.getBoolHeader(Header.ResultSuccess))
+            assertFalse(r.getBoolHeader(Header.HelloListener))
+            assertArrayEquals(body, r.body)
+            assertEquals(3, r.headers.size)
+        }
+    }
+
+    @Test
+    fun testLongHeader() {
+        runBlocking {
+            val t = BufferTransport()
+            val probe = System.nanoTime()
+            Message(ContentType.LatencyType)
+                .setHeader(Header.LatencyProbeTime, probe)
+                .write(t)
+
+            val r = Message.readMessage(t.flip()).getOrThrow()
+            assertEquals(probe, r.getLongHeader(Header.LatencyProbeTime))
+            assertNull(r.getLongHeader(Header.ConnId))
+        }
+    }
+
+    @Test
+    fun testLargeBody() {
+        runBlocking {
+            val t = BufferTransport()
+            val pool = FramePool(2, 1024)
+            val body = Random.nextBytes(10_000)
+            val m = Message(ContentType.Data, body).setHeader(Header.ConnId, 1)
+            m.write(t, pool)
+
+            val r = Message.readMessage(t.flip(), pool).getOrThrow()
+            assertEquals(body.size, r.bodySize)
+            assertArrayEquals(body, r.body)
+            assertEquals(1, r.getIntHeader(Header.ConnId))
+        }
+    }
+
+    @Test
+    fun testFrameReuse() {
+        runBlocking {
+            val pool = FramePool(1, 1024)
+            val f = pool.acquire()
+            f.release()
+            assertSame(f, pool.acquire())
+            f.release()
+
+            val t = BufferTransport()
+            Message(ContentType.Data, "hello".toByteArray()).write(t, pool)
+            Message(ContentType.Data, "world".toByteArray()).write(t, pool)
+            t.flip()
+
+            val m1 = Message.readMessage(t, pool).getOrThrow()
+            assertEquals("hello", m1.body.toString(Charsets.UTF_8))
+            m1.release()
+
+            val m2 = Message.readMessage(t, pool).getOrThrow()
+            assertEquals("world", m2.body.toString(Charsets.UTF_8))
+            m2.release()
+
+            // body was copied out before frame was reused
+            assertEquals("hello", m1.body.toString(Charsets.UTF_8))
+        }
+    }
+
+    @Test
+    fun testReleased() {
+        runBlocking {
+            val t = BufferTransport()
+            Message(ContentType.Data, "hello".toByteArray()).write(t)
+            val m = Message.readMessage(t.flip()).getOrThrow()
+            m.release()
+            assertThrows(IllegalStateException::class.java) { m.body }
+        }
+    }
+
+    @Test
+    fun testUnknownContent() {
+        runBlocking {
+            val t = BufferTransport()
+            val f = FramePool.Default.acquire().begin(12345, 1)
+            f.putHeader(Header.ConnId, 1)
+            f.body(3).put(byteArrayOf(1, 2, 3))
+            f.writeTo(t)
+            f.release()
+            Message(ContentType.StateClosed).write(t)
+            t.flip()
+
+            val unknown = Message.readMessage(t)
+            assertTrue(unknown.exceptionOrNull() is ContentType.UnknownContent)
+
+            val next = Message.readMessage(t).getOrThrow()
+            assertEquals(ContentType.StateClosed, next.content)
+
+            assertSame(Message.EOF, Message.readMessage(t).exceptionOrNull())
+        }
+    }
+
+    @Test
+    fun testHeaderTable() {
+        val table = HeaderTable(2)
+        for (id in 0 until 100) {
+            table.put(id * 1000, 100 + id, id)
+        }
+        assertEquals(100, table.size)
+        for (id in 0 until 100) {
+            val loc = table[id * 1000]
+            assertEquals(100 + id, Frame.offsetOf(loc))
+            assertEquals(id, Frame.lengthOf(loc))
+        }
+        assertEquals(-1L, table[1])
+
+        table.put(0, 500, 5)
+        assertEquals(100, table.size)
+        assertEquals(500, Frame.offsetOf(table[0]))
+
+        table.clear()
+        assertEquals(0, table.size)
+        assertEquals(-1L, table[0])
+    }
+
+    @Test
+    fun testPrimitiveHeaders() {
+        runBlocking {
+            val t = BufferTransport()
+            Message(ContentType.Data).setHeader(Header.ConnId, 100_000).write(t)
+
+            val m = Message.readMessage(t.flip()).getOrThrow()
+            assertEquals(100_000, m.getIntHeader(Header.ConnId, -1))
+            assertEquals(-1, m.getIntHeader(Header.SeqHeader, -1))
+
+            m.setHeader(Header.SeqHeader, 3)
+            assertEquals(3, m.getIntHeader(Header.SeqHeader, -1))
+            assertEquals(100_000, m.getIntHeader(Header.ConnId, -1))
+        }
+    }
+
+    @Test
+    fun testUpdateHeader() {
+        runBlocking {
+            val f = FramePool.Default.acquire().begin(ContentType.Data.id)
+                .putHeader(Header.ConnId, 7)
+                .putHeader(Header.SeqHeader, 0)
+            f.body(3).put(byteArrayOf(1, 2, 3))
+            f.updateHeader(Header.SeqHeader, 42)
+
+            val t = BufferTransport()
+            Message(ContentType.Data, f).write(t)
+            val m = Message.readMessage(t.flip()).getOrThrow()
+            assertEquals(42, m.getIntHeader(Header.SeqHeader, -1))
+            assertEquals(7, m.getIntHeader(Header.ConnId, -1))
+            assertArrayEquals(byteArrayOf(1, 2, 3), m.body)
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicLong
+
+class ReceiveBufferTest {
+
+    @Test
+    fun testAccounting() {
+        runBlocking {
+            val ctxCounter = AtomicLong()
+            val buf = ReceiveBuffer(1024, ctxCounter)
+
+            buf.send(OwnedBuffer.wrap(ByteArray(300)))
+            buf.send(OwnedBuffer.wrap(ByteArray(200)))
+            assertEquals(500L, buf.bufferedBytes)
+            assertEquals(500L, ctxCounter.get())
+
+            val first = buf.channel.receive()
+            // still buffered until the reader releases it
+            assertEquals(500L, buf.bufferedBytes)
+            first.release()
+            first.release()
+            assertEquals(200L, buf.bufferedBytes)
+            assertEquals(200L, ctxCounter.get())
+
+            buf.channel.receive().release()
+            assertEquals(0L, buf.bufferedBytes)
+            assertEquals(0L, ctxCounter.get())
+        }
+    }
+
+    @Test
+    fun testBudgetBlocksProducer() {
+        runBlocking {
+            val buf = ReceiveBuffer(1000)
+            buf.send(OwnedBuffer.wrap(ByteArray(800)))
+
+            val blocked = async { buf.send(OwnedBuffer.wrap(ByteArray(400))) }
+            delay(100)
+            assertFalse(blocked.isCompleted)
+
+            buf.channel.receive().release()
+            withTimeout(1000) { blocked.await() }
+            assertEquals(400L, buf.bufferedBytes)
+        }
+    }
+
+    @Test
+    fun testOversizedChunkAdmittedWhenEmpty() {
+        runBlocking {
+            val buf = ReceiveBuffer(1024)
+            withTimeout(1000) { buf.send(OwnedBuffer.wrap(ByteArray(4096))) }
+            assertEquals(4096L, buf.bufferedBytes)
+        }
+    }
+
+    @Test
+    fun testRaisingBudgetUnblocksProducer() {
+        runBlocking {
+            val buf = ReceiveBuffer(1000)
+            buf.send(OwnedBuffer.wrap(ByteArray(800)))
+
+            val blocked = async { buf.send(OwnedBuffer.wrap(ByteArray(400))) }
+            delay(100)
+            assertFalse(blocked.isCompleted)
+
+            buf.budget = 2000
+            withTimeout(1000) { blocked.await() }
+            assertEquals(1200L, buf.bufferedBytes)
+        }
+    }
+
+    @Test
+    fun testUndeliveredReleasedOnClose() {
+        runBlocking {
+            val buf = ReceiveBuffer(1024)
+            buf.send(OwnedBuffer.wrap(ByteArray(100)))
+            buf.close()
+            buf.channel.cancel()
+            assertEquals(0L, buf.bufferedBytes)
+        }
+    }
+}
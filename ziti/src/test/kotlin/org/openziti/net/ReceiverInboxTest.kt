@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel as Chan
+import kotlinx.coroutines.plus
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.ZitiProtocol.ContentType
+
+class ReceiverInboxTest {
+
+    private class Recorder : Channel.MessageReceiver {
+        val gate = CompletableDeferred<Unit>()
+        val received = Chan<Result<Message>>(Chan.UNLIMITED)
+
+        override suspend fun receive(msg: Result<Message>) {
+            gate.await()
+            received.send(msg)
+        }
+    }
+
+    private fun data(i: Int, size: Int = 100) =
+        Message(ContentType.Data, ByteArray(size) { i.toByte() })
+
+    @Test
+    fun testOrderedDeliveryWithSlowReceiver() {
+        runBlocking {
+            val rec = Recorder()
+            val inbox = ReceiverInbox(1, rec, this + Dispatchers.Default, 1024 * 1024)
+
+            // receiver is stalled; offers must not block
+            for (i in 0 until 50) assertTrue(inbox.offer(data(i)))
+            assertEquals(50 * 100L, inbox.queuedBytes)
+
+            rec.gate.complete(Unit)
+            withTimeout(5000) {
+                for (i in 0 until 50) {
+                    assertEquals(i.toByte(), rec.received.receive().getOrThrow().body[0])
+                }
+            }
+            assertEquals(0, inbox.queuedBytes)
+        }
+    }
+
+    @Test
+    fun testResetOverLimit() {
+        runBlocking {
+            val rec = Recorder()
+            val inbox = ReceiverInbox(1, rec, this + Dispatchers.Default, 1000)
+
+            assertTrue(inbox.offer(data(0, 600)))
+            // over the limit: connection is reset instead of buffering more
+            assertFalse(inbox.offer(data(1, 600)))
+            assertFalse(inbox.offer(data(2, 10)))
+
+            rec.gate.complete(Unit)
+            withTimeout(5000) {
+                var r = rec.received.receive()
+                // first message may have been handed to the receiver before the reset
+                if (r.isSuccess) r = rec.received.receive()
+                assertTrue(r.exceptionOrNull() is java.io.IOException)
+            }
+            assertEquals(0, inbox.queuedBytes)
+        }
+    }
+
+    @Test
+    fun testFailDeliveredOnce() {
+        runBlocking {
+            val rec = Recorder()
+            rec.gate.complete(Unit)
+            val inbox = ReceiverInbox(1, rec, this + Dispatchers.Default, 1000)
+
+            inbox.fail(IllegalStateException("first"))
+            inbox.fail(IllegalStateException("second"))
+            withTimeout(5000) {
+                assertEquals("first", rec.received.receive().exceptionOrNull()?.message)
+            }
+            assertFalse(inbox.offer(data(0)))
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018-2022 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.Header
+
+class TxQueueTest {
+
+    private fun data(connId: Int, size: Int = 10) =
+        Message(ContentType.Data, ByteArray(size)).setHeader(Header.ConnId, connId)
+
+    @Test
+    fun testControlPriority() {
+        runBlocking {
+            val q = TxQueue(1024 * 1024)
+            q.send(data(1))
+            q.send(data(1))
+            q.send(Message(ContentType.LatencyType))
+
+            assertEquals(ContentType.LatencyType, q.receive().content)
+            assertEquals(ContentType.Data, q.receive().content)
+            assertEquals(ContentType.Data, q.receive().content)
+            assertNull(q.tryReceive())
+            assertEquals(1, q.controlWait.count)
+            assertEquals(2, q.dataWait.count)
+        }
+    }
+
+    @Test
+    fun testControlOrderedBehindConnectionData() {
+        runBlocking {
+            val q = TxQueue(1024 * 1024)
+            q.send(data(1))
+            q.send(Message(ContentType.StateClosed).setHeader(Header.ConnId, 1))
+            q.send(Message(ContentType.StateClosed).setHeader(Header.ConnId, 2))
+
+            assertEquals(2, q.receive().getIntHeader(Header.ConnId))
+            assertEquals(ContentType.Data, q.receive().content)
+            assertEquals(ContentType.StateClosed, q.receive().content)
+        }
+    }
+
+    @Test
+    fun testRoundRobin() {
+        runBlocking {
+            val q = TxQueue(1024 * 1024)
+            repeat(5) { q.send(data(1)) }
+            q.send(data(2))
+            q.send(data(3))
+
+            val order = List(7) { q.receive().getIntHeader(Header.ConnId) }
+            assertEquals(listOf(1, 2, 3, 1, 1, 1, 1), order)
+        }
+    }
+
+    @Test
+    fun testByteBudget() {
+        runBlocking {
+            val q = TxQueue(1000)
+            q.send(data(1, 600))
+            assertEquals(1, q.dataDepth)
+
+            val blocked = async { q.send(data(2, 600)) }
+            delay(100)
+            assertFalse(blocked.isCompleted)
+
+            // control messages are never held back by the data budget
+            withTimeout(1000) { q.send(Message(ContentType.LatencyType)) }
+
+            assertEquals(ContentType.LatencyType, q.receive().content)
+            assertEquals(1, q.receive().getIntHeader(Header.ConnId))
+            withTimeout(1000) { blocked.await() }
+            assertEquals(2, q.receive().getIntHeader(Header.ConnId))
+            assertEquals(0, q.queuedBytes)
+        }
+    }
+
+    @Test
+    fun testClear() {
+        runBlocking {
+            val q = TxQueue(100)
+            q.send(data(1, 90))
+            q.send(Message(ContentType.LatencyType))
+            val blocked = async { q.send(data(2, 90)) }
+            delay(50)
+
+            assertEquals(2, q.clear())
+            withTimeout(1000) { blocked.await() }
+            assertEquals(2, q.receive().getIntHeader(Header.ConnId))
+            assertNull(q.tryReceive())
+            assertEquals(0, q.queuedBytes)
+        }
+    }
+
+    @Test
+    fun testClearKeepsReservations() {
+        runBlocking {
+            val q = TxQueue(100)
+            q.send(data(1, 40))
+            val m = q.tryReceive()!! // received, bytes already given back
+            q.send(data(2, 40))
+
+            assertEquals(1, q.clear())
+            assertEquals(0L, q.queuedBytes)
+            assertEquals(1, m.getIntHeader(Header.ConnId))
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.plus
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+class WriteCoalescerTest {
+
+    @Test
+    fun testSmallWritesAreCoalesced() {
+        runBlocking {
+            val gate = CompletableDeferred<Unit>()
+            val chunks = Channel<ByteArray>(Channel.UNLIMITED)
+            val coalescer = WriteCoalescer(this + Dispatchers.Default, 1024) { chunk ->
+                gate.await()
+                chunks.send(ByteArray(chunk.remaining()).also { chunk.get(it) })
+            }
+
+            val expected = ByteArrayOutputStream()
+            // first write is picked up right away, the rest pile up while it is being emitted
+            for (i in 0 until 100) {
+                val b = "msg-$i;".toByteArray()
+                expected.write(b)
+                assertEquals(b.size.toLong(), coalescer.write(listOf(ByteBuffer.wrap(b))))
+            }
+            gate.complete(Unit)
+            withTimeout(5000) { coalescer.flush() }
+            chunks.close()
+
+            val received = ByteArrayOutputStream()
+            var count = 0
+            for (c in chunks) {
+                assertTrue(c.size <= 1024)
+                received.write(c)
+                count++
+            }
+            assertArrayEquals(expected.toByteArray(), received.toByteArray())
+            assertTrue("expected coalesced chunks, got $count", count < 10)
+        }
+    }
+
+    @Test
+    fun testLargeWriteIsChunked() {
+        runBlocking {
+            val sizes = mutableListOf<Int>()
+            val coalescer = WriteCoalescer(this + Dispatchers.Default, 1000) { chunk ->
+                synchronized(sizes) { sizes.add(chunk.remaining()) }
+            }
+
+            val srcs = listOf(ByteBuffer.allocate(2500), ByteBuffer.allocate(700))
+            withTimeout(5000) {
+                assertEquals(3200, coalescer.write(srcs))
+                coalescer.flush()
+            }
+            assertEquals(3200, sizes.sum())
+            assertTrue(sizes.all { it <= 1000 })
+        }
+    }
+
+    @Test
+    fun testEmitErrorIsReported() {
+        runBlocking {
+            val coalescer = WriteCoalescer(this + Dispatchers.Default, 100) {
+                throw IOException("boom")
+            }
+
+            coalescer.write(listOf(ByteBuffer.allocate(10)))
+            val err = runCatching { withTimeout(5000) { coalescer.flush() } }.exceptionOrNull()
+            assertTrue(err is IOException)
+
+            val err2 = runCatching { coalescer.write(listOf(ByteBuffer.allocate(10))) }.exceptionOrNull()
+            assertTrue(err2 is IOException)
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.openziti.net
+
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.openziti.ZitiAddress
+import org.openziti.impl.ZitiContextImpl
+import org.openziti.impl.connected
+import org.openziti.impl.testContext
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.Header
+import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.channels.Channel as Chan
+
+class ZitiServerSocketChannelTest {
+
+    private lateinit var ctx: ZitiContextImpl
+
+    @Before
+    fun setup() {
+        ctx = testContext()
+    }
+
+    @After
+    fun tearDown() {
+        ctx.destroy()
+    }
+
+    @Test
+    fun testAcceptedConnectionIsSampled() {
+        val er = connected("er").apply { reply = { Message(ContentType.StateConnected) } }
+        val server = ZitiServerSocketChannel(ctx).apply {
+            localAddr = ZitiAddress.Bind("svc")
+            channel = er
+            incoming = Chan(1)
+            state = ZitiServerSocketChannel.State.bound
+        }
+        server.incoming.trySend(Message(ContentType.Dial)).getOrThrow()
+        val child = server.accept().get(5, TimeUnit.SECONDS) as ZitiSocketChannel
+
+        val start = System.nanoTime()
+        ctx.sampleTraffic(start)
+        runBlocking {
+            child.receive(Result.success(Message(ContentType.Data, ByteArray(1000)).setHeader(Header.ConnId, child.connId)))
+        }
+        ctx.sampleTraffic(start + TimeUnit.SECONDS.toNanos(1))
+
+        assertTrue(child.getNetworkStats().downRate > 0.0)
+        assertTrue(ctx.getNetworkStats("svc")!!.downRate > 0.0)
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.openziti.net
+
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.openziti.crypto.Crypto
+import org.openziti.impl.ZitiContextImpl
+import org.openziti.impl.connected
+import org.openziti.impl.testContext
+import org.openziti.net.ZitiProtocol.ContentType
+import org.openziti.net.ZitiProtocol.CryptoMethod
+import org.openziti.net.ZitiProtocol.Header
+import java.io.IOException
+import java.net.ConnectException
+import java.nio.channels.ClosedChannelException
+
+class ZitiSocketChannelReceiveTest {
+
+    private lateinit var ctx: ZitiContextImpl
+
+    @Before
+    fun setup() {
+        ctx = testContext()
+    }
+
+    @After
+    fun tearDown() {
+        ctx.destroy()
+    }
+
+    private fun data(conn: ZitiSocketChannel, body: ByteArray) =
+        Message(ContentType.Data, body).setHeader(Header.ConnId, conn.connId)
+
+    @Test
+    fun testCryptoMismatchFailsConnection() {
+        val dialerKeys = Crypto.newKeyPair()
+        val hostKeys = Crypto.newKeyPair()
+
+        val conn = ZitiSocketChannel(ctx)
+        conn.channel.complete(connected("er"))
+        conn.setupCrypto(Crypto.kx(dialerKeys, hostKeys.publicKey, false), CryptoMethod.AES256_GCM)
+        // peer never saw the negotiated method and uses libsodium
+        val peer = Crypto.newStream(Crypto.kx(hostKeys, dialerKeys.publicKey, true), CryptoMethod.Libsodium)
+
+        runBlocking {
+            conn.receive(Result.success(data(conn, peer.header())))
+            val err = withTimeout(5000) { conn.receiveBuffer.channel.receiveCatching() }.exceptionOrNull()
+            assertTrue("$err", err is IOException)
+        }
+        assertFalse(conn.isOpen)
+    }
+
+    @Test
+    fun testMatchingCryptoDelivers() {
+        val dialerKeys = Crypto.newKeyPair()
+        val hostKeys = Crypto.newKeyPair()
+
+        val conn = ZitiSocketChannel(ctx)
+        conn.channel.complete(connected("er"))
+        conn.setupCrypto(Crypto.kx(dialerKeys, hostKeys.publicKey, false), CryptoMethod.AES256_GCM)
+        val peer = Crypto.newStream(Crypto.kx(hostKeys, dialerKeys.publicKey, true), CryptoMethod.AES256_GCM)
+
+        runBlocking {
+            conn.receive(Result.success(data(conn, peer.header())))
+            conn.receive(Result.success(data(conn, peer.encrypt("hello".toByteArray()))))
+            val chunk = withTimeout(5000) { conn.receiveBuffer.channel.receive() }
+            val b = ByteArray(chunk.buffer.remaining()).also { chunk.buffer.get(it) }
+            chunk.release()
+            assertEquals("hello", String(b))
+        }
+        assertTrue(conn.isOpen)
+    }
+
+    @Test
+    fun testRouterFailures() {
+        assertTrue(ZitiSocketChannel.isRouterFailure(IOException("Invalid response type")))
+        assertTrue(ZitiSocketChannel.isRouterFailure(ClosedChannelException()))
+        // service rejected the dial
+        assertFalse(ZitiSocketChannel.isRouterFailure(ConnectException("no terminators")))
+        assertFalse(ZitiSocketChannel.isRouterFailure(IllegalStateException("bad key")))
+    }
+
+    @Test
+    fun testContextReceiveBufferSize() {
+        ctx.setReceiveBufferSize(64 * 1024)
+        assertEquals(64 * 1024, ctx.receiveBufferSize)
+        assertEquals(64 * 1024, ZitiSocketChannel(ctx).receiveBuffer.budget)
+
+        assertThrows(IllegalArgumentException::class.java) { ctx.setReceiveBufferSize(0) }
+        assertEquals(64 * 1024, ctx.receiveBufferSize)
+    }
+}
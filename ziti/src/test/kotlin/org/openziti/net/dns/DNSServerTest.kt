@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.net.dns
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.Writer
+import java.net.*
+import kotlin.concurrent.thread
+
+class DNSServerTest {
+
+    private class TestResolver(vararg entries: Pair<String, String>) : DNSResolver {
+        val names = entries.associate { (n, a) -> n to InetAddress.getByName(a) }
+        override fun resolve(hostname: String) = names[hostname.lowercase()]
+        override fun lookup(addr: InetAddress) = names.entries.firstOrNull { it.value == addr }?.key
+        override fun getPoolStats() = DNSResolver.PoolStats(0, names.size, 0, 0, 0, 0, 0)
+        override fun dump(writer: Writer) {}
+    }
+
+    private val loopback = InetSocketAddress(InetAddress.getLoopbackAddress(), 0)
+    private val servers = mutableListOf<DNSServer>()
+
+    private fun server(resolver: DNSResolver, upstream: InetSocketAddress? = null, config: DNSServer.() -> Unit = {}) =
+        DNSServer(loopback, upstream, resolver).apply(config).start().also { servers.add(it) }
+
+    @After
+    fun tearDown() {
+        servers.forEach { it.close() }
+    }
+
+    private fun udpQuery(server: InetSocketAddress, name: String, type: Int, id: Int = 4242): DnsMessage =
+        DatagramSocket().use { s ->
+            s.soTimeout = 5_000
+            val q = DnsMessage.query(id, name, type)
+            s.send(DatagramPacket(q, q.size, server))
+            val buf = ByteArray(DnsMessage.MAX_UDP_SIZE)
+            val p = DatagramPacket(buf, buf.size)
+            s.receive(p)
+            DnsMessage.parse(buf.copyOf(p.length))!!
+        }
+
+    private fun tcpQuery(server: InetSocketAddress, vararg names: String): List<DnsMessage> = Socket().use { s ->
+        s.soTimeout = 5_000
+        s.connect(server)
+        val out = DataOutputStream(s.getOutputStream())
+        names.forEachIndexed { i, n ->
+            val q = DnsMessage.query(i, n, DnsMessage.TYPE_A)
+            out.writeShort(q.size)
+            out.write(q)
+        }
+        out.flush()
+        val inp = DataInputStream(s.getInputStream())
+        names.map {
+            val msg = ByteArray(inp.readUnsignedShort())
+            inp.readFully(msg)
+            DnsMessage.parse(msg)!!
+        }
+    }
+
+    @Test
+    fun testLocalAnswers() {
+        val srv = server(TestResolver("web.ziti" to "100.64.1.2", "v6.ziti" to "fd00::2"))
+
+        val a = udpQuery(srv.localAddress, "WEB.ziti", DnsMessage.TYPE_A)
+        assertEquals(4242, a.id)
+        assertTrue(a.isResponse)
+        assertEquals(DnsMessage.RCODE_OK, a.rcode)
+        assertEquals("WEB.ziti", a.question?.name)
+        assertEquals(1, a.answers.size)
+        assertEquals(DnsMessage.TYPE_A, a.answers[0].type)
+        assertEquals("WEB.ziti", a.answers[0].name)
+        assertEquals(InetAddress.getByName("100.64.1.2"), InetAddress.getByAddress(a.answers[0].data))
+
+        val aaaa = udpQuery(srv.localAddress, "v6.ziti", DnsMessage.TYPE_AAAA)
+        assertEquals(InetAddress.getByName("fd00::2"), InetAddress.getByAddress(aaaa.answers.single().data))
+
+        // known name, no address of requested type
+        val noData = udpQuery(srv.localAddress, "web.ziti", DnsMessage.TYPE_AAAA)
+        assertEquals(DnsMessage.RCODE_OK, noData.rcode)
+        assertTrue(noData.answers.isEmpty())
+
+        val ptr = udpQuery(srv.localAddress, "2.1.64.100.in-addr.arpa", DnsMessage.TYPE_PTR)
+        val ptrData = ptr.answers.single().data
+        assertEquals("web.ziti", DnsMessage.readName(ptrData, 0).first)
+
+        val ptr6 = udpQuery(srv.localAddress, DnsMessage.reverseName(InetAddress.getByName("fd00::2")), DnsMessage.TYPE_PTR)
+        assertEquals("v6.ziti", DnsMessage.readName(ptr6.answers.single().data, 0).first)
+
+        // no upstream
+        assertEquals(DnsMessage.RCODE_REFUSED, udpQuery(srv.localAddress, "example.com", DnsMessage.TYPE_A).rcode)
+
+        assertEquals(6L, srv.registry.meter("ziti.dns.server.queries").count)
+        assertEquals(5L, srv.registry.timer("ziti.dns.server.local").count)
+    }
+
+    @Test
+    fun testTcp() {
+        val srv = server(TestResolver("web.ziti" to "100.64.1.2", "db.ziti" to "100.64.1.3"))
+
+        val (web, db) = tcpQuery(srv.localAddress, "web.ziti", "db.ziti")
+        assertEquals(0, web.id)
+        assertEquals(InetAddress.getByName("100.64.1.2"), InetAddress.getByAddress(web.answers.single().data))
+        assertEquals(1, db.id)
+        assertEquals(InetAddress.getByName("100.64.1.3"), InetAddress.getByAddress(db.answers.single().data))
+    }
+
+    @Test
+    fun testClose() {
+        val srv = server(TestResolver("web.ziti" to "100.64.1.2"))
+        val addr = srv.localAddress
+        // idle TCP client connection is closed by the selector thread
+        Socket().use { client ->
+            client.soTimeout = 5_000
+            client.connect(addr)
+            Thread.sleep(100)
+
+            srv.close()
+            assertEquals(-1, client.getInputStream().read())
+        }
+
+        // sockets are released once close() returns
+        DatagramSocket(addr).close()
+        ServerSocket().use {
+            it.reuseAddress = true // closed client connection may linger in TIME_WAIT
+            it.bind(addr)
+        }
+        srv.close()
+    }
+
+    @Test
+    fun testForwardAndCache() {
+        val upstream = server(TestResolver("example.com" to "192.0.2.10")) { answerTtl = 120 }
+        val srv = server(TestResolver("web.ziti" to "100.64.1.2"), upstream.localAddress)
+
+        val first = udpQuery(srv.localAddress, "example.com", DnsMessage.TYPE_A, id = 1)
+        assertEquals(1, first.id)
+        assertEquals(InetAddress.getByName("192.0.2.10"), InetAddress.getByAddress(first.answers.single().data))
+
+        val second = udpQuery(srv.localAddress, "Example.COM", DnsMessage.TYPE_A, id = 2)
+        assertEquals(2, second.id)
+        assertEquals(InetAddress.getByName("192.0.2.10"), InetAddress.getByAddress(second.answers.single().data))
+        assertTrue(second.answers.single().ttl <= 120)
+
+        // upstream refuses, not cached
+        assertEquals(DnsMessage.RCODE_REFUSED, udpQuery(srv.localAddress, "other.com", DnsMessage.TYPE_A).rcode)
+        assertEquals(DnsMessage.RCODE_REFUSED, udpQuery(srv.localAddress, "other.com", DnsMessage.TYPE_A).rcode)
+
+        assertEquals(3L, upstream.registry.meter("ziti.dns.server.queries").count)
+        assertEquals(3L, srv.registry.timer("ziti.dns.server.upstream").count)
+        assertEquals(1L, srv.registry.timer("ziti.dns.server.cached").count)
+    }
+
+    @Test
+    fun testTcpForwardedOverTcp() {
+        val lo = InetAddress.getLoopbackAddress()
+        ServerSocket(0, 1, lo).use { upstream ->
+            // UDP side of upstream never answers
+            DatagramSocket(upstream.localPort, lo).use {
+                val srv = server(TestResolver(), InetSocketAddress(lo, upstream.localPort))
+                val responder = thread {
+                    upstream.accept().use { s ->
+                        val inp = DataInputStream(s.getInputStream())
+                        val q = ByteArray(inp.readUnsignedShort()).also { inp.readFully(it) }
+                        val r = DnsMessage.parse(q)!!.reply(DnsMessage.RCODE_OK, false, true,
+                            listOf(DnsMessage.Answer(DnsMessage.TYPE_A, 60, byteArrayOf(192.toByte(), 0, 2, 10))))
+                        DataOutputStream(s.getOutputStream()).apply {
+                            writeShort(r.size)
+                            write(r)
+                            flush()
+                        }
+                    }
+                }
+
+                val resp = tcpQuery(srv.localAddress, "example.com").single()
+                assertEquals(DnsMessage.RCODE_OK, resp.rcode)
+                assertEquals(InetAddress.getByName("192.0.2.10"), InetAddress.getByAddress(resp.answers.single().data))
+                responder.join(5_000)
+            }
+        }
+    }
+
+    @Test
+    fun testUpstreamTimeout() {
+        DatagramSocket(0, InetAddress.getLoopbackAddress()).use { blackHole ->
+            val srv = server(TestResolver(), blackHole.localSocketAddress as InetSocketAddress) {
+                upstreamTimeout = 200
+            }
+
+            val resp = udpQuery(srv.localAddress, "example.com", DnsMessage.TYPE_A)
+            assertEquals(DnsMessage.RCODE_SERVFAIL, resp.rcode)
+            assertEquals(1L, srv.registry.meter("ziti.dns.server.failures").count)
+        }
+    }
+
+    @Test
+    fun testMalformed() {
+        val srv = server(TestResolver())
+        DatagramSocket().use { s ->
+            s.soTimeout = 5_000
+            val q = DnsMessage.query(7, "web.ziti", DnsMessage.TYPE_A).copyOf(20) // truncated question
+            s.send(DatagramPacket(q, q.size, srv.localAddress))
+            val buf = ByteArray(DnsMessage.MAX_UDP_SIZE)
+            val p = DatagramPacket(buf, buf.size)
+            s.receive(p)
+            val resp = DnsMessage.parse(buf.copyOf(p.length))!!
+            assertEquals(7, resp.id)
+            assertEquals(DnsMessage.RCODE_FORMERR, resp.rcode)
+        }
+    }
+
+    @Test
+    fun testReverseName() {
+        val v4 = InetAddress.getByName("100.64.1.2")
+        assertEquals("2.1.64.100.in-addr.arpa", DnsMessage.reverseName(v4))
+        assertEquals(v4, DnsMessage.reverseAddress("2.1.64.100.IN-ADDR.ARPA."))
+
+        val v6 = InetAddress.getByName("2001:db8::1")
+        assertEquals(v6, DnsMessage.reverseAddress(DnsMessage.reverseName(v6)))
+        assertNull(DnsMessage.reverseAddress("1.2.3.in-addr.arpa"))
+        assertNull(DnsMessage.reverseAddress("example.com"))
+    }
+}
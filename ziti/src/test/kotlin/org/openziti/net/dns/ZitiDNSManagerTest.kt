@@ -16,17 +16,18 @@
 
 package org.openziti.net.dns
 
-import org.junit.After
 import org.junit.Assert.*
 import org.junit.Test
 import org.openziti.api.asInterceptAddr
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 class ZitiDNSManagerTest {
 
-    @After
-    fun tearDown() {
-        ZitiDNSManager.reset()
-    }
+    private var now = 1_000L
+
+    private fun table(wildcardLimit: Int = 4096, wildcardTtl: Long = 30 * 60_000L) =
+        ZitiDNSTable(wildcardLimit, wildcardTtl) { now }
 
     @Test
     fun cidrMatchTest() {
@@ -51,24 +52,135 @@ class ZitiDNSManagerTest {
 
     @Test
     fun testWildcard() {
-        val hostIP = ZitiDNSManager.registerHostname("host.ziggy.IO")
+        val dns = table()
+        val hostIP = dns.registerHostname("host.ziggy.IO")
         assertNotNull(hostIP)
 
         val domain = "bar.ziti"
-        ZitiDNSManager.registerDomain("*.$domain")
+        dns.registerDomain("*.$domain")
 
-        val valid = ZitiDNSManager.resolve("FOO.$domain")
+        val valid = dns.resolve("FOO.$domain")
         assertNotNull(valid)
-        assertEquals("foo.$domain", ZitiDNSManager.lookup(valid!!))
+        assertEquals("foo.$domain", dns.lookup(valid!!))
 
-        val invalid = ZitiDNSManager.resolve("foo.${domain}.com")
+        val invalid = dns.resolve("foo.${domain}.com")
         assertNull(invalid)
 
-        val hostAddr = ZitiDNSManager.resolve("HOST.ziggy.io")
+        val hostAddr = dns.resolve("HOST.ziggy.io")
         assertNotNull(hostAddr)
         assertSame(hostIP, hostAddr)
 
-        ZitiDNSManager.unregisterDomain(domain)
-        assertNull(ZitiDNSManager.resolve("FOO.$domain"))
+        dns.unregisterDomain(domain)
+        assertNull(dns.resolve("FOO.$domain"))
+    }
+
+    @Test
+    fun testWildcardEviction() {
+        val dns = table(wildcardLimit = 2)
+        dns.registerDomain("*.pool.ziti")
+
+        val a = dns.resolve("a.pool.ziti")!!
+        now += 10
+        val b = dns.resolve("b.pool.ziti")!!
+        now += 10
+        // touch a, b is now least recently used
+        assertEquals("a.pool.ziti", dns.lookup(a))
+        now += 10
+
+        val c = dns.resolve("c.pool.ziti")!!
+        assertNull(dns.lookup(b))
+        assertEquals("a.pool.ziti", dns.lookup(a))
+        assertEquals("c.pool.ziti", dns.lookup(c))
+
+        val stats = dns.getPoolStats()
+        assertEquals(2, stats.wildcards)
+        assertEquals(1L, stats.evictions)
+        assertEquals(1, stats.recycled)
+
+        // evicted name gets a new address
+        val b2 = dns.resolve("b.pool.ziti")!!
+        assertNotEquals(b, b2)
+        assertEquals(2, dns.getPoolStats().wildcards)
+    }
+
+    @Test
+    fun testLruOrder() {
+        val dns = table(wildcardLimit = 3)
+        dns.registerDomain("*.lru.ziti")
+
+        val addrs = listOf("a", "b", "c").associateWith { dns.resolve("$it.lru.ziti")!! }
+        dns.lookup(addrs["a"]!!)
+        dns.resolve("b.lru.ziti")
+
+        dns.resolve("d.lru.ziti")
+        assertNull(dns.lookup(addrs["c"]!!))
+        dns.resolve("e.lru.ziti")
+        assertNull(dns.lookup(addrs["a"]!!))
+        assertEquals("b.lru.ziti", dns.lookup(addrs["b"]!!))
+        assertEquals(2L, dns.getPoolStats().evictions)
+    }
+
+    @Test
+    fun testWildcardExpiry() {
+        val dns = table(wildcardTtl = 1_000)
+        dns.registerDomain("*.ttl.ziti")
+        val host = dns.registerHostname("static.ttl.ziti")
+
+        val old = dns.resolve("old.ttl.ziti")!!
+        now += 2_000
+        dns.resolve("new.ttl.ziti")
+
+        assertNull(dns.lookup(old))
+        // service host names never expire
+        assertEquals("static.ttl.ziti", dns.lookup(host))
+
+        val stats = dns.getPoolStats()
+        assertEquals(1, stats.hosts)
+        assertEquals(1, stats.wildcards)
+        assertEquals(1L, stats.expirations)
+    }
+
+    @Test
+    fun testPromoteWildcard() {
+        val dns = table()
+        dns.registerDomain("*.promo.ziti")
+        val wild = dns.resolve("db.promo.ziti")!!
+        val host = dns.registerHostname("db.promo.ziti")
+        assertEquals(wild, host)
+
+        val stats = dns.getPoolStats()
+        assertEquals(1, stats.hosts)
+        assertEquals(0, stats.wildcards)
+
+        dns.unregisterDomain("*.promo.ziti")
+        assertEquals("db.promo.ziti", dns.lookup(host))
+    }
+
+    @Test
+    fun testConcurrentResolve() {
+        val dns = ZitiDNSTable(64, 30 * 60_000L)
+        dns.registerDomain("*.mt.ziti")
+
+        val pool = Executors.newFixedThreadPool(8)
+        try {
+            val results = (0 until 8).map { t ->
+                pool.submit<List<Pair<String, String?>>> {
+                    (0 until 500).map { i ->
+                        val name = "h${(i * 7 + t) % 100}.mt.ziti"
+                        val addr = dns.resolve(name)
+                        name to addr?.let { dns.lookup(it) }
+                    }
+                }
+            }.flatMap { it.get(10, TimeUnit.SECONDS) }
+
+            // a name may be evicted right after being resolved, but never mapped to another name
+            results.forEach { (name, found) -> assertTrue("$name => $found", found == null || found == name) }
+
+            val stats = dns.getPoolStats()
+            assertTrue(stats.wildcards <= 64)
+            assertEquals(stats.wildcards, dns.ip2host.size)
+        } finally {
+            pool.shutdownNow()
+        }
     }
-}
\ No newline at end of file
+}
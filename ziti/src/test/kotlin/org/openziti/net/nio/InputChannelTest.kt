@@ -19,11 +19,16 @@ package org.openziti.net.nio
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.runBlocking
 import org.junit.Rule
 import org.junit.Test
 import org.junit.jupiter.api.assertDoesNotThrow
 import org.junit.jupiter.api.assertThrows
+import org.openziti.net.Frame
+import org.openziti.net.FramePool
 import org.openziti.net.InputChannel
+import org.openziti.net.OwnedBuffer
+import org.openziti.net.ZitiProtocol
 import org.openziti.util.Logged
 import org.openziti.util.ZitiLog
 import java.nio.ByteBuffer
@@ -34,11 +39,14 @@ import kotlin.random.Random
 import kotlin.test.assertContentEquals
 import kotlin.test.assertEquals
 import kotlin.test.assertIs
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
 
 class InputChannelTest {
     class TestInputChannel(var connected: Boolean = true) : InputChannel<TestInputChannel>, Logged by ZitiLog(),
         CoroutineScope by CoroutineScope(Dispatchers.IO) {
         val inbound = Channel<ByteArray>(16)
+        @Suppress("DEPRECATION")
         override val inputSupport = InputChannel.InputSupport(inbound)
         override fun isClosed(): Boolean = closed
         override fun isConnected(): Boolean = connected
@@ -220,4 +228,82 @@ class InputChannelTest {
 
         assertEquals(-1, ch.read(ByteBuffer.allocate(128)).get(100, TimeUnit.MILLISECONDS))
     }
-}
\ No newline at end of file
+
+    class OwnedInputChannel : InputChannel<OwnedInputChannel>, Logged by ZitiLog(),
+        CoroutineScope by CoroutineScope(Dispatchers.IO) {
+        val inbound = Channel<OwnedBuffer>(16) { it.release() }
+        override val inputSupport = InputChannel.InputSupport.ofBuffers(inbound)
+        override fun isClosed(): Boolean = false
+        override fun isConnected(): Boolean = true
+    }
+
+    private fun frameBuffer(pool: FramePool, data: ByteArray, frames: MutableList<Frame>): OwnedBuffer {
+        val frame = pool.acquire().begin(ZitiProtocol.ContentType.Data.id)
+        frames.add(frame)
+        frame.body(data.size).put(data)
+        return OwnedBuffer(frame.body(), frame)
+    }
+
+    @Test
+    fun testReadOwned() {
+        val ch = TestInputChannel()
+        ch.inbound.trySend("hello".encodeToByteArray()).getOrThrow()
+        ch.inbound.close()
+
+        runBlocking {
+            val b = ch.readOwned()!!
+            assertEquals("hello", Charsets.UTF_8.decode(b.buffer).toString())
+            b.release()
+            assertNull(ch.readOwned())
+        }
+    }
+
+    @Test
+    fun testOwnedBuffersAreReleased() {
+        val pool = FramePool(4, 1024)
+        val frames = mutableListOf<Frame>()
+        val ch = OwnedInputChannel()
+        ch.inbound.trySend(frameBuffer(pool, "0123456789".encodeToByteArray(), frames)).getOrThrow()
+        ch.inbound.trySend(frameBuffer(pool, "abcdef".encodeToByteArray(), frames)).getOrThrow()
+        ch.inbound.close()
+
+        // partial copy read leaves the rest of the chunk for the zero-copy read
+        val b = ByteBuffer.allocate(4)
+        assertEquals(4, ch.read(b).get())
+        assertEquals("0123", Charsets.UTF_8.decode(b.flip()).toString())
+
+        runBlocking {
+            val rest = ch.readOwned()!!
+            assertEquals("456789", Charsets.UTF_8.decode(rest.buffer).toString())
+            rest.release()
+
+            val next = ch.readOwned()!!
+            assertEquals("abcdef", Charsets.UTF_8.decode(next.buffer).toString())
+            next.release()
+            next.release() // idempotent
+
+            assertNull(ch.readOwned())
+        }
+
+        // both frames went back to the pool
+        assertTrue(frames.all { it.isReleased })
+        assertEquals(frames.toSet(), setOf(pool.acquire(), pool.acquire()))
+    }
+
+    @Test
+    fun testLeftoverProperty() {
+        val ch = OwnedInputChannel()
+        ch.inbound.trySend(OwnedBuffer.wrap("0123456789".encodeToByteArray())).getOrThrow()
+
+        assertEquals(4, ch.read(ByteBuffer.allocate(4)).get())
+        assertEquals("456789", Charsets.UTF_8.decode(ch.inputSupport.leftover!!.duplicate()).toString())
+
+        ch.inputSupport.leftover = ByteBuffer.wrap("xy".encodeToByteArray())
+        val b = ByteBuffer.allocate(8)
+        assertEquals(2, ch.read(b).get())
+        assertEquals("xy", Charsets.UTF_8.decode(b.flip()).toString())
+        assertNull(ch.inputSupport.leftover)
+
+        assertThrows<UnsupportedOperationException> { ch.inputSupport.queue }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.net.InetAddress
+
+class CidrTrieTest {
+
+    private fun ip(s: String) = InetAddress.getByName(s).address
+
+    private fun CidrTrie<String>.add(cidr: String) {
+        val (addr, bits) = cidr.split('/')
+        add(ip(addr), bits.toInt(), cidr)
+    }
+
+    @Test
+    fun testLongestMatch() {
+        val t = CidrTrie<String>()
+        listOf("10.0.0.0/8", "10.1.0.0/16", "10.1.2.0/24", "10.1.2.3/32", "0.0.0.0/0", "10.128.0.0/9")
+            .forEach { t.add(it) }
+
+        assertEquals(6, t.size)
+        assertEquals("10.1.2.3/32", t.longestMatch(ip("10.1.2.3"))?.value)
+        assertEquals(32, t.longestMatch(ip("10.1.2.3"))?.bits)
+        assertEquals("10.1.2.0/24", t.longestMatch(ip("10.1.2.4"))?.value)
+        assertEquals("10.1.0.0/16", t.longestMatch(ip("10.1.3.4"))?.value)
+        assertEquals("10.128.0.0/9", t.longestMatch(ip("10.200.3.4"))?.value)
+        assertEquals("10.0.0.0/8", t.longestMatch(ip("10.2.3.4"))?.value)
+        assertEquals("0.0.0.0/0", t.longestMatch(ip("192.168.1.1"))?.value)
+
+        assertEquals(listOf("10.1.2.0/24", "10.1.0.0/16", "10.0.0.0/8", "0.0.0.0/0"), t.matches(ip("10.1.2.200")))
+    }
+
+    @Test
+    fun testInsertOrder() {
+        // shorter prefix inserted after longer ones splits existing edges
+        val t = CidrTrie<String>()
+        listOf("192.168.10.0/24", "192.168.20.0/24", "192.168.0.0/16", "192.168.16.0/20").forEach { t.add(it) }
+
+        assertEquals("192.168.10.0/24", t.longestMatch(ip("192.168.10.1"))?.value)
+        assertEquals("192.168.20.0/24", t.longestMatch(ip("192.168.20.1"))?.value)
+        assertEquals("192.168.16.0/20", t.longestMatch(ip("192.168.17.1"))?.value)
+        assertEquals("192.168.0.0/16", t.longestMatch(ip("192.168.1.1"))?.value)
+        assertNull(t.longestMatch(ip("192.169.0.1")))
+    }
+
+    @Test
+    fun testPredicate() {
+        val t = CidrTrie<String>()
+        t.add("10.0.0.0/8")
+        t.add("10.1.0.0/16")
+
+        val m = t.longestMatch(ip("10.1.1.1")) { it != "10.1.0.0/16" }
+        assertEquals("10.0.0.0/8", m?.value)
+        assertEquals(8, m?.bits)
+    }
+
+    @Test
+    fun testIPv6() {
+        val t = CidrTrie<String>()
+        t.add("2001:db8::/32")
+        t.add("2001:db8:1::/48")
+        t.add("10.0.0.0/8")
+
+        assertEquals("2001:db8:1::/48", t.longestMatch(ip("2001:db8:1::5"))?.value)
+        assertEquals("2001:db8::/32", t.longestMatch(ip("2001:db8:2::5"))?.value)
+        assertNull(t.longestMatch(ip("2001:db9::1")))
+        // address families don't mix
+        assertNull(t.longestMatch(ip("::a00:1")))
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class ConcurrentIntMapTest {
+
+    @Test
+    fun testBasicOps() {
+        val map = ConcurrentIntMap<String>(4)
+        assertTrue(map.isEmpty())
+        assertNull(map.put(1, "one"))
+        assertNull(map.put(-7, "minus seven"))
+        assertNull(map.put(Int.MIN_VALUE, "min"))
+        assertEquals("one", map.put(1, "uno"))
+        assertEquals(3, map.size)
+
+        assertEquals("uno", map[1])
+        assertEquals("minus seven", map[-7])
+        assertEquals("min", map[Int.MIN_VALUE])
+        assertNull(map[2])
+
+        assertEquals("minus seven", map.remove(-7))
+        assertNull(map.remove(-7))
+        assertFalse(map.containsKey(-7))
+        assertEquals(2, map.size)
+
+        val seen = mutableMapOf<Int, String>()
+        map.forEach { k, v -> seen[k] = v }
+        assertEquals(mapOf(1 to "uno", Int.MIN_VALUE to "min"), seen)
+
+        assertEquals(setOf("uno", "min"), map.drain().toSet())
+        assertTrue(map.isEmpty())
+        assertNull(map[1])
+    }
+
+    @Test
+    fun testCollisions() {
+        // few stripes -> long chains
+        val map = ConcurrentIntMap<Int>(2)
+        for (i in 0 until 1000) map[i] = i * 2
+        assertEquals(1000, map.size)
+        for (i in 0 until 1000 step 3) assertEquals(i * 2, map.remove(i))
+        for (i in 0 until 1000) {
+            if (i % 3 == 0) assertNull(map[i]) else assertEquals(i * 2, map[i])
+        }
+    }
+
+    @Test
+    fun testConcurrentUpdates() {
+        val map = ConcurrentIntMap<Int>(64)
+        val threads = 8
+        val perThread = 10_000
+        val start = CountDownLatch(1)
+        val removedElsewhere = ConcurrentHashMap.newKeySet<Int>()
+
+        val workers = List(threads) { t ->
+            thread {
+                start.await()
+                for (i in 0 until perThread) {
+                    val key = t * perThread + i
+                    map[key] = key
+                    if (i % 2 == 1) {
+                        assertEquals(key, map.remove(key))
+                        removedElsewhere.add(key)
+                    }
+                }
+            }
+        }
+        start.countDown()
+        workers.forEach { it.join() }
+
+        assertEquals(threads * perThread / 2, map.size)
+        for (key in 0 until threads * perThread) {
+            if (key in removedElsewhere) assertNull(map[key]) else assertEquals(key, map[key])
+        }
+    }
+}
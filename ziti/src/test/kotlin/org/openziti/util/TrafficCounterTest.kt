@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018-2024 NetFoundry Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openziti.util
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class TrafficCounterTest {
+
+    private val second = TimeUnit.SECONDS.toNanos(1)
+
+    @Test
+    fun testRates() {
+        val c = TrafficCounter(null, 4)
+        assertEquals(NetworkStats(0.0, 0.0), c.stats())
+
+        c.sample(0)
+        c.sent(1000)
+        c.received(4000)
+        c.sample(second)
+
+        val s = c.stats()
+        assertEquals(1000.0, s.upRate, 0.001)
+        assertEquals(4000.0, s.downRate, 0.001)
+        assertEquals(1000L, c.sent)
+        assertEquals(4000L, c.received)
+    }
+
+    @Test
+    fun testWindowSlides() {
+        val c = TrafficCounter(null, 2)
+        c.sample(0)
+        c.sent(10_000)
+        c.sample(second)
+        c.sample(2 * second)
+        // burst is still within the 2s window
+        assertEquals(5000.0, c.stats().upRate, 0.001)
+
+        c.sample(3 * second)
+        // burst interval slid out of the window
+        assertEquals(0.0, c.stats().upRate, 0.001)
+        assertEquals(10_000L, c.sent)
+    }
+
+    @Test
+    fun testParentTotals() {
+        val ctx = TrafficCounter(null, 1)
+        val svc = TrafficCounter(ctx, 1)
+        val c1 = TrafficCounter(svc, 1)
+        val c2 = TrafficCounter(svc, 1)
+
+        c1.sent(10)
+        c2.sent(20)
+        c2.received(5)
+
+        assertEquals(10L, c1.sent)
+        assertEquals(30L, svc.sent)
+        assertEquals(30L, ctx.sent)
+        assertEquals(5L, ctx.received)
+    }
+}